@@ -1,59 +1,335 @@
 package no.uio.ifi.vizpub.collector;
 
 import com.esotericsoftware.minlog.Log;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+import no.uio.ifi.vizpub.collector.net.CollectorServer;
+import no.uio.ifi.vizpub.collector.net.MappedRingBuffer;
+import no.uio.ifi.vizpub.collector.net.ReportFrame;
+import no.uio.ifi.vizpub.collector.net.RingReceiver;
+import no.uio.ifi.vizpub.reports.io.ReportFiles;
+import no.uio.ifi.vizpub.reports.io.ReportLog;
+import no.uio.ifi.vizpub.stats.CollectorStats;
+import no.uio.ifi.vizpub.stats.StatsServer;
 import no.uio.ifi.vizpub.utils.LogCategory;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
 
 /**
- * Multithreaded server class responsible for collecting data from the reporter. Spawns a
- * new thread with a <code>CollectorWorker</code> runnable for each connection.
+ * Class responsible for collecting data from the reporter.
+ * <p/>
+ * When the <code>collector.transport</code> property is set to <code>net</code>, reports are received from remote
+ * reporters by a non-blocking <code>CollectorServer</code> listening on <code>port</code>, and committed by a
+ * <code>CollectorWorker</code> on <code>collector.ingestion.threads</code> threads, each queueing at most
+ * <code>collector.ingestion.queue</code> reports. Otherwise, reports are committed by the reporter itself. A
+ * reporter which disconnects without ending its stream is waited for to reconnect for
+ * <code>collector.reconnect.grace</code> milliseconds, one minute by default.
+ * <p/>
+ * When the property is set to <code>local</code>, reports from a reporter on the same host are received through a
+ * memory-mapped ring in the file named by the <code>ring.file</code> property, of <code>ring.size</code> bytes,
+ * while the server still accepts reporters on other hosts.
+ * <p/>
+ * When the property is set to <code>memory</code>, the reporter in the same process adds its reports straight to
+ * the overlay, without encoding them or writing them to disk. Reports are then only appended to the report log,
+ * encoded in the format named by the <code>report.format</code> property, if the <code>report.persist</code>
+ * property is set to <code>true</code>.
+ * <p/>
+ * Collected reports are appended to a report log per protocol. The size of its segments is set by the
+ * <code>log.segment.size</code> property, in bytes, and how often it is forced to disk by the <code>log.sync</code>
+ * property, which is one of <code>none</code>, <code>segment</code> (the default) or <code>record</code>. Reports
+ * are block compressed unless the <code>report.compression</code> property is set to <code>none</code>. A log left
+ * behind by an earlier run, e.g. one which crashed, is moved to <code>reports/archive</code> rather than appended
+ * to, unless the <code>log.resume</code> property is set to <code>true</code>.
+ * <p/>
+ * Unless the <code>collector.incremental</code> property is set to <code>false</code>, reporting intervals are
+ * added to the overlay while the experiment runs, once every live host has reported them or
+ * <code>collector.finalize.timeout</code> milliseconds have passed since they were first reported. If set, the
+ * <code>collector.hosts</code> property tells how many hosts to wait for before finalizing the first intervals.
+ * <p/>
+ * Attribute values of the overlay span every reporting interval they stay the same for. Values of double attributes
+ * are considered the same as long as they differ by at most the <code>gexf.tolerance</code> property, 0 by default.
+ * If the <code>gexf.store</code> property is set to <code>true</code>, a temporal graph store of the overlay is
+ * written next to its gexf file, for querying the overlay at any reporting interval. If the <code>gexf.series</code>
+ * property is set to <code>true</code>, the attributes of every node at every reporting interval are written next to
+ * it as well, in a columnar file for analysis tools. Gexf files are gzip compressed if the <code>gexf.compress</code>
+ * property is set to <code>true</code>, and the overlay is split into one gexf file per slice of the number of
+ * reporting intervals given by the <code>gexf.slice</code> property, if set, listed in a json manifest.
+ * <p/>
+ * Statistics of the collector are registered as MBeans, and served as json on <code>localhost</code> at the port
+ * given by the <code>stats.port</code> property, if set.
+ * <p/>
+ * The collector is a service collecting a single run. It terminates by itself once every reporter has finished and
+ * the overlay has been written, or once stopped, in which case the overlay is written from the reports collected so
+ * far. Since a run keeps no state outside its collector and <code>CollectorWorker</code>, several runs may be
+ * collected one after the other in the same JVM:
+ * <pre>
+ *     {@code
+ *     Collector collector = new Collector("collector.properties");
+ *     collector.startAsync().awaitRunning();
+ *     ... run the experiment ...
+ *     collector.awaitTerminated();
+ *     }
+ * </pre>
  *
  * @author Nils Peder Korsveien
  * @see CollectorWorker
  * @see no.uio.ifi.vizpub.reporter.ReporterService
  * @see no.uio.ifi.vizpub.reporter.Reporter
  */
-public class Collector implements Runnable {
+public class Collector extends AbstractService {
+    public static final String TRANSPORT_FILE = "file";
+    public static final String TRANSPORT_NET = "net";
+    public static final String TRANSPORT_LOCAL = "local";
+    public static final String TRANSPORT_MEMORY = "memory";
+    public static final String DEFAULT_RING_FILE = "reports/report.ring";
+
     private int serverPort;
+    private String transport = TRANSPORT_FILE;
+    private int ingestionCount = Runtime.getRuntime().availableProcessors();
+    private int ingestionQueueCapacity = 16;
+    private long reconnectGraceMillis = CollectorServer.DEFAULT_RECONNECT_GRACE_MILLIS;
+    private File ringFile = new File(DEFAULT_RING_FILE);
+    private int ringCapacity = MappedRingBuffer.DEFAULT_CAPACITY;
+    private int statsPort = -1;
+    private final CollectorWorker worker = new CollectorWorker();
+    private volatile CollectorServer server;
+    private volatile RingReceiver ringReceiver;
+    private volatile boolean ringFinished;
 
     public Collector(String filePath) {
         loadProperties(filePath);
 
     }
 
+    /**
+     * Returns the worker committing the reports of this run, through which a reporter in the same process commits
+     * its reports.
+     *
+     * @return worker of the collector
+     */
+    public CollectorWorker getWorker() {
+        return worker;
+    }
+
+    /**
+     * @return the transport reports are collected through, one of the <code>TRANSPORT</code> constants
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return whether reports are handed to the collector by a reporter in the same process
+     */
+    public boolean isInProcess() {
+        return TRANSPORT_FILE.equals(transport) || TRANSPORT_MEMORY.equals(transport);
+    }
+
+    @Override
+    protected void doStart() {
+        CollectorStats stats = CollectorStats.get();
+        stats.reset();
+        try {
+            stats.monitorDirectory(new File(CollectorWorker.REPORT_PROCESSED));
+            startStatsServer();
+
+            if (TRANSPORT_LOCAL.equals(transport)) {
+                ringReceiver = new RingReceiver(ringFile, ringCapacity, new TransportListener(true));
+                ringReceiver.startAsync().awaitRunning();
+                stats.monitorRing(new Supplier<Long>() {
+                    @Override
+                    public Long get() {
+                        return ringReceiver.getQueuedBytes();
+                    }
+                });
+            }
+            if (TRANSPORT_NET.equals(transport) || TRANSPORT_LOCAL.equals(transport)) {
+                // reporters on other hosts fall back to the server
+                server = new CollectorServer(new InetSocketAddress(serverPort)
+                        , ingestionCount
+                        , ingestionQueueCapacity
+                        , reconnectGraceMillis
+                        , new TransportListener(false));
+                server.startAsync().awaitRunning();
+                stats.monitorServer(new Supplier<Integer>() {
+                    @Override
+                    public Integer get() {
+                        return server.getQueuedReports();
+                    }
+                }, new Supplier<Integer>() {
+                    @Override
+                    public Integer get() {
+                        return server.getConnectionCount();
+                    }
+                });
+                Log.info(LogCategory.COLLECTOR, "listening on port " + serverPort);
+            } else if (TRANSPORT_MEMORY.equals(transport)) {
+                Log.info(LogCategory.COLLECTOR, "Running in memory, reports are added to the overlay by the reporter");
+            } else {
+                Log.info(LogCategory.COLLECTOR, "Running in SIM mode, reports are handled by the reporter");
+            }
+        } catch (RuntimeException e) {
+            stopTransports();
+            notifyFailed(e);
+            return;
+        }
+
+        worker.getCompletion().addListener(new Runnable() {
+            @Override
+            public void run() {
+                terminate();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        // stopped before the reporters have finished, so write the overlay of the reports collected so far
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopTransports();
+                worker.finish(worker.getProtocolName());
+            }
+        }, "collector-stop");
+        stopper.start();
+    }
+
+    /**
+     * Private methods:
+     */
+
     private void loadProperties(String filePath) {
         Properties properties = new Properties();
         try {
             properties.load(new FileInputStream(filePath));
             serverPort = Integer.parseInt(properties.getProperty("port"));
-            Log.info(LogCategory.COLLECTOR, "listening on port " + serverPort);
+            transport = properties.getProperty("collector.transport", TRANSPORT_FILE).trim();
+            ingestionCount = Integer.parseInt(properties.getProperty("collector.ingestion.threads"
+                    , Integer.toString(ingestionCount)));
+            ingestionQueueCapacity = Integer.parseInt(properties.getProperty("collector.ingestion.queue"
+                    , Integer.toString(ingestionQueueCapacity)));
+            reconnectGraceMillis = Long.parseLong(properties.getProperty("collector.reconnect.grace"
+                    , Long.toString(reconnectGraceMillis)));
+            ringFile = new File(properties.getProperty("ring.file", DEFAULT_RING_FILE));
+            ringCapacity = Integer.parseInt(properties.getProperty("ring.size", Integer.toString(ringCapacity)));
+            worker.configureReportLog(
+                    Long.parseLong(properties.getProperty("log.segment.size"
+                            , Long.toString(ReportLog.DEFAULT_SEGMENT_SIZE)))
+                    , ReportLog.SyncPolicy.parse(properties.getProperty("log.sync", "segment"))
+                    , ReportFiles.parseCompression(properties.getProperty("report.compression"
+                            , ReportFiles.COMPRESSION_DEFLATE))
+                    , Boolean.parseBoolean(properties.getProperty("log.resume", "false")));
+            worker.configureInMemory(
+                    Boolean.parseBoolean(properties.getProperty("report.persist", "false"))
+                    , ReportFiles.codecFor(properties.getProperty("report.format", ReportFiles.FORMAT_JSON)));
+            worker.configureOverlay(
+                    Double.parseDouble(properties.getProperty("gexf.tolerance", "0"))
+                    , Boolean.parseBoolean(properties.getProperty("gexf.store", "false"))
+                    , Boolean.parseBoolean(properties.getProperty("gexf.series", "false")));
+            worker.configureOutput(
+                    Boolean.parseBoolean(properties.getProperty("gexf.compress", "false"))
+                    , Integer.parseInt(properties.getProperty("gexf.slice", "0")));
+            statsPort = Integer.parseInt(properties.getProperty("stats.port", Integer.toString(statsPort)));
+            worker.configureFinalization(
+                    Boolean.parseBoolean(properties.getProperty("collector.incremental", "true"))
+                    , Integer.parseInt(properties.getProperty("collector.hosts", "0"))
+                    , Long.parseLong(properties.getProperty("collector.finalize.timeout", "30000")));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public void run() {
-
-//        if (Engine.getType() == Engine.Type.NET) {
-//            Socket clientSocket;
-//            try (ServerSocket serverSocket = new ServerSocket(this.serverPort)
-//            ) {
-//                serverSocket.setReuseAddress(true);
-//                for (; ; ) {
-//                    clientSocket = serverSocket.accept();
-//                    new Thread(
-//                            new CollectorWorker(clientSocket)
-//                    ).start();
-//                }
-//            } catch (IOException e) {
-//                throw new RuntimeException(
-//                        "Error accepting client connection", e);
-//            }
-//        } else if (Engine.getType() == Engine.Type.SIM) {
-            Log.info(LogCategory.COLLECTOR, "Running in SIM mode, reports are handled by the reporter");
-//        }
+    private void startStatsServer() {
+        if (statsPort < 0) {
+            return;
+        }
+        try {
+            StatsServer.start(statsPort);
+        } catch (IOException e) {
+            Log.warn(LogCategory.COLLECTOR, "Could not serve statistics on port " + statsPort, e);
+        }
+    }
+
+    /**
+     * Stops the transports once the worker has finished, and terminates the collector. The transports are stopped
+     * on a thread of their own, since the worker may have finished on one of their threads.
+     */
+    private void terminate() {
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopTransports();
+                try {
+                    worker.getCompletion().get();
+                    notifyStopped();
+                } catch (ExecutionException e) {
+                    notifyFailed(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    notifyFailed(e);
+                }
+            }
+        }, "collector-shutdown");
+        stopper.start();
+    }
+
+    private void stopTransports() {
+        stopTransport(ringReceiver);
+        stopTransport(server);
+    }
+
+    private static void stopTransport(Service transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.stopAsync().awaitTerminated();
+        } catch (IllegalStateException e) {
+            Log.warn(LogCategory.COLLECTOR, "Transport failed", e);
+        }
+    }
+
+    /**
+     * Hands the reports of a transport to the worker. When reporters use both the ring and the server, the run has
+     * finished once the local reporter has finished and no remote reporter is connected. The local reporter is not
+     * waited for if it never attached to the ring, as when every reporter is remote or it fell back to the server.
+     */
+    private final class TransportListener implements CollectorServer.Listener {
+        private final boolean ring;
+
+        private TransportListener(boolean ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public void reportReceived(ReportFrame frame) throws IOException {
+            worker.reportReceived(frame);
+        }
+
+        @Override
+        public void reportersFinished() {
+            if (ring) {
+                ringFinished = true;
+                CollectorServer server = Collector.this.server;
+                if (server != null && (server.getConnectionCount() > 0 || server.getReconnectingCount() > 0
+                        || server.getQueuedReports() > 0)) {
+                    Log.info(LogCategory.COLLECTOR, "Local reporter has finished, waiting for remote reporters...");
+                    return;
+                }
+            } else if (ringReceiver != null && !ringFinished && ringReceiver.hasReporter()) {
+                Log.info(LogCategory.COLLECTOR, "Remote reporters have finished, waiting for local reporter...");
+                return;
+            }
+            worker.reportersFinished();
+        }
     }
 }
@@ -1,257 +1,452 @@
 package no.uio.ifi.vizpub.collector;
 
 import com.esotericsoftware.minlog.Log;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Table;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import no.uio.ifi.vizpub.collector.gexf.GexfBuilder;
+import no.uio.ifi.vizpub.collector.net.CollectorServer;
+import no.uio.ifi.vizpub.collector.net.ReportFrame;
 import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.io.ReportCodec;
+import no.uio.ifi.vizpub.reports.io.ReportFiles;
+import no.uio.ifi.vizpub.reports.io.ReportLog;
+import no.uio.ifi.vizpub.stats.CollectorStats;
 import no.uio.ifi.vizpub.utils.LogCategory;
-import no.uio.ifi.vizpub.utils.gson.MultimapDeserializer;
 import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
 
-import java.io.*;
-import java.net.Socket;
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystems;
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
- * For every connection from the reporter, the <code>Collector</code> initiates a new thread of this class. This
- * class will be responsible for collecting reports from its associated reporter, and will exit from its
- * <code>run</code> method when the client exits. As the <code>run</code> method exits, it will decrement a counter
- * found in the <code>CollectorPostProcessor</code> class. When the counter reaches zero, the collector will start
- * the offline processing of data collected from the reporters and output a single .gexf file.
+ * Receives the reports collected by the <code>CollectorServer</code> and commits them to a report log per protocol,
+ * at the interval and under the host name given by the header of each frame. The reports themselves are committed
+ * as they were encoded by the reporters, without being decoded.
+ * <p/>
+ * Unless incremental processing is disabled, the reporting intervals of each protocol are finalized by an
+ * <code>IntervalFinalizer</code> while the experiment runs, and added to a structural overlay as they are finalized.
+ * The overlay is then only written out when the collector finishes, rather than built from scratch.
+ * When all reporters have disconnected and their reports have been committed, the collector will start the offline
+ * processing of data collected from the reporters and output a single .gexf file.
+ * <p/>
+ * When the reporter runs in the same process as the collector, reports are committed through the worker of the
+ * collector instead. In memory mode, reports created in the process are added straight to the overlay of their
+ * protocol without being encoded at all, and are only written to the report log if they are to be persisted.
+ * <p/>
+ * A worker holds the state of a single run: its report logs, finalizers and configuration. Once the run has
+ * finished and its overlay has been written, the future returned by <code>getCompletion</code> completes, so a
+ * driver may run several experiments back to back in the same JVM with a new worker for each.
  *
  * @author Nils Peder Korsveien
  * @see Collector
+ * @see no.uio.ifi.vizpub.collector.net.CollectorServer
  * @see no.uio.ifi.vizpub.collector.gexf.GexfBuilder
+ * @see IntervalFinalizer
  */
-public class CollectorWorker implements Runnable {
-    public static final String REPORT_UNPROCESSED = "reports/unprocessed/";
+public class CollectorWorker implements CollectorServer.Listener {
     public static final String REPORT_PROCESSED = "reports/processed/";
+    public static final String REPORT_ARCHIVE = "reports/archive/";
 
-    private final Socket socket;
-    private static AtomicInteger collectorWorkerCount = new AtomicInteger();
-    private static Table<String, String, Integer> reportingIntervalCounter = HashBasedTable.create();
+    /**
+     * Key:   protocol name
+     * Value: log of the reports collected for the protocol
+     */
+    private final ConcurrentMap<String, ReportLog> reportLogs = new ConcurrentHashMap<>();
+
+    /**
+     * Key:   protocol name
+     * Value: finalizer of the reporting intervals of the protocol
+     */
+    private final ConcurrentMap<String, IntervalFinalizer> finalizers = new ConcurrentHashMap<>();
 
-    public CollectorWorker(Socket socket) {
-        this.socket = socket;
-        collectorWorkerCount.incrementAndGet();
+    /**
+     * Key:   protocol name
+     * Value: overlay built from the reports added in process
+     */
+    private final ConcurrentMap<String, OverlayListener> overlays = new ConcurrentHashMap<>();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final SettableFuture<Void> completion = SettableFuture.create();
+    private volatile boolean incremental = true;
+    private volatile int expectedHosts;
+    private volatile long finalizeTimeoutMillis = 30000;
+    private volatile long segmentSize = ReportLog.DEFAULT_SEGMENT_SIZE;
+    private volatile ReportLog.SyncPolicy syncPolicy = ReportLog.SyncPolicy.SEGMENT;
+    private volatile boolean compressReports = true;
+    private volatile boolean resumeReportLogs;
+    private volatile boolean persistReports;
+    private volatile ReportCodec persistCodec = ReportFiles.json();
+    private volatile double valueTolerance;
+    private volatile boolean temporalGraphStore;
+    private volatile boolean nodeSeries;
+    private volatile boolean compressGexf;
+    private volatile int sliceLength;
+
+    private volatile String protocolName;
+
+    @Override
+    public void reportReceived(ReportFrame frame) throws IOException {
+        Log.info(LogCategory.COLLECTOR, "Saving report from " + frame.getHostName());
+
+        protocolName = frame.getProtocolName();
+        long start = System.nanoTime();
+        committed(protocolName, reportLog(protocolName).append(frame.getInterval()
+                , frame.getHostName()
+                , frame.getPayload()
+                , frame.getExtension()
+                , frame.isCompressed()), start);
     }
 
-    public static int numberOfInstances() {
-        return collectorWorkerCount.get();
+    @Override
+    public void reportersFinished() {
+        Log.info(LogCategory.COLLECTOR, "All reporters have finished...");
+        finish(protocolName);
     }
 
-    public void run() {
-        String protocolName = null;
-        try (ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream())) {
-            Log.debug(LogCategory.COLLECTOR, "Reporter connected from " + socket.getInetAddress().getHostName());
+    /**
+     * Adds a report created in this process straight to the overlay of its protocol, and appends it to the report
+     * log if reports are persisted. Reports of a protocol must be added in order of reporting interval, from a
+     * single thread.
+     *
+     * @param report   the report to add
+     * @param hostName name of host that created the report
+     */
+    public void addReport(Report report, String hostName) throws IOException {
+        checkNotNull(report);
+        checkNotNull(hostName);
+        String protocolName = checkNotNull(report.getProtocolName(), "Protocol name not found in report");
+        checkState(!finished.get(), "Report added after the run has finished");
+
+        long start = System.nanoTime();
+        OverlayListener overlay = overlays.get(protocolName);
+        if (overlay == null) {
+            overlay = new OverlayListener(protocolName, valueTolerance, temporalGraphStore, nodeSeries
+                    , compressGexf, sliceLength);
+            overlays.put(protocolName, overlay);
+        }
+        this.protocolName = protocolName;
+        if (persistReports) {
+            ReportLog.Entry entry = reportLog(protocolName, false).append(hostName, report, persistCodec);
+            if (entry != null) {
+                CollectorStats.get().reportCommitted(hostName, entry.getInterval(), entry.getLength()
+                        , System.nanoTime() - start);
+            }
+        }
+        overlay.intervalFinalized(report.getIntervalCount(), report);
+    }
 
-            String json;
-            while ((json = (String) inputStream.readObject()) != null) {
-                Log.info(LogCategory.COLLECTOR, "Saving report from " + socket.getInetAddress().getHostName());
+    /**
+     * Closes the report logs and writes the overlay of the run, unless the run has already finished. The completion
+     * of the worker is signalled once the overlay has been written, or has failed to be.
+     *
+     * @param protocolName name of the protocol reported, or null if nothing was reported
+     */
+    public void finish(String protocolName) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writeOverlay(protocolName);
+            completion.set(null);
+        } catch (RuntimeException e) {
+            completion.setException(e);
+            throw e;
+        }
+    }
 
-                String hostName = socket.getInetAddress().getHostName();
+    /**
+     * Returns a future which completes once the run has finished and its overlay has been written.
+     *
+     * @return completion of the run
+     */
+    public ListenableFuture<Void> getCompletion() {
+        return completion;
+    }
 
-                Gson gson = new GsonBuilder().registerTypeAdapter(Multimap.class, new MultimapDeserializer()).create();
-                Report report = gson.fromJson(json, Report.class);
-                protocolName = report.getProtocolName();
-                saveJsonReport(json, hostName, protocolName);
+    /**
+     * @return name of the protocol last reported to the worker, or null if nothing has been reported
+     */
+    public String getProtocolName() {
+        return protocolName;
+    }
 
-                json = null;
-            }
-        } catch (EOFException eofe) {
-            Log.debug(LogCategory.COLLECTOR,
-                    socket.getInetAddress().getHostName()
-                            + " disconnected!"
-            );
-
-            if (collectorWorkerCount.decrementAndGet() == 0) {
-                Log.info(LogCategory.COLLECTOR, "All CollectorWorker threads have finished...");
-                finish(protocolName);
-                Log.info(LogCategory.COLLECTOR, "Exiting...");
-                System.exit(0);
-            }
-        } catch (IOException | ClassNotFoundException e) {
+    /**
+     * Sets the segment size, sync policy and compression of report logs opened from now on, and whether a log left
+     * behind by an earlier run is resumed. Unless resumed, such a log is moved to <code>REPORT_ARCHIVE</code>, since
+     * its reports would otherwise be mixed with those of this run, and reports of this run would be taken for
+     * duplicates of them.
+     *
+     * @param segmentSize     size in bytes after which a log segment is sealed
+     * @param syncPolicy      when to force the logs to disk
+     * @param compressReports whether reports received over the network are block compressed
+     * @param resume          whether to append to a log left behind by an earlier run, e.g. one which crashed
+     */
+    public void configureReportLog(long segmentSize, ReportLog.SyncPolicy syncPolicy, boolean compressReports
+            , boolean resume) {
+        checkArgument(segmentSize > 0, "Segment size must be positive");
+        this.segmentSize = segmentSize;
+        this.syncPolicy = checkNotNull(syncPolicy);
+        this.compressReports = compressReports;
+        this.resumeReportLogs = resume;
+    }
+
+    /**
+     * Sets whether reporting intervals are finalized and added to the overlay while the experiment runs, and how
+     * long to wait for slow hosts before finalizing an interval. Applies to protocols reported from now on.
+     *
+     * @param incremental   whether to build the overlay incrementally
+     * @param expectedHosts number of hosts expected to report, or 0 if unknown
+     * @param timeoutMillis how long to wait for slow hosts before finalizing an interval
+     */
+    public void configureFinalization(boolean incremental, int expectedHosts, long timeoutMillis) {
+        checkArgument(expectedHosts >= 0, "Expected host count must not be negative");
+        checkArgument(timeoutMillis > 0, "Finalization timeout must be positive");
+        this.incremental = incremental;
+        this.expectedHosts = expectedHosts;
+        this.finalizeTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets whether reports added in process are persisted to the report log, and the codec they are encoded with.
+     *
+     * @param persistReports whether to append reports added in process to the report log
+     * @param codec          codec to encode persisted reports with
+     */
+    public void configureInMemory(boolean persistReports, ReportCodec codec) {
+        this.persistReports = persistReports;
+        this.persistCodec = checkNotNull(codec);
+    }
+
+    /**
+     * Sets the largest difference between values of a double node attribute which are considered the same, and
+     * thereby merged into a single value of the overlay, and whether a temporal graph store and the node series are
+     * written along with the overlay. Applies to overlays built from now on.
+     *
+     * @param valueTolerance     the tolerance, or 0 to only merge equal values
+     * @param temporalGraphStore whether to write a temporal graph store of the overlay
+     * @param nodeSeries         whether to write the attributes of every node at every interval to a columnar file
+     */
+    public void configureOverlay(double valueTolerance, boolean temporalGraphStore, boolean nodeSeries) {
+        checkArgument(valueTolerance >= 0, "Value tolerance must not be negative");
+        this.valueTolerance = valueTolerance;
+        this.temporalGraphStore = temporalGraphStore;
+        this.nodeSeries = nodeSeries;
+    }
+
+    /**
+     * Sets whether the gexf files of the overlay are gzip compressed, and whether the overlay is split into slices
+     * of a fixed number of reporting intervals, each written to a gexf file of its own. Applies to overlays built
+     * from now on.
+     *
+     * @param compressGexf whether to gzip compress the gexf files
+     * @param sliceLength  number of reporting intervals of each slice, or 0 to write the overlay to a single file
+     */
+    public void configureOutput(boolean compressGexf, int sliceLength) {
+        checkArgument(sliceLength >= 0, "Slice length must not be negative");
+        this.compressGexf = compressGexf;
+        this.sliceLength = sliceLength;
+    }
+
+    /**
+     * Appends a report to the log of its protocol, at the reporting interval given by the report.
+     *
+     * @param report       the report to save
+     * @param hostName     name of host that delivered the report
+     * @param protocolName name of protocol being reported
+     */
+    public void saveJsonReport(Report report, String hostName, String protocolName) {
+        checkNotNull(report);
+        checkNotNull(hostName);
+
+        try {
+            long start = System.nanoTime();
+            committed(protocolName, reportLog(protocolName).append(hostName, report, ReportFiles.json()), start);
+            this.protocolName = protocolName;
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public static void finish(String protocolName) {
-        checkNotNull(protocolName, "Protocol name not found in report");
+    /**
+     * Private methods:
+     */
+
+    private void writeOverlay(String protocolName) {
         Log.info(LogCategory.COLLECTOR, "Finishing...");
 
-//        if (new File(REPORT_UNPROCESSED).exists()) {
-//            Log.info(LogCategory.COLLECTOR, "Unprocessed dir found...");
-//            appendJsonReportsInDirectory(REPORT_UNPROCESSED, protocolName);
-//            try {
-//                FileUtils.forceDelete(new File(REPORT_UNPROCESSED));
-//            } catch (IOException e) {
-//                e.printStackTrace();
-//            }
-//        }
-
-        if (new File(REPORT_PROCESSED).exists()) {
+        closeReportLogs();
+        if (protocolName == null) {
+            Log.warn(LogCategory.COLLECTOR, "No reports were collected");
+            closeFinalizers();
+            return;
+        }
+
+        if (!overlays.isEmpty()) {
+            // the reports were added in process, and any persisted reports are kept in the log
+            for (OverlayListener overlay : overlays.values()) {
+                overlay.finished();
+            }
+            overlays.clear();
+            return;
+        }
+
+        if (!finalizers.isEmpty()) {
+            Log.info(LogCategory.COLLECTOR, "Finalizing remaining intervals...");
+            closeFinalizers();
+            try {
+                FileUtils.deleteDirectory(new File(REPORT_PROCESSED));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (new File(REPORT_PROCESSED).exists()) {
             Log.info(LogCategory.COLLECTOR, "Processed dir found...");
-            GexfBuilder gexfBuilder = new GexfBuilder();
+            GexfBuilder gexfBuilder = new GexfBuilder(GexfBuilder.DEFAULT_HISTORY_BUFFER_SIZE, valueTolerance
+                    , temporalGraphStore, nodeSeries);
+            gexfBuilder.configureOutput(compressGexf, sliceLength);
             gexfBuilder.createStructuralOverlay(REPORT_PROCESSED, protocolName);
 //            gexfBuilder.createDisseminationOverlay(REPORT_PROCESSED, protocolName, "0");
         }
+    }
 
-//        if (Engine.getType() == Engine.Type.SIM) {
-            System.exit(0);
-//        }
+    /**
+     * Returns the log of the given protocol, opening it on first use.
+     *
+     * @param protocolName name of protocol being reported
+     * @return log of the reports collected for the protocol
+     */
+    private ReportLog reportLog(String protocolName) throws IOException {
+        return reportLog(protocolName, incremental);
     }
 
-    public static void saveJsonReport(String json, String hostName, String protocolName) {
-        checkNotNull(json);
-        checkNotNull(hostName);
+    /**
+     * Returns the log of the given protocol, opening it on first use, along with a finalizer of its intervals if
+     * requested.
+     */
+    private ReportLog reportLog(String protocolName, boolean finalize) throws IOException {
         checkNotNull(protocolName);
-
-        String checkPointNumber = createSubDir(protocolName, hostName);
-
-        // write report to json file
-        final String pathname = REPORT_PROCESSED
-                + protocolName
-                + "/"
-                + checkPointNumber
-                + "_"
-                + hostName
-                + "_"
-                + protocolName
-                + ".json";
-
-//        // write report to json file
-//        final String pathname = REPORT_UNPROCESSED
-//                + protocolName
-//                + "/"
-//                + checkPointNumber
-//                + "/"
-//                + checkPointNumber
-//                + "_"
-//                + hostName
-//                + "_"
-//                + protocolName
-//                + ".json";
-
-        try {
-            FileUtils.writeStringToFile(new File(pathname), json);
-        } catch (IOException e) {
-            e.printStackTrace();
+        checkState(!finished.get(), "Report received after the run has finished");
+
+        ReportLog log = reportLogs.get(protocolName);
+        if (log == null) {
+            synchronized (reportLogs) {
+                log = reportLogs.get(protocolName);
+                if (log == null) {
+                    File directory = new File(REPORT_PROCESSED + protocolName);
+                    if (!resumeReportLogs) {
+                        archiveLog(directory, protocolName);
+                    }
+                    log = ReportLog.open(directory, segmentSize, syncPolicy, compressReports);
+                    if (finalize) {
+                        finalizers.put(protocolName, new IntervalFinalizer(log, expectedHosts, finalizeTimeoutMillis
+                                , new OverlayListener(protocolName, valueTolerance
+                                , temporalGraphStore, nodeSeries, compressGexf, sliceLength)));
+                    }
+                    reportLogs.put(protocolName, log);
+                }
+            }
         }
+        return log;
     }
 
-    private static void appendJsonReportsInDirectory(String directory, String protocolName) {
-        checkNotNull(directory);
-        checkNotNull(protocolName);
+    /**
+     * Moves a log left behind by an earlier run out of the way of this run, keeping it under the time it was moved.
+     */
+    private static void archiveLog(File directory, String protocolName) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+        String name = protocolName + "_" + DateTime.now().toString("yyyy-MM-dd_HH:mm:ss");
+        File archive = new File(REPORT_ARCHIVE, name);
+        for (int i = 1; archive.exists(); i++) {
+            archive = new File(REPORT_ARCHIVE, name + "_" + i);
+        }
+        Files.createDirectories(archive.getParentFile().toPath());
+        Files.move(directory.toPath(), archive.toPath());
+        Log.warn(LogCategory.COLLECTOR, "Moved report log of an earlier run from " + directory + " to " + archive);
+    }
 
-        // traverse top directory
-        Path topDir = FileSystems.getDefault().getPath(directory + protocolName);
-        int dirCount = 0;
-        Gson gson ;
-        Report.Builder overlayBuilder = Report.builder();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(topDir)) {
-            for (Path subDir : stream) {
-                Log.debug(LogCategory.GEXF, "subDir: " + subDir);
-
-                try ( DirectoryStream<Path> subDirStream = Files.newDirectoryStream(subDir)) {
-                    checkNotNull(subDirStream);
-
-                    boolean first = true;
-                    gson = new GsonBuilder().registerTypeAdapter(Multimap.class, new MultimapDeserializer()).create();
-
-                    // iterate through files in sub directory
-                    for (Path file : subDirStream) {
-                        Log.debug(LogCategory.GEXF, "file: " + file);
-
-                        try (FileInputStream fileInputStream = new FileInputStream(file.toFile())) {
-                            Reader reader = new InputStreamReader(fileInputStream);
-                            Report overlay = gson.fromJson(reader, Report.class);
-
-                            if (overlay == null) {
-                                Log.info(LogCategory.GEXF, "Json report is empty, returning...");
-                                return;
-                            }
-
-                            Log.debug(LogCategory.GEXF, "Appending node count: " + overlay.getNodes().size());
-
-                            if (first) {
-                                overlayBuilder
-                                        .withProtocolId(overlay.getProtocolId())
-                                        .withProtocolName(overlay.getProtocolName());
-                                first = false;
-                            }
-
-                            // add nodes and edges
-                            overlayBuilder.addNodes(overlay.getNodes());
-                            overlayBuilder.addEdges(overlay.getEdges());
-                            overlayBuilder.addPublications(overlay.getPublications());
-
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-                // write appended reports to json file
-                String filePrefix = String.format("%08d", ++dirCount);
-                String fileName = CollectorWorker.REPORT_PROCESSED + protocolName + "/" + filePrefix + protocolName + ".json";
-                String appendedJson = gson.toJson(overlayBuilder.build());
+    /**
+     * Accounts for a report appended to the log of its protocol. A report which was already committed, and so was
+     * not appended again, is not accounted for twice.
+     *
+     * @param entry location of the report, or null if it was a duplicate
+     */
+    private void committed(String protocolName, ReportLog.Entry entry, long start) {
+        if (entry == null) {
+            Log.debug(LogCategory.COLLECTOR, "Skipped duplicate report for protocol " + protocolName);
+            return;
+        }
+        CollectorStats.get().reportCommitted(entry.getHostName(), entry.getInterval(), entry.getLength()
+                , System.nanoTime() - start);
+        IntervalFinalizer finalizer = finalizers.get(protocolName);
+        if (finalizer != null) {
+            finalizer.reportCommitted(entry);
+        }
+    }
 
-                Log.debug(LogCategory.GEXF, "Writing to file: " + fileName);
+    private void closeFinalizers() {
+        synchronized (reportLogs) {
+            for (IntervalFinalizer finalizer : finalizers.values()) {
                 try {
-                    FileUtils.writeStringToFile(new File(fileName), appendedJson);
+                    finalizer.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-        } catch (IOException e1) {
-            e1.printStackTrace();
+            finalizers.clear();
         }
     }
 
-
-    private static String createSubDir(String protocolName, String hostName) {
-        String checkpointNumber = getCheckpointNumber(protocolName, hostName);
-        try {
-            FileUtils.forceMkdir(new File(CollectorWorker.REPORT_UNPROCESSED
-                    + protocolName
-                    + "/"
-                    + checkpointNumber));
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void closeReportLogs() {
+        synchronized (reportLogs) {
+            for (ReportLog log : reportLogs.values()) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            reportLogs.clear();
         }
-        return checkpointNumber;
     }
 
     /**
-     * Returns the correct checkpoint number for the current report
-     *
-     * @param protocolName name of protocol being reported
-     * @param hostName     name of host that delivered the report
-     * @return the correct checkpoint number
+     * Adds finalized intervals to a structural overlay, which is written out once every interval is finalized.
      */
-    private static String getCheckpointNumber(String protocolName, String hostName) {
-        if (!reportingIntervalCounter.contains(protocolName, hostName)) {
-            reportingIntervalCounter.put(protocolName, hostName, 0);
-        } else {
-            int counter = reportingIntervalCounter.get(protocolName, hostName);
-            reportingIntervalCounter.put(protocolName, hostName, ++counter);
+    private static final class OverlayListener implements IntervalFinalizer.Listener {
+        private final String protocolName;
+        private final GexfBuilder gexfBuilder;
+
+        private OverlayListener(String protocolName, double valueTolerance, boolean temporalGraphStore
+                , boolean nodeSeries, boolean compressGexf, int sliceLength) {
+            this.protocolName = protocolName;
+            this.gexfBuilder = new GexfBuilder(GexfBuilder.DEFAULT_HISTORY_BUFFER_SIZE, valueTolerance
+                    , temporalGraphStore, nodeSeries);
+            gexfBuilder.configureOutput(compressGexf, sliceLength);
+            gexfBuilder.beginStructuralOverlay();
+        }
+
+        @Override
+        public void intervalFinalized(int interval, Report overlay) {
+            gexfBuilder.addStructuralInterval(overlay);
+        }
+
+        @Override
+        public void finished() {
+            gexfBuilder.finishStructuralOverlay(protocolName);
         }
-        Integer fileNumber = reportingIntervalCounter.get(protocolName, hostName);
-        return String.format("%08d", fileNumber);
     }
 
     public static void main(String[] args) {
         Log.DEBUG();
-//        finish(args[0]);
-        finish("protocol.rings");
+//        new CollectorWorker().finish(args[0]);
+        new CollectorWorker().finish("protocol.rings");
     }
 }
@@ -0,0 +1,273 @@
+package no.uio.ifi.vizpub.collector;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.io.MergingReportSource;
+import no.uio.ifi.vizpub.reports.io.ReportLog;
+import no.uio.ifi.vizpub.reports.io.ReportSource;
+import no.uio.ifi.vizpub.utils.LogCategory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finalizes the reporting intervals of a report log while the experiment is running, and hands the merged report of
+ * each finalized interval to a listener, e.g. an overlay being built incrementally.
+ * <p/>
+ * The finalizer keeps a watermark per host: the highest interval the host has committed to the log. An interval is
+ * finalized once every live host has passed it, or once the timeout has passed since the interval was first
+ * reported. A host is considered live until it has not reported for longer than the timeout, so a host which has
+ * left the experiment only delays the intervals reported during the timeout after it left. Intervals are finalized
+ * in order. Since hosts are only known once they have reported, the finalizer may be told how many hosts to expect,
+ * in which case no interval is finalized before the timeout until that many hosts have reported.
+ * <p/>
+ * A finalized interval includes every report committed for it so far. Reports committed for an interval after it
+ * has been finalized are late; they stay in the log, but are not handed to the listener.
+ * <p/>
+ * All bookkeeping and finalization happens on a single thread of the finalizer, so committing reports is never
+ * delayed by the listener.
+ *
+ * @author Nils Peder Korsveien
+ * @see CollectorWorker
+ * @see MergingReportSource
+ */
+public class IntervalFinalizer implements Closeable {
+
+    /**
+     * Receiver of finalized intervals, invoked from the thread of the finalizer.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked for every finalized interval, in order.
+         *
+         * @param interval the finalized interval
+         * @param overlay  report merged from every host reporting the interval
+         */
+        void intervalFinalized(int interval, Report overlay);
+
+        /**
+         * Invoked once the finalizer is closed and every interval has been finalized.
+         */
+        void finished();
+    }
+
+    private final ReportLog log;
+    private final int expectedHosts;
+    private final long timeoutNanos;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Key:   host name
+     * Value: highest interval committed by the host
+     */
+    private final Map<String, Integer> watermarks = new HashMap<>();
+
+    /**
+     * Key:   host name
+     * Value: when the host last committed a report
+     */
+    private final Map<String, Long> lastSeen = new HashMap<>();
+
+    /**
+     * Key:   reported interval which has not been finalized
+     * Value: when the interval was first reported
+     */
+    private final TreeMap<Integer, Long> pending = new TreeMap<>();
+
+    /**
+     * Hosts which have committed a report for each pending interval
+     */
+    private final Multimap<Integer, String> announced = HashMultimap.create();
+
+    /**
+     * Hosts whose reports were included in a finalized interval before their commit was announced
+     */
+    private final Multimap<Integer, String> unannounced = HashMultimap.create();
+
+    private int lastFinalized = -1;
+    private int lateCount;
+
+    /**
+     * @param log           log of the reports to finalize
+     * @param expectedHosts number of hosts expected to report, or 0 if unknown
+     * @param timeoutMillis how long to wait for slow hosts before finalizing an interval
+     * @param listener      receiver of the finalized intervals
+     */
+    public IntervalFinalizer(ReportLog log, int expectedHosts, long timeoutMillis, Listener listener) {
+        checkArgument(expectedHosts >= 0, "Expected host count must not be negative");
+        checkArgument(timeoutMillis > 0, "Finalization timeout must be positive");
+        this.log = checkNotNull(log);
+        this.expectedHosts = expectedHosts;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.listener = checkNotNull(listener);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("interval-finalizer-%d")
+                .setDaemon(true)
+                .build());
+
+        long tickMillis = Math.max(timeoutMillis / 4, 10);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                finalizeReady(false);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tells the finalizer that a report has been committed to the log.
+     *
+     * @param entry location of the committed report
+     */
+    public void reportCommitted(final ReportLog.Entry entry) {
+        checkNotNull(entry);
+        final long now = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                track(entry, now);
+                finalizeReady(false);
+            }
+        });
+    }
+
+    /**
+     * Finalizes every interval not yet finalized, tells the listener that the finalizer has finished and stops the
+     * thread of the finalizer.
+     */
+    @Override
+    public void close() throws IOException {
+        if (executor.isShutdown()) {
+            return;
+        }
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    finalizeReady(true);
+                    if (lateCount > 0) {
+                        Log.warn(LogCategory.COLLECTOR, lateCount + " reports arrived after their interval was "
+                                + "finalized, and are not part of the overlay");
+                    }
+                    listener.finished();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while finalizing intervals");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not finalize intervals of " + log.getDirectory(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private void track(ReportLog.Entry entry, long now) {
+        String hostName = entry.getHostName();
+        int interval = entry.getInterval();
+        lastSeen.put(hostName, now);
+
+        Integer watermark = watermarks.get(hostName);
+        if (watermark == null || watermark < interval) {
+            watermarks.put(hostName, interval);
+        }
+
+        if (interval <= lastFinalized) {
+            if (!unannounced.remove(interval, hostName)) {
+                lateCount++;
+                Log.debug(LogCategory.COLLECTOR, "Report from " + hostName + " for interval " + interval
+                        + " arrived after the interval was finalized");
+            }
+            return;
+        }
+        if (!pending.containsKey(interval)) {
+            pending.put(interval, now);
+        }
+        announced.put(interval, hostName);
+    }
+
+    /**
+     * Finalizes pending intervals in order, as long as they are ready.
+     *
+     * @param all whether to finalize every pending interval regardless of watermarks
+     */
+    private void finalizeReady(boolean all) {
+        try {
+            long now = System.nanoTime();
+            while (!pending.isEmpty()) {
+                int interval = pending.firstKey();
+                boolean timedOut = now - pending.get(interval) >= timeoutNanos;
+                if (!all && !timedOut && lowWatermark(now) < interval) {
+                    return;
+                }
+                pending.remove(interval);
+                finalizeInterval(interval);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error(LogCategory.COLLECTOR, "Could not finalize interval of " + log.getDirectory(), e);
+        }
+    }
+
+    /**
+     * Returns the lowest watermark among the live hosts.
+     */
+    private int lowWatermark(long now) {
+        if (watermarks.size() < expectedHosts) {
+            return -1;
+        }
+        int low = Integer.MAX_VALUE;
+        for (Map.Entry<String, Integer> watermark : watermarks.entrySet()) {
+            if (now - lastSeen.get(watermark.getKey()) < timeoutNanos) {
+                low = Math.min(low, watermark.getValue());
+            }
+        }
+        return low;
+    }
+
+    private void finalizeInterval(int interval) throws IOException {
+        List<ReportLog.Entry> entries = log.getEntries(interval);
+        for (ReportLog.Entry entry : entries) {
+            if (!announced.remove(interval, entry.getHostName())) {
+                unannounced.put(interval, entry.getHostName());
+            }
+        }
+        announced.removeAll(interval);
+        lastFinalized = interval;
+
+        List<Report> partials = new ArrayList<>();
+        try (ReportSource source = log.openSource(entries)) {
+            Report partial;
+            while ((partial = source.next()) != null) {
+                partials.add(partial);
+            }
+        }
+        if (partials.isEmpty()) {
+            return;
+        }
+
+        Log.debug(LogCategory.COLLECTOR, "Finalized interval " + interval + " from " + partials.size() + " hosts");
+        listener.intervalFinalized(interval, MergingReportSource.merge(partials));
+    }
+}
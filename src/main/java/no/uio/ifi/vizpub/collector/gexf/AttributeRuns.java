@@ -0,0 +1,134 @@
+package no.uio.ifi.vizpub.collector.gexf;
+
+import it.uniroma1.dis.wsngroup.gexf4j.core.IntervalType;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.Attribute;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeType;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeValue;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.Datum;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Run-length encoder of the dynamic attribute values of gexf nodes or edges.
+ * <p/>
+ * Rather than creating a value for every reporting interval, the current value of an attribute is extended to
+ * cover the next interval as long as it stays the same, and a new value is only created once it changes, or once
+ * the element returns after having left. Values of double attributes are considered the same as long as they differ
+ * by at most the tolerance, in which case the run keeps the value it started with.
+ * <p/>
+ * The encoder keeps the current value of every attribute of an element until the element is closed, which should be
+ * done once it has left the overlay.
+ *
+ * @author Nils Peder Korsveien
+ * @see NodeAttributes
+ * @see EdgeAttributes
+ */
+final class AttributeRuns {
+    private final double tolerance;
+
+    /**
+     * Key:   attribute
+     * Value: index of the attribute among the current values of an element
+     */
+    private final Map<Attribute, Integer> slots = new IdentityHashMap<>();
+
+    /**
+     * Key:   gexf node or edge
+     * Value: current value of each attribute of the element, by slot
+     */
+    private final Map<Datum, AttributeValue[]> currentValues = new IdentityHashMap<>();
+
+    /**
+     * @param tolerance largest difference between values of a double attribute which are considered the same
+     */
+    AttributeRuns(double tolerance) {
+        checkArgument(tolerance >= 0, "Tolerance must not be negative");
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Sets the value of an attribute of an element during an interval, extending the current value of the
+     * attribute if it is the same and ends where the interval starts.
+     *
+     * @param element   the gexf node or edge
+     * @param attribute the attribute
+     * @param value     value of the attribute
+     * @param start     start of the interval
+     * @param end       end of the interval, exclusive
+     */
+    void set(Datum element, Attribute attribute, String value, double start, double end) {
+        checkNotNull(element);
+        checkNotNull(value);
+        checkArgument(start < end, "Start value must be lower than end value");
+
+        int slot = slotOf(attribute);
+        AttributeValue[] values = currentValues.get(element);
+        if (values == null) {
+            values = new AttributeValue[slots.size()];
+            currentValues.put(element, values);
+        } else if (slot >= values.length) {
+            values = Arrays.copyOf(values, slots.size());
+            currentValues.put(element, values);
+        }
+
+        AttributeValue current = values[slot];
+        if (current != null && ((Number) current.getEndValue()).doubleValue() == start
+                && isSame(attribute, current.getValue(), value)) {
+            current.setEndValue(end);
+            return;
+        }
+        values[slot] = element.getAttributeValues()
+                .createValue(attribute, value)
+                .setStartValue(start)
+                .setEndValue(end)
+                .setEndIntervalType(IntervalType.OPEN);
+    }
+
+    /**
+     * @return whether the value is the current value of its attribute, and may still be extended
+     */
+    boolean isCurrent(Datum element, AttributeValue value) {
+        AttributeValue[] values = currentValues.get(element);
+        Integer slot = slots.get(value.getAttribute());
+        return values != null && slot != null && slot < values.length && values[slot] == value;
+    }
+
+    /**
+     * Ends the current values of an element, so they are no longer extended.
+     */
+    void close(Datum element) {
+        currentValues.remove(element);
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private int slotOf(Attribute attribute) {
+        Integer slot = slots.get(checkNotNull(attribute));
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(attribute, slot);
+        }
+        return slot;
+    }
+
+    private boolean isSame(Attribute attribute, String first, String second) {
+        if (first.equals(second)) {
+            return true;
+        }
+        if (tolerance == 0 || attribute.getAttributeType() != AttributeType.DOUBLE) {
+            return false;
+        }
+        try {
+            return Math.abs(Double.parseDouble(first) - Double.parseDouble(second)) <= tolerance;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package no.uio.ifi.vizpub.collector.gexf;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import it.uniroma1.dis.wsngroup.gexf4j.core.*;
+import it.uniroma1.dis.wsngroup.gexf4j.core.dynamic.Spell;
+import it.uniroma1.dis.wsngroup.gexf4j.core.dynamic.TimeFormat;
+import it.uniroma1.dis.wsngroup.gexf4j.core.impl.GexfImpl;
+import it.uniroma1.dis.wsngroup.gexf4j.core.impl.SpellImpl;
+import no.uio.ifi.vizpub.reports.EdgeData;
+import no.uio.ifi.vizpub.reports.NodeData;
+import no.uio.ifi.vizpub.reports.PubMessage;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.SymbolTable;
+import no.uio.ifi.vizpub.utils.collect.IntObjectMap;
+import no.uio.ifi.vizpub.utils.collect.LongObjectMap;
+
+import java.util.Calendar;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Dissemination overlay of a single publication, built one reporting interval at a time.
+ * <p/>
+ * The overlay traces the publication by building edges according to hop count, which enables step by step
+ * playback in Gephi. Only the reporting intervals in which the publication was reported count as animation steps.
+ * <p/>
+ * This class is not thread-safe, but once finished, the overlay may be written on any thread.
+ *
+ * @author Nils Peder Korsveien
+ * @see GexfBuilder#createDisseminationOverlay(String, String, String)
+ * @see GexfBuilder#createDisseminationOverlays(String, String, int)
+ */
+final class DisseminationTrace {
+    private final String messageId;
+    private final SymbolTable nodeIds;
+    private final Gexf gexf;
+    private final Graph graph;
+    private final NodeAttributes nodeAttributes;
+
+    private final IntObjectMap<Node> aliveNodes = new IntObjectMap<>();
+    private final LongObjectMap<Edge> aliveEdges = new LongObjectMap<>();
+    private final IntObjectMap<Node> deadNodes = new IntObjectMap<>();
+    private final IntObjectMap<Spell> nodeSpells = new IntObjectMap<>();
+
+    /**
+     * Key:   hop count + reporting interval
+     * Value: the dissemination edge
+     */
+    private final Multimap<Double, EdgeData> disseminationEdges = HashMultimap.create();
+
+    private double animationLength;
+
+    /**
+     * Number of reporting intervals in which the publication was reported
+     */
+    private double reportingIntervalCount;
+
+    /**
+     * @param messageId id of message to trace
+     * @param nodeIds   handles of node ids, which may be shared by the traces of a run
+     */
+    DisseminationTrace(String messageId, SymbolTable nodeIds) {
+        this.messageId = checkNotNull(messageId);
+        this.nodeIds = checkNotNull(nodeIds);
+
+        gexf = new GexfImpl();
+        gexf.getMetadata()
+                .setCreator("VizPub")
+                .setDescription("Dissemination Overlay for publication message " + messageId)
+                .setLastModified(Calendar.getInstance().getTime());
+
+        graph = gexf.getGraph()
+                .setDefaultEdgeType(EdgeType.DIRECTED)
+                .setIDType(IDType.STRING)
+                .setMode(Mode.DYNAMIC)
+                .setTimeType(TimeFormat.DOUBLE);
+
+        nodeAttributes = NodeAttributes.builder()
+                .withTopics()
+                .withHopCount()
+                .withDuplicateCount()
+                .build();
+
+        graph.getAttributeLists().add(nodeAttributes.getAttributes());
+    }
+
+    String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Adds the next reporting interval to the overlay, if the publication was reported in it.
+     *
+     * @param overlay report merged from every host at the interval
+     */
+    void addInterval(Report overlay) {
+        PubMessage msg = overlay.getPublication(messageId);
+        if (msg == null) {
+            return;
+        }
+        addInterval(overlay, msg, overlay.getNodes().values(), overlay.getEdges().values());
+    }
+
+    /**
+     * Adds the next reporting interval to the overlay, given the nodes subscribing to the topic of the publication
+     * and the edges the publication was sent along, e.g. from an index of the report.
+     *
+     * @param overlay     report merged from every host at the interval
+     * @param msg         the publication, as reported in the interval
+     * @param subscribers nodes which may subscribe to the topic of the publication
+     * @param edges       edges which may have carried the publication
+     */
+    void addInterval(Report overlay, PubMessage msg, Iterable<NodeData> subscribers, Iterable<EdgeData> edges) {
+        addNodes(reportingIntervalCount, subscribers, msg.getTopicId());
+        removeDeadNodes(reportingIntervalCount, overlay);
+        addDisseminationEdges(reportingIntervalCount, overlay, edges);
+
+        reportingIntervalCount++;
+    }
+
+    /**
+     * Adds the dissemination edges of the animation steps beyond the last reporting interval, and ends the spells
+     * of the nodes and edges still alive. No intervals may be added once the overlay is finished.
+     *
+     * @param lastOverlay report of the last reporting interval of the run
+     * @return the finished overlay
+     */
+    Gexf finish(Report lastOverlay) {
+        // Add remaining dissemination edges if the number of animation steps
+        // is longer than the actual number of reporting intervals
+        double animationStep = reportingIntervalCount;
+        for (; animationStep <= animationLength; animationStep++) {
+            createDisseminationEdges(animationStep, lastOverlay);
+        }
+
+        for (Edge edge : aliveEdges.values()) {
+            edge.setEndValue(animationStep);
+        }
+        for (Node node : aliveNodes.values()) {
+            node.setEndValue(animationStep);
+        }
+        return gexf;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private void addDisseminationEdges(double reportingIntervalCount, Report overlay, Iterable<EdgeData> edges) {
+        checkNotNull(overlay, "No overlay found");
+
+        for (EdgeData edgeData : edges) {
+            Map<String, PubMessage> publications = edgeData.getPublicationsMessages();
+
+            if (publications == null || publications.isEmpty()) {
+                continue;
+            }
+
+            PubMessage pubMessage = publications.get(messageId);
+            if (pubMessage != null) {
+                double animationStep = pubMessage.getHopCount() + reportingIntervalCount;
+
+                if (animationStep > animationLength) {
+                    animationLength = animationStep;
+                }
+                disseminationEdges.put(animationStep, edgeData);
+            }
+        }
+        createDisseminationEdges(reportingIntervalCount, overlay);
+    }
+
+    private void createDisseminationEdges(double animationStep, Report overlay) {
+        checkNotNull(overlay);
+
+        for (EdgeData edgeData : disseminationEdges.get(animationStep)) {
+            int sourceHandle = nodeIds.intern(edgeData.getSourceId());
+            int targetHandle = nodeIds.intern(edgeData.getTargetId());
+            long edgeKey = EdgeData.key(sourceHandle, targetHandle);
+
+            if (!aliveEdges.containsKey(edgeKey)) {
+
+                Node sourceNode = aliveNodes.get(sourceHandle);
+                Node targetNode = aliveNodes.get(targetHandle);
+
+                if (sourceNode == null) {
+                    sourceNode = graph.createNode(edgeData.getSourceId())
+                            .setLabel(createNodeLabel(overlay, Long.parseLong(edgeData.getSourceId())));
+                    aliveNodes.put(sourceHandle, sourceNode);
+                }
+
+                if (targetNode == null) {
+                    targetNode = graph.createNode(edgeData.getTargetId())
+                            .setLabel(createNodeLabel(overlay, Long.parseLong(edgeData.getTargetId())));
+                    aliveNodes.put(targetHandle, targetNode);
+                }
+
+                sourceNode.setEndValue(animationStep);
+                targetNode.setEndValue(animationStep);
+
+                Edge edge = sourceNode.connectTo(edgeData.getId(), targetNode)
+                        .setLabel(edgeData.getId())
+                        .setEdgeType(EdgeType.DIRECTED)
+                        .setWeight(1f);
+
+                edge.setStartValue(animationStep);
+
+                aliveEdges.put(edgeKey, edge);
+            }
+        }
+    }
+
+    private void removeDeadNodes(double reportingIntervalCount, Report overlay) {
+        for (int nodeHandle : aliveNodes.keys()) {
+            NodeData nodeData = overlay.getNode(nodeIds.symbol(nodeHandle));
+
+            // this node is dead
+            if (nodeData == null) {
+                Node deadNode = aliveNodes.remove(nodeHandle);
+                Spell deadSpell = nodeSpells.get(nodeHandle);
+                deadSpell.setEndValue(reportingIntervalCount);
+                deadNode.getSpells().add(deadSpell);
+                deadNodes.put(nodeHandle, deadNode);
+                nodeAttributes.close(deadNode);
+            }
+        }
+    }
+
+    private void addNodes(double reportingIntervalCount, Iterable<NodeData> subscribers, String topic) {
+        for (NodeData nodeData : subscribers) {
+
+            if (!nodeData.subscribesTo(topic)) {
+                continue;
+            }
+
+            int nodeHandle = nodeIds.intern(nodeData.getId());
+
+            Spell nodeSpell;
+            Node node;
+
+            // this is an old node which has returned
+            if (deadNodes.containsKey(nodeHandle)) {
+                node = deadNodes.remove(nodeHandle);
+                nodeSpell = new SpellImpl();
+                nodeSpell.setStartValue(reportingIntervalCount);
+                node.getSpells().add(nodeSpell);
+
+                aliveNodes.put(nodeHandle, node);
+                nodeSpells.put(nodeHandle, nodeSpell);
+            }
+            // this is a node which existed previous reporting interval
+            else if (aliveNodes.containsKey(nodeHandle)) {
+                node = aliveNodes.get(nodeHandle);
+                nodeSpell = nodeSpells.get(nodeHandle);
+
+                // new interval: current interval - next interval
+                nodeSpell.setEndValue(reportingIntervalCount + 1);
+            }
+            // this is a new node
+            else {
+                String nodeLabel = nodeData.getId();
+
+                node = graph.createNode(nodeData.getId())
+                        .setLabel(nodeLabel);
+
+                nodeSpell = new SpellImpl()
+                        .setStartValue(reportingIntervalCount)
+                        .setEndIntervalType(IntervalType.OPEN);
+
+                node.getSpells().add(nodeSpell);
+                nodeSpells.put(nodeHandle, nodeSpell);
+                aliveNodes.put(nodeHandle, node);
+
+            }
+
+            checkNotNull(node, "Could not find node when adding node attributes");
+
+            nodeAttributes.update(node
+                    , nodeData
+                    , reportingIntervalCount
+                    , reportingIntervalCount + 1);
+        }
+    }
+
+    private String createNodeLabel(Report overlay, Long nodeId) {
+        int numberOfDigits = Integer.toString(overlay.getNodes().size()).length();
+        String numberFormat = "%0" + numberOfDigits + "d";
+        return String.format(numberFormat, nodeId);
+    }
+}
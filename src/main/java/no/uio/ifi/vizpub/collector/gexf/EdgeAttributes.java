@@ -1,12 +1,12 @@
 package no.uio.ifi.vizpub.collector.gexf;
 
 import it.uniroma1.dis.wsngroup.gexf4j.core.Edge;
-import it.uniroma1.dis.wsngroup.gexf4j.core.IntervalType;
 import it.uniroma1.dis.wsngroup.gexf4j.core.Mode;
 import it.uniroma1.dis.wsngroup.gexf4j.core.data.Attribute;
 import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeClass;
 import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeList;
 import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeType;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeValue;
 import it.uniroma1.dis.wsngroup.gexf4j.core.impl.data.AttributeListImpl;
 import no.uio.ifi.vizpub.reports.EdgeData;
 
@@ -21,6 +21,10 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * through every edge from each of the reported overlays. Each reports describes the system state at a specific
  * reporting interval. This class will update the value of the edge attribute based on the data derived from
  * the corresponding report.
+ * <p/>
+ * Values are run-length encoded like those of <code>NodeAttributes</code>: while the value of an attribute stays the
+ * same from one interval to the next, its current value is extended rather than a new value created. Once an edge
+ * has left the overlay, its values should be closed by <code>close</code>.
  *
  * @author Nils Peder Korsveien
  * @see GexfBuilder
@@ -30,6 +34,7 @@ public class EdgeAttributes {
     private final Attribute topics;
     private final Attribute controlMsgCount;
     private final Attribute publications;
+    private final AttributeRuns runs;
 
     public static final String TOPICS = "Topics";
 
@@ -38,6 +43,7 @@ public class EdgeAttributes {
         topics = builder.topics;
         controlMsgCount = builder.gossipCount;
         publications = builder.publications;
+        runs = new AttributeRuns(0);
     }
 
     /**
@@ -81,11 +87,7 @@ public class EdgeAttributes {
         checkNotNull(edgeData);
         checkArgument(start < end, "Start value must be lower than end value");
 
-        edge.getAttributeValues()
-                .createValue(publications, edgeData.getPublicationsMessages().keySet().toString())
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
+        runs.set(edge, publications, edgeData.getPublicationsMessages().keySet().toString(), start, end);
     }
 
     /**
@@ -109,11 +111,7 @@ public class EdgeAttributes {
         }
         checkArgument(start < end, "Start value must be lower than end value");
 
-        edge.getAttributeValues()
-                .createValue(controlMsgCount, Integer.toString(edgeData.getControlMsgCount()))
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
+        runs.set(edge, controlMsgCount, Integer.toString(edgeData.getControlMsgCount()), start, end);
     }
 
     /**
@@ -138,8 +136,28 @@ public class EdgeAttributes {
         checkArgument(start < end, "Start value must be lower than end value");
 
 
-        edge.getAttributeValues()
-                .createValue(topics, edgeData.getTopics().toString());
+        runs.set(edge, topics, edgeData.getTopics().toString(), start, end);
+    }
+
+    /**
+     * Tells whether a value of an edge is the current value of its attribute, which may still be extended to the
+     * following intervals.
+     *
+     * @param edge  the gexf edge
+     * @param value value of the edge
+     * @return true if the value may still change
+     */
+    public boolean isCurrent(Edge edge, AttributeValue value) {
+        return runs.isCurrent(edge, value);
+    }
+
+    /**
+     * Ends the current values of an edge, e.g. once it has left the overlay, so they are no longer extended.
+     *
+     * @param edge the gexf edge
+     */
+    public void close(Edge edge) {
+        runs.close(edge);
     }
 
     public AttributeList getAttributes() {
@@ -0,0 +1,343 @@
+package no.uio.ifi.vizpub.collector.gexf;
+
+import com.esotericsoftware.minlog.Log;
+import no.uio.ifi.vizpub.utils.LogCategory;
+import no.uio.ifi.vizpub.utils.collect.LongObjectMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * History of the elements of a graph, e.g. the spells and attribute values of its nodes, kept within a bounded
+ * amount of memory.
+ * <p/>
+ * Records are appended for elements in any order, and read back grouped by element in order of key, with the
+ * records of each element in the order they were appended. Records are buffered in memory, chained per element.
+ * Once the buffer is full, it is spilled to a temporary file as a run sorted by key, and reading merges the runs.
+ * Memory use is thereby bounded by the size of the buffer and the history of a single element, rather than by the
+ * length of the experiment.
+ * <p/>
+ * This class is not thread-safe, but once appending is over, cursors only read the history, and may be used from
+ * several threads at once.
+ *
+ * @author Nils Peder Korsveien
+ * @see StreamingGexfWriter
+ */
+final class ElementHistory implements Closeable {
+    private static final int HEADER_SIZE = 8;
+    private static final int NO_RECORD = -1;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private final File spillDirectory;
+    private final int capacity;
+    private byte[] buffer;
+    private ByteBuffer view;
+    private int position;
+    private int recordCount;
+
+    /**
+     * Key:   key of element
+     * Value: offsets of the first and the last record of the element in the buffer
+     */
+    private final LongObjectMap<int[]> chains = new LongObjectMap<>();
+
+    /**
+     * Runs spilled to disk, in the order they were spilled
+     */
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * @param spillDirectory directory to spill runs to
+     * @param capacity       number of bytes to buffer in memory before spilling
+     */
+    ElementHistory(File spillDirectory, int capacity) {
+        checkArgument(capacity > HEADER_SIZE, "Capacity must be larger than a record header");
+        this.spillDirectory = checkNotNull(spillDirectory);
+        this.capacity = capacity;
+        this.buffer = new byte[Math.min(capacity, INITIAL_BUFFER_SIZE)];
+        this.view = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Appends a record to the history of an element.
+     *
+     * @param key    key of element
+     * @param record the record
+     * @param length number of bytes of the record
+     */
+    void append(long key, byte[] record, int length) throws IOException {
+        int size = HEADER_SIZE + length;
+        if (position + size > capacity && position > 0) {
+            spill();
+        }
+        if (position + size > buffer.length) {
+            grow(position + size);
+        }
+
+        int offset = position;
+        view.putInt(offset, NO_RECORD);
+        view.putInt(offset + 4, length);
+        System.arraycopy(record, 0, buffer, offset + HEADER_SIZE, length);
+        position += size;
+        recordCount++;
+
+        int[] chain = chains.get(key);
+        if (chain == null) {
+            chains.put(key, new int[]{offset, offset});
+        } else {
+            view.putInt(chain[1], offset);
+            chain[1] = offset;
+        }
+    }
+
+    /**
+     * Opens a cursor over the history of every element. No records may be appended once the cursor is opened.
+     *
+     * @return cursor positioned before the first element
+     */
+    Cursor cursor() throws IOException {
+        List<Run> sources = new ArrayList<>();
+        try {
+            for (File run : runs) {
+                sources.add(new FileRun(run));
+            }
+        } catch (IOException e) {
+            for (Run source : sources) {
+                source.close();
+            }
+            throw e;
+        }
+        sources.add(new MemoryRun());
+        return new Cursor(sources);
+    }
+
+    /**
+     * Deletes the runs spilled to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        for (File run : runs) {
+            if (run.exists() && !run.delete()) {
+                Log.warn(LogCategory.GEXF, "Could not delete " + run);
+            }
+        }
+        runs.clear();
+        chains.clear();
+        position = 0;
+        recordCount = 0;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private void grow(int minimum) {
+        int size = Math.max(minimum, Math.min(capacity, buffer.length * 2));
+        buffer = Arrays.copyOf(buffer, size);
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    private long[] sortedKeys() {
+        long[] keys = chains.keys();
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Writes the buffered records to a run on disk, sorted by key, and empties the buffer.
+     */
+    private void spill() throws IOException {
+        spillDirectory.mkdirs();
+        File run = File.createTempFile("history-", ".run", spillDirectory);
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)
+                , STREAM_BUFFER_SIZE))) {
+            out.writeInt(recordCount);
+            for (long key : sortedKeys()) {
+                for (int offset = chains.get(key)[0]; offset != NO_RECORD; offset = view.getInt(offset)) {
+                    int length = view.getInt(offset + 4);
+                    out.writeLong(key);
+                    out.writeInt(length);
+                    out.write(buffer, offset + HEADER_SIZE, length);
+                }
+            }
+        }
+        Log.debug(LogCategory.GEXF, "Spilled " + recordCount + " records of " + chains.size() + " elements to "
+                + run);
+
+        chains.clear();
+        position = 0;
+        recordCount = 0;
+    }
+
+    /**
+     * Records of a run, in order of key.
+     */
+    private abstract static class Run implements Closeable {
+        final int index;
+        long key;
+        byte[] record;
+
+        Run(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Moves to the next record of the run.
+         *
+         * @return false if there are no more records
+         */
+        abstract boolean advance() throws IOException;
+    }
+
+    private final class MemoryRun extends Run {
+        private final long[] keys;
+        private int keyIndex = -1;
+        private int offset = NO_RECORD;
+
+        private MemoryRun() {
+            super(runs.size());
+            this.keys = sortedKeys();
+        }
+
+        @Override
+        boolean advance() {
+            if (offset != NO_RECORD) {
+                offset = view.getInt(offset);
+            }
+            if (offset == NO_RECORD) {
+                if (++keyIndex == keys.length) {
+                    return false;
+                }
+                key = keys[keyIndex];
+                offset = chains.get(key)[0];
+            }
+            record = Arrays.copyOfRange(buffer, offset + HEADER_SIZE, offset + HEADER_SIZE + view.getInt(offset + 4));
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final class FileRun extends Run {
+        private final DataInputStream in;
+        private int remaining;
+
+        private FileRun(File run) throws IOException {
+            super(runs.indexOf(run));
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), STREAM_BUFFER_SIZE));
+            this.remaining = in.readInt();
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            key = in.readLong();
+            record = new byte[in.readInt()];
+            in.readFully(record);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Cursor over the history of every element, merging the runs of the history.
+     */
+    final class Cursor implements Closeable {
+        private final List<Run> sources;
+        private final PriorityQueue<Run> queue;
+        private final List<byte[]> records = new ArrayList<>();
+        private long key;
+
+        private Cursor(List<Run> sources) throws IOException {
+            this.sources = sources;
+            this.queue = new PriorityQueue<>(Math.max(sources.size(), 1), new Comparator<Run>() {
+                @Override
+                public int compare(Run first, Run second) {
+                    int order = Long.compare(first.key, second.key);
+                    return order != 0 ? order : Integer.compare(first.index, second.index);
+                }
+            });
+            for (Run source : sources) {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        /**
+         * Moves to the next element.
+         *
+         * @return false if there are no more elements
+         */
+        boolean next() throws IOException {
+            records.clear();
+            if (queue.isEmpty()) {
+                return false;
+            }
+            key = queue.peek().key;
+            // runs were spilled in order, so the records of an element stay in the order they were appended
+            while (!queue.isEmpty() && queue.peek().key == key) {
+                Run source = queue.poll();
+                boolean more;
+                do {
+                    records.add(source.record);
+                    more = source.advance();
+                } while (more && source.key == key);
+                if (more) {
+                    queue.add(source);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return key of the current element
+         */
+        long key() {
+            checkState(!records.isEmpty(), "Cursor is not positioned at an element");
+            return key;
+        }
+
+        /**
+         * @return records of the current element, in the order they were appended
+         */
+        List<byte[]> records() {
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Run source : sources) {
+                source.close();
+            }
+        }
+    }
+}
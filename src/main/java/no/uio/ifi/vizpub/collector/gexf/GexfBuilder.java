@@ -1,31 +1,47 @@
 package no.uio.ifi.vizpub.collector.gexf;
 
 import com.esotericsoftware.minlog.Log;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import com.google.gson.Gson;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.GsonBuilder;
 import it.uniroma1.dis.wsngroup.gexf4j.core.*;
-import it.uniroma1.dis.wsngroup.gexf4j.core.dynamic.Spell;
-import it.uniroma1.dis.wsngroup.gexf4j.core.dynamic.TimeFormat;
-import it.uniroma1.dis.wsngroup.gexf4j.core.impl.GexfImpl;
-import it.uniroma1.dis.wsngroup.gexf4j.core.impl.SpellImpl;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeList;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeValue;
+import it.uniroma1.dis.wsngroup.gexf4j.core.impl.EdgeImpl;
+import it.uniroma1.dis.wsngroup.gexf4j.core.impl.NodeImpl;
 import it.uniroma1.dis.wsngroup.gexf4j.core.impl.StaxGraphWriter;
 import no.uio.ifi.vizpub.collector.CollectorWorker;
 import no.uio.ifi.vizpub.reports.EdgeData;
 import no.uio.ifi.vizpub.reports.NodeData;
 import no.uio.ifi.vizpub.reports.PubMessage;
 import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.SymbolTable;
+import no.uio.ifi.vizpub.reports.io.ReportFiles;
+import no.uio.ifi.vizpub.reports.io.ReportSource;
 import no.uio.ifi.vizpub.utils.LogCategory;
-import no.uio.ifi.vizpub.utils.gson.MultimapDeserializer;
+import no.uio.ifi.vizpub.utils.collect.IntObjectMap;
+import no.uio.ifi.vizpub.utils.collect.LongObjectMap;
 import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -70,41 +86,157 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * .withHitRatioPerTopic()
  * .withHitRatioPerPublication()
  * .build();}
+ * <p/>
+ * The dissemination overlays of every publication of a run can be built in a single pass over the reports by
+ * <code>createDisseminationOverlays</code>, rather than reading the reports once per publication.
+ * <p/>
+ * Structural overlays are streamed to the gexf file by a <class>StreamingGexfWriter</class>, so only the nodes and
+ * edges alive at the current reporting interval are kept in memory while the reports are added. The spells and
+ * attribute values of the run are kept in a history buffer of <code>historyBufferSize</code> bytes, and spilled to
+ * <code>reports/</code> beyond that.
+ * <p/>
+ * Attribute values of nodes and edges are run-length encoded, so a value spans every reporting interval it stays the
+ * same for. Values of double attributes of structural overlays are considered the same as long as they differ by at
+ * most <code>valueTolerance</code>.
+ * <p/>
+ * If <code>temporalGraphStore</code> is set, the spells of structural overlays are also written to a
+ * <class>TemporalGraphStore</class> next to the gexf file, for querying the overlay at any reporting interval. If
+ * <code>nodeSeries</code> is set, the attributes of every node at every reporting interval are also written to a
+ * columnar <class>NodeSeriesWriter</class> file next to it, for analysis tools. The series of a run can also be
+ * exported on their own by <code>createNodeSeries</code>.
+ * <p/>
+ * The metrics of the subgraph of each topic at every reporting interval of a run can be written to a csv file by
+ * <code>createTopicMetrics</code>, which indexes the subgraphs by a <class>TopicIndex</class> from the topics of
+ * the reported nodes.
+ * <p/>
+ * Gexf files are gzip compressed if so configured by <code>configureOutput</code>. Structural overlays of long runs
+ * may also be split into slices of a fixed number of reporting intervals, each written to a gexf file of its own
+ * which can be opened on its own, and listed in a json manifest.
  *
  * @author Nils Peder Korsveien
  */
 public class GexfBuilder {
+    public static final int DEFAULT_HISTORY_BUFFER_SIZE = 32 << 20;
+    public static final String SPILL_DIRECTORY = "reports/";
+    public static final String MANIFEST_EXTENSION = ".manifest.json";
+
+    /**
+     * Run-wide handles of node ids. Nodes are keyed by their handle, and edges by the packed handles
+     * of their endpoints.
+     */
+    private SymbolTable nodeIds;
 
-    private Map<String, Node> aliveNodes;
-    private Map<String, Edge> aliveEdges;
-    private Map<String, Node> deadNodes;
-    private Map<String, Edge> deadEdges;
-    private Map<String, Spell> nodeSpells;
-    private Map<String, Spell> edgeSpells;
     private NodeAttributes nodeAttributes;
     private EdgeAttributes edgeAttributes;
-    private Graph graph;
-    private it.uniroma1.dis.wsngroup.gexf4j.core.Gexf gexf;
 
-    private Map<String, EdgeData> edges;
+    private final int historyBufferSize;
+    private final double valueTolerance;
+    private final boolean temporalGraphStore;
+    private final boolean nodeSeries;
 
-    private double animationLength;
+    /**
+     * Whether gexf files are gzip compressed, and the number of reporting intervals of each slice of a structural
+     * overlay, or 0 if overlays are not sliced
+     */
+    private boolean compressed;
+    private int sliceLength;
+
+    /**
+     * Writer of the structural overlay being built, and the lifetimes of its nodes and edges alive at the current
+     * reporting interval
+     */
+    private StreamingGexfWriter overlayWriter;
+    private NodeSeriesWriter seriesWriter;
+    private IntObjectMap<Lifetime> nodeLifetimes;
+    private LongObjectMap<Lifetime> edgeLifetimes;
+
+    /**
+     * Receives the attribute values of a new edge, before they are recorded
+     */
+    private final Edge scratchEdge = new EdgeImpl("scratch", new NodeImpl("source"), new NodeImpl("target"));
 
     /**
-     * Key:   hop count + reporting interval
-     * Value: the dissemination edge
+     * Attribute values which can no longer be extended, before they are recorded
      */
-    Multimap<Double, EdgeData> disseminationEdges;
+    private final List<AttributeValue> endedValues = new ArrayList<>();
+
+    /**
+     * Handles of the nodes reported in the current reporting interval, in the order they were reported, and of the
+     * live neighbors of the node being diffed
+     */
+    private int[] reportedNodes;
+    private int[] neighbors;
+
+    /**
+     * First reporting interval of the structural overlay, and the number of reporting intervals added to it
+     */
+    private double firstReportingInterval;
+    private double reportingIntervalCount;
 
     public GexfBuilder() {
-        aliveNodes = new HashMap<>();
-        aliveEdges = new HashMap<>();
-        deadNodes = new HashMap<>();
-        deadEdges = new HashMap<>();
-        nodeSpells = new HashMap<>();
-        edgeSpells = new HashMap<>();
-        edges = new HashMap<>();
-        animationLength = 0;
+        this(DEFAULT_HISTORY_BUFFER_SIZE);
+    }
+
+    /**
+     * @param historyBufferSize number of bytes of structural overlay history to keep in memory before spilling it
+     *                          to disk
+     */
+    public GexfBuilder(int historyBufferSize) {
+        this(historyBufferSize, 0);
+    }
+
+    /**
+     * @param historyBufferSize number of bytes of structural overlay history to keep in memory before spilling it
+     *                          to disk
+     * @param valueTolerance    largest difference between values of a double node attribute which are considered
+     *                          the same
+     */
+    public GexfBuilder(int historyBufferSize, double valueTolerance) {
+        this(historyBufferSize, valueTolerance, false);
+    }
+
+    /**
+     * @param historyBufferSize  number of bytes of structural overlay history to keep in memory before spilling it
+     *                           to disk
+     * @param valueTolerance     largest difference between values of a double node attribute which are considered
+     *                           the same
+     * @param temporalGraphStore whether to write a temporal graph store along with each structural overlay
+     */
+    public GexfBuilder(int historyBufferSize, double valueTolerance, boolean temporalGraphStore) {
+        this(historyBufferSize, valueTolerance, temporalGraphStore, false);
+    }
+
+    /**
+     * @param historyBufferSize  number of bytes of structural overlay history to keep in memory before spilling it
+     *                           to disk
+     * @param valueTolerance     largest difference between values of a double node attribute which are considered
+     *                           the same
+     * @param temporalGraphStore whether to write a temporal graph store along with each structural overlay
+     * @param nodeSeries         whether to write the node series along with each structural overlay
+     */
+    public GexfBuilder(int historyBufferSize, double valueTolerance, boolean temporalGraphStore, boolean nodeSeries) {
+        this.historyBufferSize = historyBufferSize;
+        this.valueTolerance = valueTolerance;
+        this.temporalGraphStore = temporalGraphStore;
+        this.nodeSeries = nodeSeries;
+        nodeIds = new SymbolTable();
+        nodeLifetimes = new IntObjectMap<>();
+        edgeLifetimes = new LongObjectMap<>();
+        reportedNodes = new int[1024];
+        neighbors = new int[64];
+    }
+
+    /**
+     * Sets how gexf files are written from now on.
+     *
+     * @param compressed  whether to gzip compress the gexf files
+     * @param sliceLength number of reporting intervals of each slice of a structural overlay, or 0 to write the
+     *                    overlay to a single gexf file
+     */
+    public void configureOutput(boolean compressed, int sliceLength) {
+        checkArgument(sliceLength >= 0, "Slice length must not be negative");
+        this.compressed = compressed;
+        this.sliceLength = sliceLength;
     }
 
     /**
@@ -122,153 +254,208 @@ public class GexfBuilder {
 
         clearCaches();
 
-        gexf = new GexfImpl();
-        gexf.getMetadata()
-                .setCreator("VizPub")
-                .setDescription("Dissemination Overlay for publication message " + messageId)
-                .setLastModified(Calendar.getInstance().getTime());
-
-        graph = gexf.getGraph()
-                .setDefaultEdgeType(EdgeType.DIRECTED)
-                .setIDType(IDType.STRING)
-                .setMode(Mode.DYNAMIC)
-                .setTimeType(TimeFormat.DOUBLE);
+        DisseminationTrace trace = new DisseminationTrace(messageId, nodeIds);
+        Report overlay = null;
+        ReportSource source = openSource(directory, protocolName);
+        Report next;
+        while ((next = importReport(source)) != null) {
+            overlay = next;
+            trace.addInterval(overlay);
+        }
 
-        nodeAttributes = NodeAttributes.builder()
-                .withTopics()
-                .withHopCount()
-                .withDuplicateCount()
-                .build();
+        String filePath = createFilePath(protocolName, messageId);
+        exportToGexfFile(filePath, trace.finish(overlay));
+    }
 
-        graph.getAttributeLists().add(nodeAttributes.getAttributes());
+    /**
+     * Creates a gexf dissemination overlay for every publication based on data collected from reporter, reading the
+     * reports only once.
+     * <p/>
+     * The publications, the nodes subscribing to each topic and the edges carrying each publication are indexed once
+     * per reporting interval, and the overlays of every publication reported in the interval are built from the
+     * index. The overlays are written to one file per publication, on <code>threads</code> threads.
+     *
+     * @param directory    directory of reports
+     * @param protocolName name of protocol described by reports
+     * @param threads      number of threads writing the overlays
+     * @return paths of the gexf files, by message id
+     * @see #createDisseminationOverlay(String, String, String)
+     */
+    public Map<String, String> createDisseminationOverlays(String directory, final String protocolName, int threads) {
+        checkArgument(threads > 0, "At least one writer thread is required");
+        Log.info(LogCategory.GEXF, "Creating dissemination graphs of every publication");
 
-        disseminationEdges = HashMultimap.create();
+        clearCaches();
 
-        File[] dirContents = getDir(directory, protocolName);
-        double reportingIntervalCount = 0;
+        Map<String, DisseminationTrace> traces = new LinkedHashMap<>();
+        ListMultimap<String, NodeData> subscribers = ArrayListMultimap.create();
+        ListMultimap<String, EdgeData> carriers = ArrayListMultimap.create();
         Report overlay = null;
-        for (File file : dirContents) {
-            overlay = importJsonReport(file);
-            PubMessage msg = overlay.getPublication(messageId);
-            if (msg == null) {
+        ReportSource source = openSource(directory, protocolName);
+        Report next;
+        while ((next = importReport(source)) != null) {
+            overlay = next;
+            if (overlay.getPublications().isEmpty()) {
                 continue;
             }
-            addNodes(reportingIntervalCount, overlay, msg.getTopicId());
-            removeDeadNodes(reportingIntervalCount, overlay);
-            addDisseminationEdges(reportingIntervalCount, overlay, messageId);
+            indexPublications(overlay, subscribers, carriers);
 
-            reportingIntervalCount++;
+            for (PubMessage msg : overlay.getPublications().values()) {
+                DisseminationTrace trace = traces.get(msg.getMsgId());
+                if (trace == null) {
+                    trace = new DisseminationTrace(msg.getMsgId(), nodeIds);
+                    traces.put(msg.getMsgId(), trace);
+                }
+                trace.addInterval(overlay, msg, subscribers.get(msg.getTopicId()), carriers.get(msg.getMsgId()));
+            }
+            subscribers.clear();
+            carriers.clear();
         }
+        Log.info(LogCategory.GEXF, "Traced " + traces.size() + " publications, writing overlays...");
 
-        // Add remaining dissemination edges if the number of animation steps
-        // is longer than the actual number of reporting intervals
-        double animationStep = reportingIntervalCount;
-        for (; animationStep <= animationLength; animationStep++) {
-            createDisseminationEdges(animationStep, overlay);
-        }
+        ExecutorService writers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("gexf-writer-%d")
+                .setDaemon(true)
+                .build());
+        Map<String, Future<String>> filePaths = new LinkedHashMap<>();
+        try {
+            Iterator<DisseminationTrace> pending = traces.values().iterator();
+            while (pending.hasNext()) {
+                DisseminationTrace trace = pending.next();
+                // let the overlay be collected once written
+                pending.remove();
+                final String messageId = trace.getMessageId();
+                // finished on this thread, since the traces share the symbol table of the run
+                final it.uniroma1.dis.wsngroup.gexf4j.core.Gexf gexf = trace.finish(overlay);
+                filePaths.put(messageId, writers.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        String filePath = createFilePath(protocolName, messageId);
+                        exportToGexfFile(filePath, gexf);
+                        return filePath;
+                    }
+                }));
+            }
 
-        for (Edge edge : aliveEdges.values()) {
-            edge.setEndValue(animationStep);
-        }
-        for (Node node : aliveNodes.values()) {
-            node.setEndValue(animationStep);
+            Map<String, String> written = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<String>> filePath : filePaths.entrySet()) {
+                written.put(filePath.getKey(), filePath.getValue().get());
+            }
+            return written;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not write dissemination overlay", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing dissemination overlays", e);
+        } finally {
+            writers.shutdownNow();
         }
-        String filePath = createFilePath(protocolName, messageId);
-        exportToGexfFile(filePath, gexf);
     }
 
     private void clearCaches() {
-        aliveNodes.clear();
-        aliveEdges.clear();
-        deadNodes.clear();
-        deadEdges.clear();
-        nodeSpells.clear();
-        edgeSpells.clear();
+        nodeIds = new SymbolTable();
+        nodeLifetimes.clear();
+        edgeLifetimes.clear();
     }
 
-    private void addDisseminationEdges(double reportingIntervalCount, Report overlay, String messageId) {
-        checkNotNull(overlay, "No overlay found");
-
-        for (EdgeData edgeData : overlay.getEdges().values()) {
-            Map<String, PubMessage> publications = edgeData.getPublicationsMessages();
+    /**
+     * Creates a gexf structural overlay based on data collected from reporter.
+     *
+     * @param directory    directory of reports
+     * @param protocolName name of protocol described by reports
+     */
+    public void createStructuralOverlay(String directory, String protocolName) {
+        beginStructuralOverlay();
 
-            if (publications == null || publications.isEmpty()) {
-                continue;
-            }
+        ReportSource source = openSource(directory, protocolName);
+        Report next;
+        while ((next = importReport(source)) != null) {
+            addStructuralInterval(next);
+        }
+        finishStructuralOverlay(protocolName);
 
-            PubMessage pubMessage = edgeData.getPublicationsMessages().get(messageId);
-            if (pubMessage != null) {
-                double animationStep = pubMessage.getHopCount() + reportingIntervalCount;
+        try {
+            FileUtils.deleteDirectory(new File(CollectorWorker.REPORT_PROCESSED));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                if (animationStep > animationLength) {
-                    animationLength = animationStep;
-                }
-                disseminationEdges.put(animationStep, edgeData);
-//                Log.debug(LogCategory.GEXF, "Adding dissemination edge: " + edgeData + " at step " + animationStep);
+    /**
+     * Exports the attributes of every node at every reporting interval of a run to a columnar file, for analysis
+     * tools. The reports are left in place.
+     *
+     * @param directory    directory of reports
+     * @param protocolName name of protocol described by reports
+     * @return path of the series file
+     * @see NodeSeriesWriter
+     */
+    public String createNodeSeries(String directory, String protocolName) {
+        String filePath = createFilePath(protocolName, null, NodeSeriesWriter.FILE_EXTENSION);
+        ReportSource source = openSource(directory, protocolName);
+        try (NodeSeriesWriter writer = new NodeSeriesWriter(new File(filePath))) {
+            Report next;
+            while ((next = importReport(source)) != null) {
+                writer.addInterval(next);
             }
+            Log.info(LogCategory.GEXF, "Writing node series to " + writer.getFile().getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        createDisseminationEdges(reportingIntervalCount, overlay);
+        return filePath;
     }
 
-    private void createDisseminationEdges(double animationStep, Report overlay) {
-        checkNotNull(overlay);
-
-        for (EdgeData edgeData : disseminationEdges.get(animationStep)) {
-
-            if (!aliveEdges.containsKey(edgeData.getId())) {
-
-                Node sourceNode = aliveNodes.get(edgeData.getSourceId());
-                Node targetNode = aliveNodes.get(edgeData.getTargetId());
-
-                if (sourceNode == null) {
-                    sourceNode = graph.createNode(edgeData.getSourceId())
-                            .setLabel(createNodeLabel(overlay, Long.parseLong(edgeData.getSourceId())));
-                    aliveNodes.put(sourceNode.getId(), sourceNode);
-                }
-
-                if (targetNode == null) {
-                    targetNode = graph.createNode(edgeData.getTargetId())
-                            .setLabel(createNodeLabel(overlay, Long.parseLong(edgeData.getTargetId())));
-                    aliveNodes.put(targetNode.getId(), targetNode);
+    /**
+     * Writes the metrics of the subgraph of every topic at every reporting interval of a run to a csv file, with
+     * the interval, topic, number of members and edges, and diameter on each line. The reports are left in place.
+     *
+     * @param directory    directory of reports
+     * @param protocolName name of protocol described by reports
+     * @return path of the csv file
+     * @see TopicIndex
+     */
+    public String createTopicMetrics(String directory, String protocolName) {
+        String filePath = createFilePath(protocolName, "topics", ".csv");
+        ReportSource source = openSource(directory, protocolName);
+        TopicIndex index = new TopicIndex(new SymbolTable());
+        try (Writer out = new BufferedWriter(new FileWriter(filePath, false))) {
+            out.write("interval;topic;members;edges;diameter\n");
+            Report next;
+            while ((next = importReport(source)) != null) {
+                index.update(next);
+                for (String topic : index.getTopics()) {
+                    out.write(index.getInterval() + ";" + topic + ";" + index.getMemberCount(topic) + ";"
+                            + index.getEdgeCount(topic) + ";" + index.getDiameter(topic) + "\n");
                 }
-
-                sourceNode.setEndValue(animationStep);
-                targetNode.setEndValue(animationStep);
-
-                Edge edge = sourceNode.connectTo(edgeData.getId(), targetNode)
-                        .setLabel(edgeData.getId())
-                        .setEdgeType(EdgeType.DIRECTED)
-                        .setWeight(1f);
-
-                edge.setStartValue(animationStep);
-
-                aliveEdges.put(edgeData.getId(), edge);
             }
+            Log.info(LogCategory.GEXF, "Writing topic metrics to " + new File(filePath).getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return filePath;
     }
 
     /**
-     * Creates a gexf structural overlay based on data collected from reporter.
+     * Starts building a structural overlay, to which the reports of each interval are added as they become
+     * available, e.g. while the experiment is still running.
      *
-     * @param directory    directory of reports
-     * @param protocolName name of protocol described by reports
+     * @see #addStructuralInterval(Report)
+     * @see #finishStructuralOverlay(String)
      */
-    public void createStructuralOverlay(String directory, String protocolName) {
+    public void beginStructuralOverlay() {
         Log.info(LogCategory.GEXF, "Creating reports graph");
 
         clearCaches();
-
-        gexf = new GexfImpl();
-        gexf.getMetadata()
-                .setCreator("VizPub")
-                .setDescription("Structural Overlay")
-                .setLastModified(Calendar.getInstance().getTime());
-
-        graph = gexf.getGraph()
-                .setDefaultEdgeType(EdgeType.DIRECTED)
-                .setIDType(IDType.STRING)
-                .setMode(Mode.DYNAMIC)
-                .setTimeType(TimeFormat.DOUBLE);
+        closeOverlayWriter();
+        overlayWriter = new StreamingGexfWriter(nodeIds, new File(SPILL_DIRECTORY), historyBufferSize);
+        if (nodeSeries) {
+            try {
+                // named after the gexf file once the overlay is finished
+                seriesWriter = new NodeSeriesWriter(File.createTempFile("series-", ".tmp", new File(SPILL_DIRECTORY)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
         nodeAttributes = NodeAttributes.builder()
                 .withTopics()
@@ -282,6 +469,7 @@ public class GexfBuilder {
 //                .withHitRatio()
 //                .withPathLength()
                 .withDuplicateCount()
+                .withTolerance(valueTolerance)
                 .build();
 
         /**
@@ -292,165 +480,310 @@ public class GexfBuilder {
 //                .withPublications()
                 .build();
 
-        graph.getAttributeLists().add(nodeAttributes.getAttributes());
-        graph.getAttributeLists().add(edgeAttributes.getAttributes());
+        firstReportingInterval = 0;
+        reportingIntervalCount = 0;
+    }
 
-        File[] dirContents = getDir(directory, protocolName);
+    /**
+     * Adds the report describing the whole system at the next reporting interval to the structural overlay.
+     *
+     * @param overlay report merged from every host at the interval
+     */
+    public void addStructuralInterval(Report overlay) {
+        checkNotNull(overlayWriter, "Structural overlay has not been started");
 
-        double reportingIntervalCount = 0;
-        Report overlay = null;
-        for (File file : dirContents) {
+        try {
+            addStructuralNodes(reportingIntervalCount, overlay);
+            diffEdges(reportingIntervalCount, overlay);
+            removeDeadStructuralNodes(reportingIntervalCount);
+            if (seriesWriter != null) {
+                seriesWriter.addInterval(overlay);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not record overlay history", e);
+        }
 
-            overlay = importJsonReport(file);
+        reportingIntervalCount++;
+    }
 
-            addNodes(reportingIntervalCount, overlay, null);
-            removeDeadNodes(reportingIntervalCount, overlay);
-            addEdges(reportingIntervalCount);
-            removeDeadEdges(reportingIntervalCount);
+    /**
+     * Writes the structural overlay built so far to a gexf file, or to a gexf file per slice if the overlay is
+     * sliced, see <code>configureOutput</code>.
+     *
+     * @param protocolName name of protocol described by the overlay
+     * @return path of the gexf file, or of the manifest of the slices
+     */
+    public String finishStructuralOverlay(String protocolName) {
+        return finishStructuralOverlay(protocolName, null);
+    }
 
-            reportingIntervalCount++;
+    /**
+     * Creates a gexf structural overlay of a window of the reporting intervals of a run, e.g. around a churn event,
+     * optionally limited to some of the nodes. Reading starts straight at the first interval of the window, and only
+     * the reports of the window are read, so the time taken is proportional to the window rather than to the length
+     * of the run. The reports are left in place.
+     * <p/>
+     * The time of the overlay starts at the first reporting interval of the window, and each report is placed at its
+     * own reporting interval. Only edges between nodes accepted by the filter are included.
+     *
+     * @param directory    directory of reports
+     * @param protocolName name of protocol described by reports
+     * @param fromInterval first reporting interval of the window
+     * @param toInterval   reporting interval following the window
+     * @param nodeFilter   accepts the ids of the nodes to include, or null to include every node
+     * @return path of the gexf file, or of the manifest of the slices
+     */
+    public String createStructuralOverlay(String directory, String protocolName, int fromInterval, int toInterval
+            , Predicate<String> nodeFilter) {
+        checkArgument(fromInterval < toInterval, "Window must not be empty");
+        beginStructuralOverlay();
+
+        ReportSource source = openSource(directory, protocolName, fromInterval, toInterval);
+        Report next = importReport(source);
+        if (next != null) {
+            firstReportingInterval = next.getIntervalCount();
+        }
+        for (; next != null; next = importReport(source)) {
+            // an interval missing from the window leaves a gap, rather than shifting the intervals which follow it
+            reportingIntervalCount = next.getIntervalCount();
+            addStructuralInterval(nodeFilter == null ? next : filterNodes(next, nodeFilter));
         }
+        return finishStructuralOverlay(protocolName, fromInterval + "-" + toInterval);
+    }
 
-        String filePath = createFilePath(protocolName, null);
-        exportToGexfFile(filePath, gexf);
+    private String finishStructuralOverlay(String protocolName, String suffix) {
+        checkNotNull(overlayWriter, "Structural overlay has not been started");
 
+        String basePath = createFilePath(protocolName, suffix, "");
+        String filePath = basePath + gexfExtension();
         try {
-            FileUtils.forceDelete(new File(CollectorWorker.REPORT_PROCESSED));
-            FileUtils.forceDelete(new File(CollectorWorker.REPORT_UNPROCESSED));
+            // the spells of the nodes and edges still alive have not ended
+            for (int nodeHandle : nodeLifetimes.keys()) {
+                Lifetime lifetime = nodeLifetimes.get(nodeHandle);
+                lifetime.addTo(overlayWriter, nodeHandle);
+                nodeAttributes.close(lifetime.node);
+                overlayWriter.addNodeValues(nodeHandle, lifetime.node.getAttributeValues());
+            }
+            double lastInterval = reportingIntervalCount - 1;
+            for (long edgeKey : edgeLifetimes.keys()) {
+                Lifetime lifetime = edgeLifetimes.get(edgeKey);
+                // edges are not touched while they live, so end those which lived beyond their first interval
+                if (lifetime.start < lastInterval) {
+                    lifetime.end = lastInterval + 1;
+                }
+                lifetime.addTo(overlayWriter, edgeKey);
+            }
+            List<AttributeList> attributeLists = Arrays.asList(nodeAttributes.getAttributes()
+                    , edgeAttributes.getAttributes());
+            if (sliceLength > 0 && reportingIntervalCount > firstReportingInterval) {
+                filePath = writeSlices(basePath, attributeLists);
+            } else {
+                File f = new File(filePath);
+                overlayWriter.write(f, "Structural Overlay", attributeLists);
+                Log.info(LogCategory.GEXF, "Writing GEXF file to " + f.getAbsolutePath());
+            }
+            if (temporalGraphStore) {
+                File store = new File(basePath + TemporalGraphStore.FILE_EXTENSION);
+                overlayWriter.writeTemporalGraph(store);
+                Log.info(LogCategory.GEXF, "Writing temporal graph store to " + store.getAbsolutePath());
+            }
+            if (seriesWriter != null) {
+                File series = new File(basePath + NodeSeriesWriter.FILE_EXTENSION);
+                seriesWriter.close();
+                Files.move(seriesWriter.getFile().toPath(), series.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Log.info(LogCategory.GEXF, "Writing node series to " + series.getAbsolutePath());
+            }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            closeOverlayWriter();
         }
 //        calculateAverages(reportingIntervalCount, filePath, overlay.getTopics());
+        return filePath;
     }
 
+    private ReportSource openSource(String directory, String protocolName) {
+        return openSource(directory, protocolName, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
 
-    private File[] getDir(String directory, String protocolName) {
+    private ReportSource openSource(String directory, String protocolName, int fromInterval, int toInterval) {
         File dir = new File(directory + protocolName);
-        checkNotNull(dir, "Could not find directory " + directory);
         Log.debug(LogCategory.GEXF, "dir: " + dir);
 
-        File[] dirContents = dir.listFiles();
-
-        checkNotNull(dirContents, "Could not find contents of directory " + dir);
-        Arrays.sort(dirContents);
-        return dirContents;
+        ReportSource source = null;
+        try {
+            int threads = Runtime.getRuntime().availableProcessors();
+            source = ReportFiles.openMergedSource(dir, threads, threads * 2, fromInterval, toInterval);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        checkNotNull(source, "Could not open reports in directory " + dir);
+        return source;
     }
 
-    private void removeDeadEdges(double reportingIntervalCount) {
-        List<String> killEdges = new ArrayList<>();
-        for (String edgeId : aliveEdges.keySet()) {
-
-            // this edge is dead
-            if (!edges.containsKey(edgeId)) {
-                Edge deadEdge = aliveEdges.get(edgeId);
-                Spell deadSpell = edgeSpells.get(edgeId);
-                deadSpell.setEndValue(reportingIntervalCount);
-                deadEdge.getSpells().add(deadSpell);
-                deadEdges.put(edgeId, deadEdge);
-
-                // cannot remove edge directly since we are iterating through the collection
-                killEdges.add(edgeId);
-
+    private void closeOverlayWriter() {
+        if (seriesWriter != null) {
+            try {
+                seriesWriter.close();
+                Files.deleteIfExists(seriesWriter.getFile().toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            seriesWriter = null;
+        }
+        if (overlayWriter == null) {
+            return;
         }
+        try {
+            overlayWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        overlayWriter = null;
+    }
 
-        // remove the edges safely when done iterating through it
-        for (String edgeId : killEdges) {
-            aliveEdges.remove(edgeId);
+    /**
+     * Writes the structural overlay to a gexf file per slice, on one writer per processor, and lists the slices in a
+     * manifest. The last slice ends at the last reporting interval added.
+     *
+     * @param basePath path the files are named after
+     * @return path of the manifest
+     */
+    private String writeSlices(String basePath, List<AttributeList> attributeLists) throws IOException {
+        List<StreamingGexfWriter.Slice> slices = new ArrayList<>();
+        for (double start = firstReportingInterval; start < reportingIntervalCount; start += sliceLength) {
+            double end = Math.min(start + sliceLength, reportingIntervalCount);
+            slices.add(new StreamingGexfWriter.Slice(new File(basePath + "_" + (int) start + "-" + (int) end
+                    + gexfExtension()), start, end));
+        }
+        Log.info(LogCategory.GEXF, "Writing " + slices.size() + " GEXF slices to " + new File(basePath + "_*")
+                .getAbsolutePath());
+        overlayWriter.writeSlices(slices, "Structural Overlay", attributeLists
+                , Runtime.getRuntime().availableProcessors());
+
+        Manifest manifest = new Manifest();
+        manifest.start = firstReportingInterval;
+        manifest.end = reportingIntervalCount;
+        manifest.sliceLength = sliceLength;
+        manifest.slices = new ArrayList<>(slices.size());
+        for (StreamingGexfWriter.Slice slice : slices) {
+            ManifestSlice entry = new ManifestSlice();
+            entry.file = slice.getFile().getName();
+            entry.start = slice.getStart();
+            entry.end = slice.getEnd();
+            entry.nodes = slice.getNodeCount();
+            entry.edges = slice.getEdgeCount();
+            manifest.slices.add(entry);
         }
-        killEdges.clear();
-        edges.clear();
+        String manifestPath = basePath + MANIFEST_EXTENSION;
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(manifestPath, false), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(manifest, out);
+        }
+        Log.info(LogCategory.GEXF, "Writing GEXF manifest to " + new File(manifestPath).getAbsolutePath());
+        return manifestPath;
     }
 
-    private void removeDeadNodes(double reportingIntervalCount, Report overlay) {
-        List<String> killNodes = new ArrayList<>();
-        for (String nodeId : aliveNodes.keySet()) {
-            NodeData nodeData = overlay.getNode(nodeId);
+    private void removeDeadStructuralNodes(double reportingIntervalCount) throws IOException {
+        int generation = (int) reportingIntervalCount;
+        for (int nodeHandle : nodeLifetimes.keys()) {
 
             // this node is dead
-            if (nodeData == null) {
-                Node deadNode = aliveNodes.get(nodeId);
-                Spell deadSpell = nodeSpells.get(nodeId);
-                deadSpell.setEndValue(reportingIntervalCount);
-                deadNode.getSpells().add(deadSpell);
-                deadNodes.put(nodeId, deadNode);
-
-                // cannot remove node directly since we are iterating through the collection
-                killNodes.add(nodeId);
+            if (nodeLifetimes.get(nodeHandle).generation != generation) {
+                Lifetime deadLifetime = nodeLifetimes.remove(nodeHandle);
+                deadLifetime.end = reportingIntervalCount;
+                deadLifetime.addTo(overlayWriter, nodeHandle);
+                nodeAttributes.close(deadLifetime.node);
+                overlayWriter.addNodeValues(nodeHandle, deadLifetime.node.getAttributeValues());
+
+                // so are its edges, while the edges to it died with the neighbor sets of their sources
+                for (int neighborHandle : deadLifetime.neighbors) {
+                    removeEdge(EdgeData.key(nodeHandle, neighborHandle), reportingIntervalCount);
+                }
             }
         }
-        for (String nodeId : killNodes) {
-            aliveNodes.remove(nodeId);
-        }
-        killNodes.clear();
     }
 
+    /**
+     * Diffs the live neighbors of every reported node against its live neighbors at the previous reporting interval.
+     * Only the edges which were born or died are touched, so beyond reading the neighbors of each node, the cost of
+     * an interval is proportional to the churn of the overlay rather than to its size.
+     */
+    private void diffEdges(double reportingIntervalCount, Report overlay) throws IOException {
+        int generation = (int) reportingIntervalCount;
+        int reported = 0;
+        for (NodeData nodeData : overlay.getNodes().values()) {
+            int nodeHandle = reportedNodes[reported++];
 
-    private void addEdges(double reportingIntervalCount) {
-
-        boolean newEdge;
-        for (EdgeData edgeData : edges.values()) {
-
-            Node sourceNode = aliveNodes.get(edgeData.getSourceId());
-            Node targetNode = aliveNodes.get(edgeData.getTargetId());
-
-            checkNotNull(sourceNode, "Could not find source node in gexf graph");
-            checkNotNull(targetNode, "Could not find target node in gexf graph");
-
-            Spell edgeSpell;
-            Edge edge;
-
-            // this is an old edge which has returned
-            if (deadEdges.containsKey(edgeData.getId())) {
-                newEdge = false;
-                edge = deadEdges.get(edgeData.getId());
-                edgeSpell = new SpellImpl();
-                edgeSpell.setStartValue(reportingIntervalCount);
-                edge.getSpells().add(edgeSpell);
+            int count = 0;
+            for (String neighborId : nodeData.getNeighbors()) {
+                int neighborHandle = nodeIds.lookup(neighborId);
+                Lifetime neighbor = neighborHandle == SymbolTable.NO_HANDLE ? null : nodeLifetimes.get(neighborHandle);
 
-                deadEdges.remove(edgeData.getId());
-                aliveEdges.put(edgeData.getId(), edge);
-                edgeSpells.put(edgeData.getId(), edgeSpell);
+                // the neighbor node for edge is down due to churn
+                if (neighbor == null || neighbor.generation != generation) {
+                    continue;
+                }
+                if (count == neighbors.length) {
+                    neighbors = Arrays.copyOf(neighbors, count * 2);
+                }
+                neighbors[count++] = neighborHandle;
             }
-            // this is an edge which existed previous reporting interval
-            else if (aliveEdges.containsKey(edgeData.getId())) {
-                newEdge = false;
-                edge = aliveEdges.get(edgeData.getId());
-                edgeSpell = edgeSpells.get(edgeData.getId());
-
-                // new interval: current interval - next interval
-                edgeSpell.setEndValue(reportingIntervalCount + 1);
+            Arrays.sort(neighbors, 0, count);
+
+            Lifetime lifetime = nodeLifetimes.get(nodeHandle);
+            int[] previous = lifetime.neighbors;
+            boolean changed = false;
+            int p = 0;
+            int c = 0;
+            while (p < previous.length || c < count) {
+                if (c == count || (p < previous.length && previous[p] < neighbors[c])) {
+                    removeEdge(EdgeData.key(nodeHandle, previous[p++]), reportingIntervalCount);
+                    changed = true;
+                } else if (p == previous.length || neighbors[c] < previous[p]) {
+                    addEdge(EdgeData.key(nodeHandle, neighbors[c++]), reportingIntervalCount);
+                    changed = true;
+                } else {
+                    // this is an edge which existed previous reporting interval
+                    p++;
+                    c++;
+                }
             }
-            // this is a new edge
-            else {
-                newEdge = true;
-                edge = sourceNode.connectTo(edgeData.getId(), targetNode)
-                        .setLabel(edgeData.getId())
-                        .setEdgeType(EdgeType.DIRECTED)
-                        .setWeight(1);
-
-                edgeSpell = new SpellImpl()
-                        .setStartValue(reportingIntervalCount)
-                        .setEndIntervalType(IntervalType.OPEN);
-
-                edge.getSpells().add(edgeSpell);
-                edgeSpells.put(edgeData.getId(), edgeSpell);
-                aliveEdges.put(edgeData.getId(), edge);
+            if (changed) {
+                lifetime.neighbors = Arrays.copyOf(neighbors, count);
             }
+        }
+    }
 
-            checkNotNull(edge, "Could not find edge when adding attributes");
+    private void removeEdge(long edgeKey, double reportingIntervalCount) throws IOException {
+        Lifetime deadLifetime = edgeLifetimes.remove(edgeKey);
+        deadLifetime.end = reportingIntervalCount;
+        deadLifetime.addTo(overlayWriter, edgeKey);
+    }
 
-            // only apply topic attribute if the edge is brand new
-            if (newEdge) {
-                edgeAttributes.update(edge
-                        , edgeData
-                        , reportingIntervalCount
-                        , reportingIntervalCount + 1);
-            }
-        }
+    /**
+     * Adds a new edge, or an old edge which has returned.
+     */
+    private void addEdge(long edgeKey, double reportingIntervalCount) throws IOException {
+        edgeLifetimes.put(edgeKey, new Lifetime(reportingIntervalCount));
+
+        String sourceId = nodeIds.symbol(EdgeData.sourceHandle(edgeKey));
+        String targetId = nodeIds.symbol(EdgeData.targetHandle(edgeKey));
+        EdgeData edgeData = EdgeData.newBuilder()
+                .withId(EdgeData.createId(sourceId, targetId))
+                .withSourceId(sourceId)
+                .withTargetId(targetId)
+                .build();
+
+        edgeAttributes.update(scratchEdge
+                , edgeData
+                , reportingIntervalCount
+                , reportingIntervalCount + 1);
+        overlayWriter.addEdgeValues(edgeKey, scratchEdge.getAttributeValues());
+        edgeAttributes.close(scratchEdge);
+        scratchEdge.getAttributeValues().clear();
     }
 
-    private void addNodes(double reportingIntervalCount, Report overlay, String topic) {
+    private void addStructuralNodes(double reportingIntervalCount, Report overlay) throws IOException {
 
         double hitRatio = 0.0;
         if (nodeAttributes.includesHitRatio()) {
@@ -464,115 +797,111 @@ public class GexfBuilder {
             Log.debug(LogCategory.COLLECTOR, "Max path length at interval " + reportingIntervalCount + ": " + maxPathLength);
         }
 
-//        Log.debug(LogCategory.COLLECTOR, "Overlay size : " + overlay.getNodes().size());
-
+        if (reportedNodes.length < overlay.getNodes().size()) {
+            reportedNodes = new int[overlay.getNodes().size()];
+        }
+        int reported = 0;
         for (NodeData nodeData : overlay.getNodes().values()) {
+            int nodeHandle = nodeIds.intern(nodeData.getId());
+            reportedNodes[reported++] = nodeHandle;
 
-            // TODO: ugly solution, should refactor
-            if (topic != null && !nodeData.subscribesTo(topic)) {
-                continue;
-            }
-
-            if (topic == null) {
-
-                // derive edges from node neighbors
-                for (String neighborId : nodeData.getNeighbors()) {
+            Lifetime lifetime = nodeLifetimes.get(nodeHandle);
 
-                    // the neighbor node for edge is down due to churn
-                    if (overlay.getNode(neighborId) == null) {
-                        continue;
-                    }
-
-                    String edgeId = nodeData.getId() + "->" + neighborId;
-
-                    //FIXME: should be configurable
-//                    Set<String> topicsForEdge = new HashSet<>();
-//                    for (String topicId : nodeData.getTopics()) {
-//                        NodeData neighbor = overlay.getNode(neighborId);
-//                        if (neighbor.subscribesTo(topicId)) {
-//                            topicsForEdge.add(topicId);
-//                        }
-//                    }
-
-                    EdgeData edgeData = EdgeData.newBuilder()
-                            .withId(edgeId)
-                            .withSourceId(nodeData.getId())
-                            .withTargetId(neighborId)
-//                            .withTopics(topicsForEdge)
-                            .build();
-
-                    edges.put(edgeId, edgeData);
-                }
-            }
-
-            Spell nodeSpell;
-            Node node;
-
-            // this is an old node which has returned
-            if (deadNodes.containsKey(nodeData.getId())) {
-                node = deadNodes.get(nodeData.getId());
-                nodeSpell = new SpellImpl();
-                nodeSpell.setStartValue(reportingIntervalCount);
-                node.getSpells().add(nodeSpell);
-
-                deadNodes.remove(nodeData.getId());
-                aliveNodes.put(nodeData.getId(), node);
-                nodeSpells.put(nodeData.getId(), nodeSpell);
+            // this is a new node, or an old node which has returned
+            if (lifetime == null) {
+                lifetime = new Lifetime(reportingIntervalCount, new NodeImpl(nodeData.getId()));
+                nodeLifetimes.put(nodeHandle, lifetime);
             }
             // this is a node which existed previous reporting interval
-            else if (aliveNodes.containsKey(nodeData.getId())) {
-                node = aliveNodes.get(nodeData.getId());
-                nodeSpell = nodeSpells.get(nodeData.getId());
-
-                // new interval: current interval - next interval
-                nodeSpell.setEndValue(reportingIntervalCount + 1);
-            }
-            // this is a new node
             else {
-                String nodeLabel = nodeData.getId();
-
-                node = graph.createNode(nodeData.getId())
-                        .setLabel(nodeLabel);
-
-                nodeSpell = new SpellImpl()
-                        .setStartValue(reportingIntervalCount)
-                        .setEndIntervalType(IntervalType.OPEN);
-
-                node.getSpells().add(nodeSpell);
-                nodeSpells.put(nodeData.getId(), nodeSpell);
-                aliveNodes.put(nodeData.getId(), node);
-
+                // new interval: current interval - next interval
+                lifetime.end = reportingIntervalCount + 1;
             }
+            lifetime.generation = (int) reportingIntervalCount;
 
-            checkNotNull(node, "Could not find node when adding node attributes");
-
+            Node node = lifetime.node;
             nodeAttributes.update(node
                     , nodeData
                     , reportingIntervalCount
                     , reportingIntervalCount + 1);
 
-            // FIXME: this is a hideous way of determining its a structural overlay being created, and should be refactored
-            if (topic == null) {
-                nodeAttributes.updateHitRatio(node
-                        , hitRatio
-                        , reportingIntervalCount
-                        , reportingIntervalCount + 1);
-
-                nodeAttributes.updatePathLength(node
-                        , maxPathLength
-                        , reportingIntervalCount
-                        , reportingIntervalCount + 1);
+            nodeAttributes.updateHitRatio(node
+                    , hitRatio
+                    , reportingIntervalCount
+                    , reportingIntervalCount + 1);
+
+            nodeAttributes.updatePathLength(node
+                    , maxPathLength
+                    , reportingIntervalCount
+                    , reportingIntervalCount + 1);
+
+            recordEndedValues(nodeHandle, node);
+        }
+    }
+
+    /**
+     * Records the values of a node which changed at the current reporting interval, and will not be extended.
+     */
+    private void recordEndedValues(int nodeHandle, Node node) throws IOException {
+        Iterator<AttributeValue> values = node.getAttributeValues().iterator();
+        while (values.hasNext()) {
+            AttributeValue value = values.next();
+            if (!nodeAttributes.isCurrent(node, value)) {
+                endedValues.add(value);
+                values.remove();
             }
         }
+        if (!endedValues.isEmpty()) {
+            overlayWriter.addNodeValues(nodeHandle, endedValues);
+            endedValues.clear();
+        }
     }
 
-    private String createNodeLabel(Report overlay, Long nodeId) {
-        int numberOfDigits = Integer.toString(overlay.getNodes().size()).length();
-        String numberFormat = "%0" + numberOfDigits + "d";
-        return String.format(numberFormat, nodeId);
+    /**
+     * Returns a view of a report holding only the nodes accepted by the filter.
+     */
+    private static Report filterNodes(Report overlay, Predicate<String> nodeFilter) {
+        return Report.builder()
+                .withProtocolId(overlay.getProtocolId())
+                .withProtocolName(overlay.getProtocolName())
+                .withIntervalCount(overlay.getIntervalCount())
+                .withNodes(Maps.filterKeys(overlay.getNodes(), nodeFilter))
+                .withEdges(overlay.getEdges())
+                .withPublications(overlay.getPublications())
+                .build();
+    }
+
+    /**
+     * Indexes the nodes of a report by the topics they subscribe to, and its edges by the publications they carried.
+     */
+    private static void indexPublications(Report overlay
+            , ListMultimap<String, NodeData> subscribers
+            , ListMultimap<String, EdgeData> carriers) {
+        for (NodeData nodeData : overlay.getNodes().values()) {
+            for (String topic : nodeData.getTopics()) {
+                subscribers.put(topic, nodeData);
+            }
+        }
+        for (EdgeData edgeData : overlay.getEdges().values()) {
+            Map<String, PubMessage> publications = edgeData.getPublicationsMessages();
+            if (publications == null) {
+                continue;
+            }
+            for (String messageId : publications.keySet()) {
+                carriers.put(messageId, edgeData);
+            }
+        }
     }
 
     private String createFilePath(String protocolName, String msgId) {
+        return createFilePath(protocolName, msgId, gexfExtension());
+    }
+
+    private String gexfExtension() {
+        return compressed ? ".gexf" + StreamingGexfWriter.COMPRESSED_EXTENSION : ".gexf";
+    }
+
+    private String createFilePath(String protocolName, String msgId, String extension) {
         String timeStamp = DateTime.now().toString("yyyy-MM-dd_HH:mm:ss");
         String[] split = protocolName.split("\\.");
         if (msgId == null) {
@@ -585,7 +914,7 @@ public class GexfBuilder {
             e.printStackTrace();
         }
         new File("reports/" + hostName + "/").mkdir();
-        return "reports/" + hostName + "/" + timeStamp + "_" + split[split.length - 1] + "_" + msgId + ".gexf";
+        return "reports/" + hostName + "/" + timeStamp + "_" + split[split.length - 1] + "_" + msgId + extension;
     }
 
     private void calculateAverages(double reportingIntervalCount, String filePath, Set<String> topics) {
@@ -617,29 +946,91 @@ public class GexfBuilder {
                 .save();
     }
 
-    private Report importJsonReport(File file) {
-        Report overlay = null;
-        try (FileInputStream fileInputStream = new FileInputStream(file)) {
-            Reader reader = new InputStreamReader(fileInputStream);
-            Gson gson = new GsonBuilder().registerTypeAdapter(Multimap.class, new MultimapDeserializer()).create();
-            overlay = gson.fromJson(reader, Report.class);
+    /**
+     * Reads the next report from the source, closing the source when it is exhausted.
+     *
+     * @return the next report, or null if there are no more reports
+     */
+    private Report importReport(ReportSource source) {
+        try {
+            Report overlay = source.next();
+            if (overlay == null) {
+                source.close();
+            }
+            return overlay;
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("Could not read report", e);
         }
-        checkNotNull(overlay, "Could not read reports from json");
-        return overlay;
     }
 
     private void exportToGexfFile(String filePath, it.uniroma1.dis.wsngroup.gexf4j.core.Gexf gexf) {
         StaxGraphWriter graphWriter = new StaxGraphWriter();
         File f = new File(filePath);
-        Writer out;
-        try {
-            out = new FileWriter(f, false);
+        try (OutputStream stream = filePath.endsWith(StreamingGexfWriter.COMPRESSED_EXTENSION)
+                ? new GZIPOutputStream(new FileOutputStream(f, false)) : new FileOutputStream(f, false);
+             Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
             graphWriter.writeToStream(gexf, out, "UTF-8");
             Log.info(LogCategory.GEXF, "Writing GEXF file to " + f.getAbsolutePath());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Manifest of the slices of a structural overlay, serialized as json
+     */
+    private static final class Manifest {
+        private double start;
+        private double end;
+        private int sliceLength;
+        private List<ManifestSlice> slices;
+    }
+
+    private static final class ManifestSlice {
+        private String file;
+        private double start;
+        private double end;
+        private int nodes;
+        private int edges;
+    }
+
+    /**
+     * Spell of a node or edge of the structural overlay which is alive at the current reporting interval, along with
+     * the current attribute values of a node, the reporting interval it was last reported in and the sorted handles
+     * of its live neighbors at that interval.
+     */
+    private static final class Lifetime {
+        private static final int[] NO_NEIGHBORS = new int[0];
+
+        private final double start;
+        private final Node node;
+        private double end = -1;
+        private int generation;
+        private int[] neighbors = NO_NEIGHBORS;
+
+        private Lifetime(double start) {
+            this(start, null);
+        }
+
+        private Lifetime(double start, Node node) {
+            this.start = start;
+            this.node = node;
+        }
+
+        private void addTo(StreamingGexfWriter writer, int nodeHandle) throws IOException {
+            if (end < 0) {
+                writer.addNodeSpell(nodeHandle, start);
+            } else {
+                writer.addNodeSpell(nodeHandle, start, end);
+            }
+        }
+
+        private void addTo(StreamingGexfWriter writer, long edgeKey) throws IOException {
+            if (end < 0) {
+                writer.addEdgeSpell(edgeKey, start);
+            } else {
+                writer.addEdgeSpell(edgeKey, start, end);
+            }
+        }
+    }
 }
@@ -1,12 +1,12 @@
 package no.uio.ifi.vizpub.collector.gexf;
 
-import it.uniroma1.dis.wsngroup.gexf4j.core.IntervalType;
 import it.uniroma1.dis.wsngroup.gexf4j.core.Mode;
 import it.uniroma1.dis.wsngroup.gexf4j.core.Node;
 import it.uniroma1.dis.wsngroup.gexf4j.core.data.Attribute;
 import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeClass;
 import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeList;
 import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeType;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeValue;
 import it.uniroma1.dis.wsngroup.gexf4j.core.impl.data.AttributeListImpl;
 import no.uio.ifi.vizpub.reports.NodeData;
 import no.uio.ifi.vizpub.reports.PubMessage;
@@ -25,6 +25,11 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * through every node from each of the reported overlays. Each reports describes the system state at a specific
  * reporting interval. This class will update the value of the node attribute based on the node data derived from
  * the corresponding report.
+ * <p/>
+ * Values are run-length encoded: while the value of an attribute stays the same from one interval to the next,
+ * its current value is extended rather than a new value created, see <code>AttributeRuns</code>. Values of double
+ * attributes such as the hit ratio are considered the same within the tolerance given by
+ * <code>withTolerance</code>. Once a node has left the overlay, its values should be closed by <code>close</code>.
  *
  * @author Nils Peder Korsveien
  * @see GexfBuilder
@@ -75,6 +80,8 @@ public class NodeAttributes {
      */
     private final Map<String, Attribute> hopCount;
 
+    private final AttributeRuns runs;
+
     private NodeAttributes(Builder builder) {
         attributes = builder.attributes;
         topics = builder.topics;
@@ -92,6 +99,7 @@ public class NodeAttributes {
 
         pathLength = builder.pathLength;
 
+        runs = new AttributeRuns(builder.tolerance);
     }
 
     /**
@@ -141,11 +149,7 @@ public class NodeAttributes {
 
 //        Log.debug(LogCategory.GEXF, "Duplicate message count " + duplicateCountValue);
 
-        node.getAttributeValues()
-                .createValue(duplicateCount, duplicateCountValue)
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
+        runs.set(node, duplicateCount, duplicateCountValue, start, end);
     }
 
     public void updateHitRatio(Node node, double currentHitRatio,  double start, double end) {
@@ -161,11 +165,7 @@ public class NodeAttributes {
         String hitRatioValue = Double.toString(currentHitRatio);
         checkNotNull(hitRatioValue, "Hit ratio has not been calculated");
 
-        node.getAttributeValues()
-                .createValue(hitRatio, hitRatioValue)
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
+        runs.set(node, hitRatio, hitRatioValue, start, end);
     }
 
     public void updatePathLength(Node node, int currentPathLength, double start, double end) {
@@ -181,11 +181,7 @@ public class NodeAttributes {
         String pathLengthValue = Integer.toString(currentPathLength);
         checkNotNull(pathLengthValue, "Hit ratio has not been calculated");
 
-        node.getAttributeValues()
-                .createValue(pathLength, pathLengthValue)
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
+        runs.set(node, pathLength, pathLengthValue, start, end);
     }
 
     /**
@@ -241,17 +237,8 @@ public class NodeAttributes {
         }
         checkArgument(start < end, "Start value must be lower than end value");
 
-        node.getAttributeValues()
-                .createValue(publicationsSent, nodeData.getPublicationMsgsSent().values().toString())
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
-
-        node.getAttributeValues()
-                .createValue(publicationsReceived, nodeData.getPublicationMsgsReceived().values().toString())
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
+        runs.set(node, publicationsSent, nodeData.getPublicationMsgsSent().values().toString(), start, end);
+        runs.set(node, publicationsReceived, nodeData.getPublicationMsgsReceived().values().toString(), start, end);
     }
 
     /**
@@ -271,17 +258,8 @@ public class NodeAttributes {
         }
         checkArgument(start < end, "Start value must be lower than end value");
 
-        node.getAttributeValues()
-                .createValue(kbSent, Integer.toString(nodeData.getBitsSent() / 1000))
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
-
-        node.getAttributeValues()
-                .createValue(kbReceived, Integer.toString(nodeData.getBitsReceived() / 1000))
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
+        runs.set(node, kbSent, Integer.toString(nodeData.getBitsSent() / 1000), start, end);
+        runs.set(node, kbReceived, Integer.toString(nodeData.getBitsReceived() / 1000), start, end);
     }
 
     /**
@@ -301,17 +279,8 @@ public class NodeAttributes {
         }
         checkArgument(start < end, "Start value must be lower than end value");
 
-        node.getAttributeValues()
-                .createValue(gossipsSent, Integer.toString(nodeData.getControlMsgsSent()))
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
-
-        node.getAttributeValues()
-                .createValue(gossipsReceived, Integer.toString(nodeData.getControlMsgsReceived()))
-                .setStartValue(start)
-                .setEndValue(end)
-                .setEndIntervalType(IntervalType.OPEN);
+        runs.set(node, gossipsSent, Integer.toString(nodeData.getControlMsgsSent()), start, end);
+        runs.set(node, gossipsReceived, Integer.toString(nodeData.getControlMsgsReceived()), start, end);
     }
 
     /**
@@ -331,8 +300,7 @@ public class NodeAttributes {
         }
         checkArgument(start < end, "Start value must be lower than end value");
 
-        node.getAttributeValues()
-                .createValue(subscriptionSize, Integer.toString(nodeData.getSubscriptionSize()));
+        runs.set(node, subscriptionSize, Integer.toString(nodeData.getSubscriptionSize()), start, end);
     }
 
     /**
@@ -352,8 +320,28 @@ public class NodeAttributes {
         }
         checkArgument(start < end, "Start value must be lower than end value");
 
-        node.getAttributeValues()
-                .createValue(topics, nodeData.getTopics().toString());
+        runs.set(node, topics, nodeData.getTopics().toString(), start, end);
+    }
+
+    /**
+     * Tells whether a value of a node is the current value of its attribute, which may still be extended to the
+     * following intervals.
+     *
+     * @param node  the gexf node
+     * @param value value of the node
+     * @return true if the value may still change
+     */
+    public boolean isCurrent(Node node, AttributeValue value) {
+        return runs.isCurrent(node, value);
+    }
+
+    /**
+     * Ends the current values of a node, e.g. once it has left the overlay, so they are no longer extended.
+     *
+     * @param node the gexf node
+     */
+    public void close(Node node) {
+        runs.close(node);
     }
 
     public AttributeList getAttributes() {
@@ -411,6 +399,7 @@ public class NodeAttributes {
 
         private Attribute hitRatio;
         private Attribute pathLength;
+        private double tolerance;
 
         private Builder() {
             this.attributes = new AttributeListImpl(AttributeClass.NODE);
@@ -477,6 +466,17 @@ public class NodeAttributes {
             return this;
         }
 
+        /**
+         * Sets how much the values of double attributes may differ and still be considered the same value.
+         *
+         * @param tolerance largest difference between values considered the same
+         */
+        public Builder withTolerance(double tolerance) {
+            checkArgument(tolerance >= 0, "Tolerance must not be negative");
+            this.tolerance = tolerance;
+            return this;
+        }
+
         public NodeAttributes build() {
             return new NodeAttributes(this);
         }
@@ -0,0 +1,278 @@
+package no.uio.ifi.vizpub.collector.gexf;
+
+import com.google.gson.Gson;
+import no.uio.ifi.vizpub.reports.NodeData;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.SymbolTable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes the attributes of every node at every reporting interval as columns of a compressed, chunked file, for
+ * loading into data-frame tools without parsing gexf.
+ * <p/>
+ * Each row holds a node at a reporting interval it was reported in, with the columns given by <code>COLUMNS</code>:
+ * the interval, the node by index in the list of node ids, its number of live neighbors and of live nodes having it
+ * as neighbor, the gossips it sent and received, the Kb it sent and received, its duplicate publications and its
+ * subscription size. Values which were not reported are -1. Rows are ordered by interval.
+ * <p/>
+ * Rows are buffered and written in chunks of <code>chunkRows</code> rows, so memory use is bounded by the size of a
+ * chunk. Within a chunk, each column is written on its own as a deflate (zlib) compressed array of little-endian
+ * 32-bit ints. The file starts with the magic bytes <code>VZS1</code> and ends with a footer: a UTF-8 json index of
+ * the columns, the node ids and the chunks, giving the first and last interval of each chunk and the offset and
+ * length of each of its columns, followed by the length of the index as a little-endian 64-bit int and the magic
+ * bytes again. A reader thus finds the index at the end of the file, and only reads and inflates the chunks and
+ * columns it needs, e.g. in Python with <code>numpy.frombuffer(zlib.decompress(bytes), '&lt;i4')</code>.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @author Nils Peder Korsveien
+ * @see GexfBuilder#createNodeSeries(String, String)
+ */
+public class NodeSeriesWriter implements Closeable {
+    public static final String FILE_EXTENSION = ".series";
+    public static final int DEFAULT_CHUNK_ROWS = 1 << 16;
+
+    public static final List<String> COLUMNS = Arrays.asList(
+            "interval",
+            "node",
+            "out_degree",
+            "in_degree",
+            "gossips_sent",
+            "gossips_received",
+            "kb_sent",
+            "kb_received",
+            "duplicates",
+            "subscription_size");
+
+    private static final byte[] MAGIC = "VZS1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int NOT_REPORTED = -1;
+
+    private final File file;
+    private final OutputStream out;
+    private final Deflater deflater = new Deflater();
+    private final byte[] deflated = new byte[1 << 16];
+    private final ByteBuffer column;
+    private final int[][] rows;
+    private final int chunkRows;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final SymbolTable nodeIds = new SymbolTable();
+    private long position;
+    private int rowCount;
+    private boolean closed;
+
+    /**
+     * Reporting interval each node was last reported in, and the number of live nodes having each node reported in
+     * the current interval as neighbor, by handle
+     */
+    private int[] reportedAt = new int[1024];
+    private int[] inDegrees = new int[1024];
+
+    /**
+     * @param file the series file, which is replaced if it exists
+     */
+    public NodeSeriesWriter(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_ROWS);
+    }
+
+    /**
+     * @param file      the series file, which is replaced if it exists
+     * @param chunkRows number of rows of each chunk
+     */
+    public NodeSeriesWriter(File file, int chunkRows) throws IOException {
+        checkArgument(chunkRows > 0, "Chunks must have rows");
+        this.file = checkNotNull(file);
+        this.chunkRows = chunkRows;
+        this.rows = new int[COLUMNS.size()][chunkRows];
+        this.column = ByteBuffer.allocate(4 * chunkRows).order(ByteOrder.LITTLE_ENDIAN);
+        this.out = new BufferedOutputStream(new FileOutputStream(file, false), 1 << 16);
+        Arrays.fill(reportedAt, NOT_REPORTED);
+        write(MAGIC);
+    }
+
+    /**
+     * @return the series file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Adds a row for every node of a report. Reports must be added in order of reporting interval.
+     *
+     * @param report report merged from every host at the interval
+     */
+    public void addInterval(Report report) throws IOException {
+        checkNotNull(report);
+        checkState(!closed, "Series has been closed");
+        int interval = report.getIntervalCount();
+
+        for (NodeData nodeData : report.getNodes().values()) {
+            int handle = nodeIds.intern(nodeData.getId());
+            if (handle >= reportedAt.length) {
+                int length = Math.max(reportedAt.length * 2, handle + 1);
+                int oldLength = reportedAt.length;
+                reportedAt = Arrays.copyOf(reportedAt, length);
+                Arrays.fill(reportedAt, oldLength, length, NOT_REPORTED);
+                inDegrees = Arrays.copyOf(inDegrees, length);
+            }
+            reportedAt[handle] = interval;
+            inDegrees[handle] = 0;
+        }
+        for (NodeData nodeData : report.getNodes().values()) {
+            for (String neighborId : nodeData.getNeighbors()) {
+                int neighbor = nodeIds.lookup(neighborId);
+                if (isReported(neighbor, interval)) {
+                    inDegrees[neighbor]++;
+                }
+            }
+        }
+
+        for (NodeData nodeData : report.getNodes().values()) {
+            int handle = nodeIds.lookup(nodeData.getId());
+            int outDegree = 0;
+            for (String neighborId : nodeData.getNeighbors()) {
+                if (isReported(nodeIds.lookup(neighborId), interval)) {
+                    outDegree++;
+                }
+            }
+            addRow(interval
+                    , handle
+                    , outDegree
+                    , inDegrees[handle]
+                    , orNotReported(nodeData.getControlMsgsSent())
+                    , orNotReported(nodeData.getControlMsgsReceived())
+                    , nodeData.getBitsSent() < 0 ? NOT_REPORTED : nodeData.getBitsSent() / 1000
+                    , nodeData.getBitsReceived() < 0 ? NOT_REPORTED : nodeData.getBitsReceived() / 1000
+                    , orNotReported(nodeData.getDuplicateCount())
+                    , orNotReported(nodeData.getSubscriptionSize()));
+        }
+    }
+
+    /**
+     * Writes the rows still buffered and the footer, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeChunk();
+
+            Footer footer = new Footer();
+            footer.version = VERSION;
+            footer.columns = COLUMNS;
+            footer.nodes = new ArrayList<>(nodeIds.size());
+            for (int handle = 0; handle < nodeIds.size(); handle++) {
+                footer.nodes.add(nodeIds.symbol(handle));
+            }
+            footer.chunks = chunks;
+            byte[] index = new Gson().toJson(footer).getBytes(StandardCharsets.UTF_8);
+            write(index);
+            write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(index.length).array());
+            write(MAGIC);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private boolean isReported(int handle, int interval) {
+        return handle != SymbolTable.NO_HANDLE && reportedAt[handle] == interval;
+    }
+
+    private static int orNotReported(int value) {
+        return value < 0 ? NOT_REPORTED : value;
+    }
+
+    private void addRow(int... values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            rows[i][rowCount] = values[i];
+        }
+        if (++rowCount == chunkRows) {
+            writeChunk();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (rowCount == 0) {
+            return;
+        }
+        Chunk chunk = new Chunk();
+        chunk.rows = rowCount;
+        chunk.firstInterval = rows[0][0];
+        chunk.lastInterval = rows[0][rowCount - 1];
+        chunk.offsets = new long[COLUMNS.size()];
+        chunk.lengths = new long[COLUMNS.size()];
+        for (int i = 0; i < COLUMNS.size(); i++) {
+            column.clear();
+            column.asIntBuffer().put(rows[i], 0, rowCount);
+            chunk.offsets[i] = position;
+            chunk.lengths[i] = deflate(column.array(), 4 * rowCount);
+        }
+        chunks.add(chunk);
+        rowCount = 0;
+    }
+
+    /**
+     * @return number of compressed bytes written
+     */
+    private long deflate(byte[] bytes, int length) throws IOException {
+        long start = position;
+        deflater.reset();
+        deflater.setInput(bytes, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(deflated);
+            out.write(deflated, 0, count);
+            position += count;
+        }
+        return position - start;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        position += bytes.length;
+    }
+
+    /**
+     * Index of the file, serialized as json
+     */
+    private static final class Footer {
+        private int version;
+        private List<String> columns;
+        private List<String> nodes;
+        private List<Chunk> chunks;
+    }
+
+    private static final class Chunk {
+        private int rows;
+        private int firstInterval;
+        private int lastInterval;
+        private long[] offsets;
+        private long[] lengths;
+    }
+}
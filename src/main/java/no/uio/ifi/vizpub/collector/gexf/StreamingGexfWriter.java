@@ -0,0 +1,666 @@
+package no.uio.ifi.vizpub.collector.gexf;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.uniroma1.dis.wsngroup.gexf4j.core.EdgeType;
+import it.uniroma1.dis.wsngroup.gexf4j.core.IDType;
+import it.uniroma1.dis.wsngroup.gexf4j.core.IntervalType;
+import it.uniroma1.dis.wsngroup.gexf4j.core.Mode;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.Attribute;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeList;
+import it.uniroma1.dis.wsngroup.gexf4j.core.data.AttributeValue;
+import no.uio.ifi.vizpub.reports.EdgeData;
+import no.uio.ifi.vizpub.reports.SymbolTable;
+import org.joda.time.DateTime;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes a dynamic gexf graph without holding the whole graph in memory.
+ * <p/>
+ * The gexf4j object model keeps every node, edge, spell and attribute value of the run in memory until the graph is
+ * written, which exhausts the heap for large overlays reported over many intervals. This writer instead records the
+ * spells and attribute values of each node and edge in an <code>ElementHistory</code> as they become known, which
+ * spills to temporary files in the given directory once its buffer is full. When the run is over, the document is
+ * streamed through a buffered StAX writer, one node or edge at a time.
+ * <p/>
+ * Nodes are identified by their handles in the symbol table of the run, and labeled by their ids. Edges are
+ * identified by the packed handles of their endpoints, see <code>EdgeData#key</code>, and are directed with a weight
+ * of one. Time is given as doubles, and every spell ends open, i.e. just before the interval it ends at.
+ * <p/>
+ * The graph may also be written as time slices, each to a gexf file of its own which can be opened on its own, and
+ * files may be gzip compressed as they are written.
+ *
+ * @author Nils Peder Korsveien
+ * @see GexfBuilder
+ */
+public class StreamingGexfWriter implements Closeable {
+    public static final String GEXF_NAMESPACE = "http://www.gexf.net/1.2draft";
+    public static final String GEXF_VERSION = "1.2";
+    public static final String COMPRESSED_EXTENSION = ".gz";
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private static final byte SPELL = 0;
+    private static final byte VALUE = 1;
+
+    private static final int HAS_START = 1;
+    private static final int HAS_END = 1 << 1;
+    private static final int START_OPEN = 1 << 2;
+    private static final int END_OPEN = 1 << 3;
+
+    private final SymbolTable nodeIds;
+    private final ElementHistory nodeHistory;
+    private final ElementHistory edgeHistory;
+
+    /**
+     * Attributes of the recorded values, by the index they are recorded with
+     */
+    private final List<Attribute> attributes = new ArrayList<>();
+    private final Map<Attribute, Integer> attributeIndices = new IdentityHashMap<>();
+
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    /**
+     * @param nodeIds        symbol table of the node ids of the run
+     * @param spillDirectory directory to spill the history of the graph to
+     * @param bufferSize     number of bytes of history to buffer in memory before spilling
+     */
+    public StreamingGexfWriter(SymbolTable nodeIds, File spillDirectory, int bufferSize) {
+        this.nodeIds = checkNotNull(nodeIds);
+        this.nodeHistory = new ElementHistory(spillDirectory, bufferSize / 2);
+        this.edgeHistory = new ElementHistory(spillDirectory, bufferSize / 2);
+    }
+
+    /**
+     * Records a spell of a node which has not ended.
+     *
+     * @param handle handle of the node
+     * @param start  start of the spell
+     */
+    public void addNodeSpell(int handle, double start) throws IOException {
+        appendSpell(nodeHistory, handle, start, 0, false);
+    }
+
+    /**
+     * Records a spell of a node.
+     *
+     * @param handle handle of the node
+     * @param start  start of the spell
+     * @param end    end of the spell, exclusive
+     */
+    public void addNodeSpell(int handle, double start, double end) throws IOException {
+        appendSpell(nodeHistory, handle, start, end, true);
+    }
+
+    /**
+     * Records attribute values of a node.
+     *
+     * @param handle handle of the node
+     * @param values the values
+     */
+    public void addNodeValues(int handle, List<AttributeValue> values) throws IOException {
+        appendValues(nodeHistory, handle, values);
+    }
+
+    /**
+     * Records a spell of an edge which has not ended.
+     *
+     * @param key   key of the edge
+     * @param start start of the spell
+     */
+    public void addEdgeSpell(long key, double start) throws IOException {
+        appendSpell(edgeHistory, key, start, 0, false);
+    }
+
+    /**
+     * Records a spell of an edge.
+     *
+     * @param key   key of the edge
+     * @param start start of the spell
+     * @param end   end of the spell, exclusive
+     */
+    public void addEdgeSpell(long key, double start, double end) throws IOException {
+        appendSpell(edgeHistory, key, start, end, true);
+    }
+
+    /**
+     * Records attribute values of an edge.
+     *
+     * @param key    key of the edge
+     * @param values the values
+     */
+    public void addEdgeValues(long key, List<AttributeValue> values) throws IOException {
+        appendValues(edgeHistory, key, values);
+    }
+
+    /**
+     * Writes the recorded graph to a gexf file. Every node and edge with a recorded spell or value is written. The
+     * file is gzip compressed if its name ends with <code>COMPRESSED_EXTENSION</code>.
+     *
+     * @param file           the gexf file
+     * @param description    description of the graph
+     * @param attributeLists declarations of the attributes of the recorded values
+     */
+    public void write(File file, String description, List<AttributeList> attributeLists) throws IOException {
+        writeSlices(Collections.singletonList(new Slice(file, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY))
+                , description, attributeLists, 1);
+    }
+
+    /**
+     * Writes the recorded graph to one gexf file per time slice. Each file is a graph of its own, holding the nodes
+     * and edges alive during its slice, with their spells and attribute values cut to the slice. Files are gzip
+     * compressed if their names end with <code>COMPRESSED_EXTENSION</code>.
+     * <p/>
+     * The slices are split into consecutive groups, one per writer, which are written in parallel. Each writer
+     * reads the history once, and writes every slice of its group along the way.
+     *
+     * @param slices         the slices
+     * @param description    description of the graph
+     * @param attributeLists declarations of the attributes of the recorded values
+     * @param threads        largest number of writers to write slices in parallel
+     */
+    public void writeSlices(List<Slice> slices, final String description, final List<AttributeList> attributeLists
+            , int threads) throws IOException {
+        checkNotNull(slices);
+        checkArgument(threads > 0, "Slices must be written by at least one thread");
+        int groupCount = Math.min(threads, slices.size());
+        if (groupCount <= 1) {
+            writeGroup(slices, description, attributeLists);
+            return;
+        }
+
+        ExecutorService writers = Executors.newFixedThreadPool(groupCount, new ThreadFactoryBuilder()
+                .setNameFormat("gexf-slice-writer-%d")
+                .setDaemon(true)
+                .build());
+        try {
+            List<Future<Void>> results = new ArrayList<>(groupCount);
+            for (int i = 0; i < groupCount; i++) {
+                final List<Slice> group = slices.subList(i * slices.size() / groupCount
+                        , (i + 1) * slices.size() / groupCount);
+                results.add(writers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeGroup(group, description, attributeLists);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not write slices", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing slices");
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the spells of the recorded graph to a temporal graph store, which answers queries about the graph at any
+     * time of the run without reading the gexf file. Attribute values are not stored.
+     *
+     * @param file the store file
+     * @see TemporalGraphStore
+     */
+    public void writeTemporalGraph(File file) throws IOException {
+        new TemporalGraphWriter(nodeIds, nodeHistory, edgeHistory, TemporalGraphWriter.DEFAULT_CHECKPOINT_INTERVAL)
+                .write(file);
+    }
+
+    /**
+     * Deletes the history spilled to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            nodeHistory.close();
+        } finally {
+            edgeHistory.close();
+        }
+    }
+
+    /**
+     * Reads the interval of a recorded spell.
+     *
+     * @param record a record of the history
+     * @param spell  receives the start of the spell, and its end, or NaN if it has not ended
+     * @return false if the record is not a spell
+     */
+    static boolean readSpell(byte[] record, double[] spell) {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        if (in.get() != SPELL) {
+            return false;
+        }
+        int flags = in.get();
+        spell[0] = in.getDouble();
+        spell[1] = (flags & HAS_END) != 0 ? in.getDouble() : Double.NaN;
+        return true;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private void appendSpell(ElementHistory history, long key, double start, double end, boolean ended)
+            throws IOException {
+        recordBytes.reset();
+        record.writeByte(SPELL);
+        writeInterval(start, end, ended);
+        history.append(key, recordBytes.toByteArray(), recordBytes.size());
+    }
+
+    private void appendValues(ElementHistory history, long key, List<AttributeValue> values) throws IOException {
+        for (AttributeValue value : values) {
+            recordBytes.reset();
+            record.writeByte(VALUE);
+            record.writeShort(indexOf(value.getAttribute()));
+            record.writeUTF(value.getValue());
+
+            int flags = 0;
+            if (value.hasStartDate()) {
+                flags |= HAS_START;
+            }
+            if (value.hasEndDate()) {
+                flags |= HAS_END;
+            }
+            if (IntervalType.OPEN.equals(value.getStartIntervalType())) {
+                flags |= START_OPEN;
+            }
+            if (IntervalType.OPEN.equals(value.getEndIntervalType())) {
+                flags |= END_OPEN;
+            }
+            record.writeByte(flags);
+            if (value.hasStartDate()) {
+                record.writeDouble(((Number) value.getStartValue()).doubleValue());
+            }
+            if (value.hasEndDate()) {
+                record.writeDouble(((Number) value.getEndValue()).doubleValue());
+            }
+            history.append(key, recordBytes.toByteArray(), recordBytes.size());
+        }
+    }
+
+    private void writeInterval(double start, double end, boolean ended) throws IOException {
+        record.writeByte(ended ? HAS_START | HAS_END | END_OPEN : HAS_START);
+        record.writeDouble(start);
+        if (ended) {
+            record.writeDouble(end);
+        }
+    }
+
+    private int indexOf(Attribute attribute) {
+        Integer index = attributeIndices.get(attribute);
+        if (index == null) {
+            index = attributes.size();
+            attributes.add(attribute);
+            attributeIndices.put(attribute, index);
+        }
+        return index;
+    }
+
+    private static void writeMetadata(XMLStreamWriter xml, String description) throws XMLStreamException {
+        xml.writeStartElement("meta");
+        xml.writeAttribute("lastmodifieddate", DateTime.now().toString("yyyy-MM-dd"));
+        xml.writeStartElement("creator");
+        xml.writeCharacters("VizPub");
+        xml.writeEndElement();
+        xml.writeStartElement("description");
+        xml.writeCharacters(description);
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    private static void writeAttributes(XMLStreamWriter xml, AttributeList attributeList) throws XMLStreamException {
+        if (attributeList.isEmpty()) {
+            return;
+        }
+        xml.writeStartElement("attributes");
+        xml.writeAttribute("class", attributeList.getAttributeClass().toString().toLowerCase());
+        xml.writeAttribute("mode", attributeList.getMode().toString().toLowerCase());
+        for (Attribute attribute : attributeList) {
+            xml.writeEmptyElement("attribute");
+            xml.writeAttribute("id", attribute.getId());
+            xml.writeAttribute("title", attribute.getTitle());
+            xml.writeAttribute("type", attribute.getAttributeType().toString().toLowerCase());
+        }
+        xml.writeEndElement();
+    }
+
+    /**
+     * Writes a group of slices in a single pass over the history.
+     */
+    private void writeGroup(List<Slice> group, String description, List<AttributeList> attributeLists)
+            throws IOException {
+        List<SliceOutput> outputs = new ArrayList<>(group.size());
+        try {
+            for (Slice slice : group) {
+                SliceOutput output = new SliceOutput(slice);
+                outputs.add(output);
+                output.start(description, attributeLists);
+            }
+            writeNodes(outputs);
+            writeEdges(outputs);
+            for (SliceOutput output : outputs) {
+                output.finish();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write gexf", e);
+        } finally {
+            for (SliceOutput output : outputs) {
+                output.close();
+            }
+        }
+    }
+
+    private void writeNodes(List<SliceOutput> outputs) throws IOException, XMLStreamException {
+        for (SliceOutput output : outputs) {
+            output.xml.writeStartElement("nodes");
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (ElementHistory.Cursor cursor = nodeHistory.cursor()) {
+            while (cursor.next()) {
+                readEntries(cursor.records(), entries);
+                String id = nodeIds.symbol((int) cursor.key());
+                for (SliceOutput output : outputs) {
+                    if (!output.slice.overlaps(entries)) {
+                        continue;
+                    }
+                    XMLStreamWriter xml = output.xml;
+                    xml.writeStartElement("node");
+                    xml.writeAttribute("id", id);
+                    xml.writeAttribute("label", id);
+                    writeHistory(xml, entries, output.slice);
+                    xml.writeEndElement();
+                    output.slice.nodeCount++;
+                }
+            }
+        }
+        for (SliceOutput output : outputs) {
+            output.xml.writeEndElement();
+        }
+    }
+
+    private void writeEdges(List<SliceOutput> outputs) throws IOException, XMLStreamException {
+        for (SliceOutput output : outputs) {
+            output.xml.writeStartElement("edges");
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (ElementHistory.Cursor cursor = edgeHistory.cursor()) {
+            while (cursor.next()) {
+                readEntries(cursor.records(), entries);
+                String sourceId = nodeIds.symbol(EdgeData.sourceHandle(cursor.key()));
+                String targetId = nodeIds.symbol(EdgeData.targetHandle(cursor.key()));
+                String id = EdgeData.createId(sourceId, targetId);
+                for (SliceOutput output : outputs) {
+                    if (!output.slice.overlaps(entries)) {
+                        continue;
+                    }
+                    XMLStreamWriter xml = output.xml;
+                    xml.writeStartElement("edge");
+                    xml.writeAttribute("id", id);
+                    xml.writeAttribute("source", sourceId);
+                    xml.writeAttribute("target", targetId);
+                    xml.writeAttribute("type", EdgeType.DIRECTED.toString().toLowerCase());
+                    xml.writeAttribute("label", id);
+                    xml.writeAttribute("weight", Float.toString(1f));
+                    writeHistory(xml, entries, output.slice);
+                    xml.writeEndElement();
+                    output.slice.edgeCount++;
+                }
+            }
+        }
+        for (SliceOutput output : outputs) {
+            output.xml.writeEndElement();
+        }
+    }
+
+    private void readEntries(List<byte[]> records, List<Entry> entries) throws IOException {
+        entries.clear();
+        for (byte[] bytes : records) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            Entry entry = new Entry();
+            entry.spell = in.readByte() == SPELL;
+            if (!entry.spell) {
+                entry.attribute = attributes.get(in.readShort());
+                entry.value = in.readUTF();
+            }
+            entry.flags = in.readByte();
+            entry.start = (entry.flags & HAS_START) != 0 ? in.readDouble() : Double.NEGATIVE_INFINITY;
+            entry.end = (entry.flags & HAS_END) != 0 ? in.readDouble() : Double.POSITIVE_INFINITY;
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Writes the spells of an element followed by its attribute values, each in the order they were recorded, cut
+     * to a slice.
+     */
+    private static void writeHistory(XMLStreamWriter xml, List<Entry> entries, Slice slice)
+            throws XMLStreamException {
+        boolean started = false;
+        for (Entry entry : entries) {
+            if (!entry.spell || !slice.overlaps(entry)) {
+                continue;
+            }
+            if (!started) {
+                xml.writeStartElement("spells");
+                started = true;
+            }
+            xml.writeEmptyElement("spell");
+            writeInterval(xml, entry, slice);
+        }
+        if (started) {
+            xml.writeEndElement();
+        }
+
+        started = false;
+        for (Entry entry : entries) {
+            if (entry.spell || !slice.overlaps(entry)) {
+                continue;
+            }
+            if (!started) {
+                xml.writeStartElement("attvalues");
+                started = true;
+            }
+            xml.writeEmptyElement("attvalue");
+            xml.writeAttribute("for", entry.attribute.getId());
+            xml.writeAttribute("value", entry.value);
+            writeInterval(xml, entry, slice);
+        }
+        if (started) {
+            xml.writeEndElement();
+        }
+    }
+
+    /**
+     * Writes the interval of a spell or value, cut to a slice. Bounds cut by the slice are closed at its start and
+     * open at its end.
+     */
+    private static void writeInterval(XMLStreamWriter xml, Entry entry, Slice slice) throws XMLStreamException {
+        if (entry.start < slice.start) {
+            xml.writeAttribute("start", Double.toString(slice.start));
+        } else if ((entry.flags & HAS_START) != 0) {
+            xml.writeAttribute((entry.flags & START_OPEN) != 0 ? "startopen" : "start", Double.toString(entry.start));
+        }
+        if (entry.end > slice.end) {
+            xml.writeAttribute("endopen", Double.toString(slice.end));
+        } else if ((entry.flags & HAS_END) != 0) {
+            xml.writeAttribute((entry.flags & END_OPEN) != 0 ? "endopen" : "end", Double.toString(entry.end));
+        }
+    }
+
+    /**
+     * Spell or attribute value read back from the history. Missing bounds are infinite.
+     */
+    private static final class Entry {
+        private boolean spell;
+        private Attribute attribute;
+        private String value;
+        private int flags;
+        private double start;
+        private double end;
+    }
+
+    /**
+     * Gexf document of a slice being written.
+     */
+    private static final class SliceOutput implements Closeable {
+        private final Slice slice;
+        private final Writer out;
+        private final XMLStreamWriter xml;
+
+        private SliceOutput(Slice slice) throws IOException {
+            this.slice = slice;
+            OutputStream stream = new FileOutputStream(slice.file, false);
+            try {
+                if (slice.file.getName().endsWith(COMPRESSED_EXTENSION)) {
+                    stream = new GZIPOutputStream(stream, WRITE_BUFFER_SIZE);
+                }
+                this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)
+                        , WRITE_BUFFER_SIZE);
+                this.xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+            } catch (IOException | XMLStreamException e) {
+                stream.close();
+                throw new IOException("Could not write " + slice.file, e);
+            }
+        }
+
+        private void start(String description, List<AttributeList> attributeLists) throws XMLStreamException {
+            xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            xml.writeStartElement("gexf");
+            xml.writeDefaultNamespace(GEXF_NAMESPACE);
+            xml.writeAttribute("version", GEXF_VERSION);
+            writeMetadata(xml, description);
+
+            xml.writeStartElement("graph");
+            xml.writeAttribute("defaultedgetype", EdgeType.DIRECTED.toString().toLowerCase());
+            xml.writeAttribute("idtype", IDType.STRING.toString().toLowerCase());
+            xml.writeAttribute("mode", Mode.DYNAMIC.toString().toLowerCase());
+            xml.writeAttribute("timeformat", "double");
+            for (AttributeList attributeList : attributeLists) {
+                writeAttributes(xml, attributeList);
+            }
+        }
+
+        private void finish() throws XMLStreamException {
+            xml.writeEndElement();
+
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                xml.close();
+            } catch (XMLStreamException e) {
+                throw new IOException("Could not close " + slice.file, e);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Time slice of the graph written to a gexf file of its own, from <code>start</code> up to <code>end</code>,
+     * exclusive.
+     */
+    public static final class Slice {
+        private final File file;
+        private final double start;
+        private final double end;
+        private int nodeCount;
+        private int edgeCount;
+
+        /**
+         * @param file  the gexf file of the slice
+         * @param start start of the slice
+         * @param end   end of the slice, exclusive
+         */
+        public Slice(File file, double start, double end) {
+            checkArgument(start < end, "Slice must not be empty");
+            this.file = checkNotNull(file);
+            this.start = start;
+            this.end = end;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public double getStart() {
+            return start;
+        }
+
+        public double getEnd() {
+            return end;
+        }
+
+        /**
+         * @return number of nodes written to the slice
+         */
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        /**
+         * @return number of edges written to the slice
+         */
+        public int getEdgeCount() {
+            return edgeCount;
+        }
+
+        private boolean overlaps(Entry entry) {
+            return entry.start < end && entry.end > start;
+        }
+
+        private boolean overlaps(List<Entry> entries) {
+            for (Entry entry : entries) {
+                if (overlaps(entry)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
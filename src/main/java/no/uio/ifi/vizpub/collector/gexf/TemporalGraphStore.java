@@ -0,0 +1,438 @@
+package no.uio.ifi.vizpub.collector.gexf;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import no.uio.ifi.vizpub.reports.EdgeData;
+import no.uio.ifi.vizpub.reports.SymbolTable;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Lifetimes of the nodes and edges of a structural overlay, stored on disk for answering queries about the overlay
+ * at any reporting interval of the run, without regenerating or loading the gexf file.
+ * <p/>
+ * The lifetime of a node or edge is a list of intervals, each starting at the reporting interval the element joined
+ * the overlay and ending at the one it left at, exclusive. Intervals are kept in sorted columnar arrays which are
+ * memory-mapped rather than read, so opening a store only reads the node ids, and a query only touches the pages of
+ * the elements it asks about. Lifetime queries are binary searches. Snapshot queries start from the edges alive at
+ * the last checkpoint before the interval, which are listed every <code>checkpointInterval</code> reporting
+ * intervals, and add the edges which joined since, so their cost is bounded by the size of the snapshot rather than
+ * by the length of the run.
+ * <p/>
+ * The file starts with a header of twelve ints: magic number, version, first reporting interval of the run, the
+ * interval following the last, checkpoint interval, number of nodes, node intervals, edges, edge intervals,
+ * checkpoints and checkpointed edge intervals, and the number of bytes of node ids. Then follow, in order:
+ * <ul>
+ * <li>keys of the edges, sorted, see <code>EdgeData#key</code></li>
+ * <li>offset of the intervals of each node by handle, followed by their starts and ends</li>
+ * <li>offset of the intervals of each edge, followed by their starts, ends and edges</li>
+ * <li>edges ordered by target, then by source</li>
+ * <li>offset of the edge intervals starting at each reporting interval, followed by the edge intervals ordered
+ * by start</li>
+ * <li>offset of the edge intervals alive at each checkpoint, followed by the edge intervals alive at every
+ * checkpoint</li>
+ * <li>the node ids, in order of handle</li>
+ * </ul>
+ * Stores are written along with the structural overlay if enabled in <code>GexfBuilder</code>. A store is
+ * immutable once opened, and queries may be run concurrently.
+ *
+ * @author Nils Peder Korsveien
+ * @see StreamingGexfWriter#writeTemporalGraph(java.io.File)
+ */
+public final class TemporalGraphStore {
+    public static final String FILE_EXTENSION = ".tgs";
+
+    private final int runStart;
+    private final int runEnd;
+    private final int checkpointInterval;
+    private final SymbolTable nodeIds;
+
+    private final LongBuffer edgeKeys;
+    private final IntBuffer nodeSpellOffsets;
+    private final IntBuffer nodeSpellStarts;
+    private final IntBuffer nodeSpellEnds;
+    private final IntBuffer edgeSpellOffsets;
+    private final IntBuffer edgeSpellStarts;
+    private final IntBuffer edgeSpellEnds;
+    private final IntBuffer edgeSpellEdges;
+    private final IntBuffer incomingEdges;
+    private final IntBuffer startOffsets;
+    private final IntBuffer spellsByStart;
+    private final IntBuffer checkpoints;
+    private final IntBuffer checkpointSpells;
+
+    private TemporalGraphStore(ByteBuffer buffer) throws IOException {
+        runStart = buffer.getInt();
+        runEnd = buffer.getInt();
+        checkpointInterval = buffer.getInt();
+        int nodeCount = buffer.getInt();
+        int nodeSpellCount = buffer.getInt();
+        int edgeCount = buffer.getInt();
+        int edgeSpellCount = buffer.getInt();
+        int checkpointCount = buffer.getInt();
+        int checkpointSpellCount = buffer.getInt();
+        int symbolsLength = buffer.getInt();
+
+        ByteBuffer keys = buffer.slice();
+        keys.limit(8 * edgeCount);
+        edgeKeys = keys.asLongBuffer();
+        buffer.position(buffer.position() + 8 * edgeCount);
+
+        IntBuffer columns = buffer.slice().asIntBuffer();
+        nodeSpellOffsets = slice(columns, nodeCount + 1);
+        nodeSpellStarts = slice(columns, nodeSpellCount);
+        nodeSpellEnds = slice(columns, nodeSpellCount);
+        edgeSpellOffsets = slice(columns, edgeCount + 1);
+        edgeSpellStarts = slice(columns, edgeSpellCount);
+        edgeSpellEnds = slice(columns, edgeSpellCount);
+        edgeSpellEdges = slice(columns, edgeSpellCount);
+        incomingEdges = slice(columns, edgeCount);
+        startOffsets = slice(columns, runEnd - runStart + 1);
+        spellsByStart = slice(columns, edgeSpellCount);
+        checkpoints = slice(columns, checkpointCount + 1);
+        checkpointSpells = slice(columns, checkpointSpellCount);
+
+        byte[] symbols = new byte[symbolsLength];
+        buffer.position(buffer.limit() - symbolsLength);
+        buffer.get(symbols);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(symbols));
+        nodeIds = new SymbolTable();
+        for (int handle = 0; handle < nodeCount; handle++) {
+            nodeIds.intern(in.readUTF());
+        }
+    }
+
+    /**
+     * Opens a store, mapping it into memory.
+     *
+     * @param file the store file
+     * @return the store
+     */
+    public static TemporalGraphStore open(File file) throws IOException {
+        checkNotNull(file);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid once the file is closed
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (buffer.limit() < TemporalGraphWriter.HEADER_SIZE || buffer.getInt() != TemporalGraphWriter.MAGIC) {
+                throw new IOException(file + " is not a temporal graph store");
+            }
+            int version = buffer.getInt();
+            if (version != TemporalGraphWriter.VERSION) {
+                throw new IOException("Unsupported version " + version + " of temporal graph store " + file);
+            }
+            return new TemporalGraphStore(buffer);
+        }
+    }
+
+    /**
+     * @return first reporting interval of the run
+     */
+    public int getStart() {
+        return runStart;
+    }
+
+    /**
+     * @return reporting interval following the last of the run
+     */
+    public int getEnd() {
+        return runEnd;
+    }
+
+    /**
+     * @return number of nodes which were ever part of the overlay
+     */
+    public int getNodeCount() {
+        return nodeIds.size();
+    }
+
+    /**
+     * @return number of edges which were ever part of the overlay
+     */
+    public int getEdgeCount() {
+        return edgeKeys.limit();
+    }
+
+    /**
+     * @param interval a reporting interval
+     * @return the nodes and edges of the overlay at the interval
+     */
+    public Snapshot snapshotAt(int interval) {
+        List<String> nodes = new ArrayList<>();
+        ListMultimap<String, String> edges = ArrayListMultimap.create();
+        if (interval < runStart || interval >= runEnd) {
+            return new Snapshot(interval, nodes, edges);
+        }
+
+        for (int handle = 0; handle < nodeIds.size(); handle++) {
+            if (isAlive(nodeSpellStarts, nodeSpellEnds, nodeSpellOffsets.get(handle), nodeSpellOffsets.get(handle + 1)
+                    , interval)) {
+                nodes.add(nodeIds.symbol(handle));
+            }
+        }
+
+        int checkpoint = (interval - runStart) / checkpointInterval;
+        for (int i = checkpoints.get(checkpoint); i < checkpoints.get(checkpoint + 1); i++) {
+            addIfAlive(edges, checkpointSpells.get(i), interval);
+        }
+        // edges which joined after the checkpoint
+        int from = startOffsets.get(checkpoint * checkpointInterval + 1);
+        int to = startOffsets.get(interval - runStart + 1);
+        for (int i = from; i < to; i++) {
+            addIfAlive(edges, spellsByStart.get(i), interval);
+        }
+        return new Snapshot(interval, nodes, edges);
+    }
+
+    /**
+     * @param nodeId id of a node
+     * @return intervals the node was part of the overlay, in order, or an empty list if it never was
+     */
+    public List<Interval> nodeLifetime(String nodeId) {
+        int handle = nodeIds.lookup(checkNotNull(nodeId));
+        if (handle == SymbolTable.NO_HANDLE) {
+            return Collections.emptyList();
+        }
+        return intervals(nodeSpellStarts, nodeSpellEnds, nodeSpellOffsets.get(handle)
+                , nodeSpellOffsets.get(handle + 1));
+    }
+
+    /**
+     * @param sourceId id of the source of an edge
+     * @param targetId id of the target of the edge
+     * @return intervals the edge was part of the overlay, in order, or an empty list if it never was
+     */
+    public List<Interval> edgeLifetime(String sourceId, String targetId) {
+        int sourceHandle = nodeIds.lookup(checkNotNull(sourceId));
+        int targetHandle = nodeIds.lookup(checkNotNull(targetId));
+        if (sourceHandle == SymbolTable.NO_HANDLE || targetHandle == SymbolTable.NO_HANDLE) {
+            return Collections.emptyList();
+        }
+        long key = EdgeData.key(sourceHandle, targetHandle);
+        int edge = lowerBound(key);
+        if (edge == edgeKeys.limit() || edgeKeys.get(edge) != key) {
+            return Collections.emptyList();
+        }
+        return edgeIntervals(edge);
+    }
+
+    /**
+     * @param nodeId id of a node
+     * @return intervals each node was a neighbor of the node, i.e. the target of one of its edges, by the id of the
+     * neighbor
+     */
+    public Map<String, List<Interval>> outgoingHistory(String nodeId) {
+        Map<String, List<Interval>> history = new LinkedHashMap<>();
+        int handle = nodeIds.lookup(checkNotNull(nodeId));
+        if (handle == SymbolTable.NO_HANDLE) {
+            return history;
+        }
+        int to = lowerBound(EdgeData.key(handle + 1, 0));
+        for (int edge = lowerBound(EdgeData.key(handle, 0)); edge < to; edge++) {
+            history.put(nodeIds.symbol(EdgeData.targetHandle(edgeKeys.get(edge))), edgeIntervals(edge));
+        }
+        return history;
+    }
+
+    /**
+     * @param nodeId id of a node
+     * @return intervals the node was a neighbor of each node, i.e. the target of one of its edges, by the id of the
+     * node
+     */
+    public Map<String, List<Interval>> incomingHistory(String nodeId) {
+        Map<String, List<Interval>> history = new LinkedHashMap<>();
+        int handle = nodeIds.lookup(checkNotNull(nodeId));
+        if (handle == SymbolTable.NO_HANDLE) {
+            return history;
+        }
+        for (int i = incomingLowerBound(handle); i < incomingEdges.limit(); i++) {
+            int edge = incomingEdges.get(i);
+            long key = edgeKeys.get(edge);
+            if (EdgeData.targetHandle(key) != handle) {
+                break;
+            }
+            history.put(nodeIds.symbol(EdgeData.sourceHandle(key)), edgeIntervals(edge));
+        }
+        return history;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private void addIfAlive(ListMultimap<String, String> edges, int spell, int interval) {
+        if (edgeSpellEnds.get(spell) <= interval) {
+            return;
+        }
+        long key = edgeKeys.get(edgeSpellEdges.get(spell));
+        edges.put(nodeIds.symbol(EdgeData.sourceHandle(key)), nodeIds.symbol(EdgeData.targetHandle(key)));
+    }
+
+    private List<Interval> edgeIntervals(int edge) {
+        return intervals(edgeSpellStarts, edgeSpellEnds, edgeSpellOffsets.get(edge), edgeSpellOffsets.get(edge + 1));
+    }
+
+    /**
+     * @return index of the first edge with a key of at least the given key
+     */
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = edgeKeys.limit();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (edgeKeys.get(middle) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return index of the first edge ordered by target with a target of at least the given handle
+     */
+    private int incomingLowerBound(int targetHandle) {
+        int low = 0;
+        int high = incomingEdges.limit();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (EdgeData.targetHandle(edgeKeys.get(incomingEdges.get(middle))) < targetHandle) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return whether one of the intervals from <code>from</code> to <code>to</code>, which are sorted and disjoint,
+     * covers the given interval
+     */
+    private static boolean isAlive(IntBuffer starts, IntBuffer ends, int from, int to, int interval) {
+        int low = from;
+        int high = to;
+        // find the last interval starting at or before the given one
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts.get(middle) <= interval) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low > from && ends.get(low - 1) > interval;
+    }
+
+    private static List<Interval> intervals(IntBuffer starts, IntBuffer ends, int from, int to) {
+        List<Interval> intervals = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            intervals.add(new Interval(starts.get(i), ends.get(i)));
+        }
+        return intervals;
+    }
+
+    private static IntBuffer slice(IntBuffer columns, int length) {
+        IntBuffer slice = columns.slice();
+        slice.limit(length);
+        columns.position(columns.position() + length);
+        return slice;
+    }
+
+    /**
+     * Reporting intervals an element was part of the overlay, from <code>start</code> up to <code>end</code>,
+     * exclusive.
+     */
+    public static final class Interval {
+        private final int start;
+        private final int end;
+
+        public Interval(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public boolean contains(int interval) {
+            return start <= interval && interval < end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Interval other = (Interval) o;
+            return start == other.start && end == other.end;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * start + end;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ")";
+        }
+    }
+
+    /**
+     * Nodes and edges of the overlay at a reporting interval.
+     */
+    public static final class Snapshot {
+        private final int interval;
+        private final List<String> nodes;
+        private final ListMultimap<String, String> edges;
+
+        private Snapshot(int interval, List<String> nodes, ListMultimap<String, String> edges) {
+            this.interval = interval;
+            this.nodes = Collections.unmodifiableList(nodes);
+            this.edges = Multimaps.unmodifiableListMultimap(edges);
+        }
+
+        public int getInterval() {
+            return interval;
+        }
+
+        /**
+         * @return ids of the nodes, in order of handle
+         */
+        public List<String> getNodes() {
+            return nodes;
+        }
+
+        /**
+         * @return ids of the targets of the edges, by the id of their source
+         */
+        public ListMultimap<String, String> getEdges() {
+            return edges;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package no.uio.ifi.vizpub.collector.gexf;
+
+import no.uio.ifi.vizpub.reports.EdgeData;
+import no.uio.ifi.vizpub.reports.SymbolTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes the spells recorded by a <code>StreamingGexfWriter</code> to a temporal graph store.
+ * <p/>
+ * The history is read twice: once to size the sections of the store, and once to fill them in through a memory
+ * mapping of the file. Spells are read back grouped by element in order of key, which is the order of the store, so
+ * apart from histograms over the reporting intervals of the run, memory use does not grow with the size of the graph.
+ * See <code>TemporalGraphStore</code> for the layout of the file.
+ *
+ * @author Nils Peder Korsveien
+ * @see TemporalGraphStore
+ */
+final class TemporalGraphWriter {
+    static final int MAGIC = 0x56505447;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12 * 4;
+    static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+
+    private final SymbolTable nodeIds;
+    private final ElementHistory nodeHistory;
+    private final ElementHistory edgeHistory;
+    private final int checkpointInterval;
+
+    private final double[] spell = new double[2];
+    private long[] spells = new long[16];
+
+    /**
+     * Number of edge spells starting and ending at each reporting interval. Spells which have not ended are not
+     * counted as ending, as they last until the end of the run.
+     */
+    private int[] startCounts = new int[64];
+    private int[] endCounts = new int[64];
+
+    private int runStart = Integer.MAX_VALUE;
+    private int runEnd = Integer.MIN_VALUE;
+    private int nodeSpellCount;
+    private int edgeCount;
+    private int edgeSpellCount;
+
+    /**
+     * @param nodeIds            symbol table of the node ids of the run
+     * @param nodeHistory        recorded history of the nodes
+     * @param edgeHistory        recorded history of the edges
+     * @param checkpointInterval number of reporting intervals between the lists of edges alive at the same time
+     */
+    TemporalGraphWriter(SymbolTable nodeIds, ElementHistory nodeHistory, ElementHistory edgeHistory
+            , int checkpointInterval) {
+        checkArgument(checkpointInterval > 0, "Checkpoint interval must be positive");
+        this.nodeIds = checkNotNull(nodeIds);
+        this.nodeHistory = checkNotNull(nodeHistory);
+        this.edgeHistory = checkNotNull(edgeHistory);
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Writes the store, replacing the file if it exists.
+     *
+     * @param file the store file
+     */
+    void write(File file) throws IOException {
+        checkNotNull(file);
+        measure();
+        if (runStart > runEnd) {
+            // nothing was recorded
+            runStart = 0;
+            runEnd = 0;
+        }
+
+        byte[] symbols = encodeSymbols();
+        int nodeCount = nodeIds.size();
+        int length = runEnd - runStart;
+        int checkpointCount = (length + checkpointInterval - 1) / checkpointInterval;
+        int[] checkpointOffsets = checkpointOffsets(checkpointCount);
+        int checkpointSpellCount = checkpointOffsets[checkpointCount];
+
+        long size = HEADER_SIZE + 8L * edgeCount
+                + 4L * (nodeCount + 1) + 8L * nodeSpellCount
+                + 4L * (edgeCount + 1) + 12L * edgeSpellCount
+                + 4L * edgeCount
+                + 4L * (length + 1) + 4L * edgeSpellCount
+                + 4L * (checkpointCount + 1) + 4L * checkpointSpellCount
+                + symbols.length;
+        checkState(size <= Integer.MAX_VALUE, "Temporal graph of " + size + " bytes is too large to be mapped");
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(runStart)
+                    .putInt(runEnd)
+                    .putInt(checkpointInterval)
+                    .putInt(nodeCount)
+                    .putInt(nodeSpellCount)
+                    .putInt(edgeCount)
+                    .putInt(edgeSpellCount)
+                    .putInt(checkpointCount)
+                    .putInt(checkpointSpellCount)
+                    .putInt(symbols.length);
+
+            LongBuffer edgeKeys = buffer.asLongBuffer();
+            IntBuffer columns = section(buffer, 8 * edgeCount).asIntBuffer();
+            IntBuffer nodeSpellOffsets = slice(columns, nodeCount + 1);
+            IntBuffer nodeSpellStarts = slice(columns, nodeSpellCount);
+            IntBuffer nodeSpellEnds = slice(columns, nodeSpellCount);
+            IntBuffer edgeSpellOffsets = slice(columns, edgeCount + 1);
+            IntBuffer edgeSpellStarts = slice(columns, edgeSpellCount);
+            IntBuffer edgeSpellEnds = slice(columns, edgeSpellCount);
+            IntBuffer edgeSpellEdges = slice(columns, edgeSpellCount);
+            IntBuffer incomingEdges = slice(columns, edgeCount);
+            IntBuffer startOffsets = slice(columns, length + 1);
+            IntBuffer spellsByStart = slice(columns, edgeSpellCount);
+            IntBuffer checkpoints = slice(columns, checkpointCount + 1);
+            IntBuffer checkpointSpells = slice(columns, checkpointSpellCount);
+
+            writeNodes(nodeSpellOffsets, nodeSpellStarts, nodeSpellEnds);
+            writeEdges(edgeKeys, edgeSpellOffsets, edgeSpellStarts, edgeSpellEnds, edgeSpellEdges);
+            writeIncomingEdges(edgeKeys, nodeCount, incomingEdges);
+            writeStartIndex(edgeSpellStarts, startOffsets, spellsByStart);
+            writeCheckpoints(edgeSpellStarts, edgeSpellEnds, checkpointOffsets, checkpoints, checkpointSpells);
+
+            buffer.position(buffer.capacity() - symbols.length);
+            buffer.put(symbols);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Private methods:
+     */
+
+    /**
+     * Counts the spells and edges of the history, and the edge spells starting and ending at each interval.
+     */
+    private void measure() throws IOException {
+        int openEnd = Integer.MIN_VALUE;
+        try (ElementHistory.Cursor cursor = nodeHistory.cursor()) {
+            while (cursor.next()) {
+                for (byte[] record : cursor.records()) {
+                    if (StreamingGexfWriter.readSpell(record, spell)) {
+                        nodeSpellCount++;
+                        openEnd = Math.max(openEnd, measureSpell() + 1);
+                    }
+                }
+            }
+        }
+        try (ElementHistory.Cursor cursor = edgeHistory.cursor()) {
+            while (cursor.next()) {
+                int spellCount = edgeSpellCount;
+                for (byte[] record : cursor.records()) {
+                    if (!StreamingGexfWriter.readSpell(record, spell)) {
+                        continue;
+                    }
+                    edgeSpellCount++;
+                    int start = measureSpell();
+                    openEnd = Math.max(openEnd, start + 1);
+                    startCounts = count(startCounts, start);
+                    if (!Double.isNaN(spell[1])) {
+                        endCounts = count(endCounts, (int) spell[1]);
+                    }
+                }
+                if (edgeSpellCount > spellCount) {
+                    edgeCount++;
+                }
+            }
+        }
+        // spells which have not ended last until the end of the run
+        runEnd = Math.max(runEnd, openEnd);
+    }
+
+    /**
+     * @return start of the spell just read, after extending the run to cover it
+     */
+    private int measureSpell() {
+        int start = toInterval(spell[0]);
+        checkState(start >= 0, "Spell starts before the first reporting interval");
+        runStart = Math.min(runStart, start);
+        if (!Double.isNaN(spell[1])) {
+            runEnd = Math.max(runEnd, toInterval(spell[1]));
+        }
+        return start;
+    }
+
+    /**
+     * @return offset of the edge spells alive at each checkpoint among the spells of every checkpoint, followed by
+     * their total number
+     */
+    private int[] checkpointOffsets(int checkpointCount) {
+        int[] offsets = new int[checkpointCount + 1];
+        int alive = 0;
+        int interval = runStart;
+        for (int i = 0; i < checkpointCount; i++) {
+            int checkpoint = runStart + i * checkpointInterval;
+            for (; interval <= checkpoint; interval++) {
+                alive += countAt(startCounts, interval) - countAt(endCounts, interval);
+            }
+            offsets[i + 1] = offsets[i] + alive;
+        }
+        return offsets;
+    }
+
+    private void writeNodes(IntBuffer offsets, IntBuffer starts, IntBuffer ends) throws IOException {
+        int spellIndex = 0;
+        int nextHandle = 0;
+        try (ElementHistory.Cursor cursor = nodeHistory.cursor()) {
+            while (cursor.next()) {
+                int handle = (int) cursor.key();
+                for (; nextHandle <= handle; nextHandle++) {
+                    offsets.put(nextHandle, spellIndex);
+                }
+                int count = readSpells(cursor.records());
+                for (int i = 0; i < count; i++, spellIndex++) {
+                    starts.put(spellIndex, (int) (spells[i] >> 32));
+                    ends.put(spellIndex, (int) spells[i]);
+                }
+            }
+        }
+        for (; nextHandle < offsets.limit(); nextHandle++) {
+            offsets.put(nextHandle, spellIndex);
+        }
+    }
+
+    private void writeEdges(LongBuffer keys, IntBuffer offsets, IntBuffer starts, IntBuffer ends, IntBuffer edges)
+            throws IOException {
+        int spellIndex = 0;
+        int edgeIndex = 0;
+        try (ElementHistory.Cursor cursor = edgeHistory.cursor()) {
+            while (cursor.next()) {
+                int count = readSpells(cursor.records());
+                if (count == 0) {
+                    continue;
+                }
+                keys.put(edgeIndex, cursor.key());
+                offsets.put(edgeIndex, spellIndex);
+                for (int i = 0; i < count; i++, spellIndex++) {
+                    starts.put(spellIndex, (int) (spells[i] >> 32));
+                    ends.put(spellIndex, (int) spells[i]);
+                    edges.put(spellIndex, edgeIndex);
+                }
+                edgeIndex++;
+            }
+        }
+        offsets.put(edgeIndex, spellIndex);
+    }
+
+    /**
+     * Writes the indices of the edges ordered by target, then by source.
+     */
+    private static void writeIncomingEdges(LongBuffer keys, int nodeCount, IntBuffer incomingEdges) {
+        int[] offsets = new int[nodeCount + 1];
+        for (int i = 0; i < incomingEdges.limit(); i++) {
+            offsets[EdgeData.targetHandle(keys.get(i)) + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        for (int i = 0; i < incomingEdges.limit(); i++) {
+            incomingEdges.put(offsets[EdgeData.targetHandle(keys.get(i))]++, i);
+        }
+    }
+
+    /**
+     * Writes the indices of the edge spells ordered by start, along with the offset of the spells starting at each
+     * interval.
+     */
+    private void writeStartIndex(IntBuffer starts, IntBuffer startOffsets, IntBuffer spellsByStart) {
+        int[] next = new int[startOffsets.limit()];
+        for (int i = 1; i < next.length; i++) {
+            next[i] = next[i - 1] + countAt(startCounts, runStart + i - 1);
+            startOffsets.put(i, next[i]);
+        }
+        for (int i = 0; i < spellsByStart.limit(); i++) {
+            spellsByStart.put(next[starts.get(i) - runStart]++, i);
+        }
+    }
+
+    /**
+     * Writes the indices of the edge spells alive at every checkpoint, in order of spell.
+     */
+    private void writeCheckpoints(IntBuffer starts, IntBuffer ends, int[] offsets, IntBuffer checkpoints
+            , IntBuffer checkpointSpells) {
+        int[] next = Arrays.copyOf(offsets, offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            checkpoints.put(i, offsets[i]);
+        }
+        for (int i = 0; i < starts.limit(); i++) {
+            int first = (starts.get(i) - runStart + checkpointInterval - 1) / checkpointInterval;
+            for (int checkpoint = first; runStart + checkpoint * checkpointInterval < ends.get(i); checkpoint++) {
+                checkpointSpells.put(next[checkpoint]++, i);
+            }
+        }
+    }
+
+    /**
+     * Reads the spells of an element into <code>spells</code>, packed as start and end and sorted by start. Spells
+     * which have not ended are ended at the end of the run.
+     *
+     * @return number of spells read
+     */
+    private int readSpells(List<byte[]> records) {
+        int count = 0;
+        for (byte[] record : records) {
+            if (!StreamingGexfWriter.readSpell(record, spell)) {
+                continue;
+            }
+            int start = toInterval(spell[0]);
+            int end = Double.isNaN(spell[1]) ? runEnd : toInterval(spell[1]);
+            if (count == spells.length) {
+                spells = Arrays.copyOf(spells, count * 2);
+            }
+            spells[count++] = ((long) start << 32) | (end & 0xFFFFFFFFL);
+        }
+        Arrays.sort(spells, 0, count);
+        return count;
+    }
+
+    private byte[] encodeSymbols() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int handle = 0; handle < nodeIds.size(); handle++) {
+            out.writeUTF(nodeIds.symbol(handle));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static int toInterval(double time) {
+        checkState(time == Math.rint(time), "Spells must start and end at whole reporting intervals");
+        return (int) time;
+    }
+
+    private static int[] count(int[] counts, int interval) {
+        if (interval >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, interval + 1));
+        }
+        counts[interval]++;
+        return counts;
+    }
+
+    private static int countAt(int[] counts, int interval) {
+        return interval < counts.length ? counts[interval] : 0;
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, int offset) {
+        ByteBuffer section = buffer.duplicate();
+        section.position(buffer.position() + offset);
+        return section.slice();
+    }
+
+    /**
+     * @return the next <code>length</code> ints of the columns, after which the columns are positioned
+     */
+    private static IntBuffer slice(IntBuffer columns, int length) {
+        IntBuffer slice = columns.slice();
+        slice.limit(length);
+        columns.position(columns.position() + length);
+        return slice;
+    }
+}
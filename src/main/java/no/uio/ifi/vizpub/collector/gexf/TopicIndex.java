@@ -0,0 +1,290 @@
+package no.uio.ifi.vizpub.collector.gexf;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import no.uio.ifi.vizpub.reports.EdgeData;
+import no.uio.ifi.vizpub.reports.NodeData;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.SymbolTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Partition of the overlay at a reporting interval into the subgraphs of its topics.
+ * <p/>
+ * The subgraph of a topic holds the nodes subscribing to the topic, and the edges between them, i.e. the edges
+ * from a node to a live neighbor sharing the topic. Both are indexed by topic straight from the topics of the
+ * reported nodes whenever an interval is added, so per-topic metrics such as the topic diameter are computed on the
+ * subgraph without filtering the whole graph by the string value of the <code>Topics</code> attribute.
+ * <p/>
+ * Nodes are kept by their handles in the symbol table of the run, and edges by their keys, see
+ * <code>EdgeData#key</code>. Topics keep their handles across intervals. This class is not thread-safe.
+ *
+ * @author Nils Peder Korsveien
+ * @see GexfBuilder#createTopicMetrics(String, String)
+ */
+public final class TopicIndex {
+    private static final int[] NO_TOPICS = new int[0];
+
+    private final SymbolTable nodeIds;
+    private final SymbolTable topicIds = new SymbolTable();
+    private int interval = -1;
+
+    /**
+     * Member handles and edge keys of each topic at the current interval, by topic handle, sorted
+     */
+    private int[][] members = new int[16][];
+    private int[] memberCounts = new int[16];
+    private long[][] edges = new long[16][];
+    private int[] edgeCounts = new int[16];
+
+    /**
+     * Sorted topic handles of each node reported in the current interval, by node handle
+     */
+    private int[][] nodeTopics = new int[1024][];
+    private int[] reportedAt = new int[1024];
+
+    /**
+     * @param nodeIds symbol table of the node ids of the run
+     */
+    public TopicIndex(SymbolTable nodeIds) {
+        this.nodeIds = checkNotNull(nodeIds);
+        Arrays.fill(reportedAt, -1);
+    }
+
+    /**
+     * Replaces the index by the topic subgraphs of a reporting interval.
+     *
+     * @param report report merged from every host at the interval
+     */
+    public void update(Report report) {
+        checkNotNull(report);
+        interval = report.getIntervalCount();
+        Arrays.fill(memberCounts, 0);
+        Arrays.fill(edgeCounts, 0);
+
+        List<NodeData> nodes = new ArrayList<>(report.getNodes().values());
+        for (NodeData nodeData : nodes) {
+            int handle = nodeIds.intern(nodeData.getId());
+            growNodes(handle + 1);
+            reportedAt[handle] = interval;
+            nodeTopics[handle] = topicHandles(nodeData.getTopics());
+            for (int topic : nodeTopics[handle]) {
+                growTopics(topic + 1);
+                members[topic] = add(members[topic], memberCounts[topic]++, handle);
+            }
+        }
+
+        for (NodeData nodeData : nodes) {
+            int source = nodeIds.lookup(nodeData.getId());
+            int[] sourceTopics = nodeTopics[source];
+            if (sourceTopics.length == 0) {
+                continue;
+            }
+            for (String neighborId : nodeData.getNeighbors()) {
+                int target = nodeIds.lookup(neighborId);
+                if (target == SymbolTable.NO_HANDLE || reportedAt[target] != interval || target == source) {
+                    continue;
+                }
+                addSharedTopicEdges(source, target, sourceTopics, nodeTopics[target]);
+            }
+        }
+
+        for (int topic = 0; topic < topicIds.size(); topic++) {
+            if (memberCounts[topic] > 0) {
+                Arrays.sort(members[topic], 0, memberCounts[topic]);
+            }
+            if (edgeCounts[topic] > 0) {
+                Arrays.sort(edges[topic], 0, edgeCounts[topic]);
+            }
+        }
+    }
+
+    /**
+     * @return reporting interval of the index, or -1 if no interval has been added
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return topics with at least one member at the current interval
+     */
+    public List<String> getTopics() {
+        List<String> topics = new ArrayList<>();
+        for (int topic = 0; topic < topicIds.size(); topic++) {
+            if (memberCounts[topic] > 0) {
+                topics.add(topicIds.symbol(topic));
+            }
+        }
+        return topics;
+    }
+
+    /**
+     * @return ids of the nodes subscribing to the topic
+     */
+    public List<String> getMembers(String topic) {
+        int handle = topicIds.lookup(checkNotNull(topic));
+        if (handle == SymbolTable.NO_HANDLE) {
+            return Collections.emptyList();
+        }
+        List<String> ids = new ArrayList<>(memberCounts[handle]);
+        for (int i = 0; i < memberCounts[handle]; i++) {
+            ids.add(nodeIds.symbol(members[handle][i]));
+        }
+        return ids;
+    }
+
+    /**
+     * @return ids of the targets of the edges of the topic subgraph, by the id of their source
+     */
+    public ListMultimap<String, String> getEdges(String topic) {
+        ListMultimap<String, String> topicEdges = ArrayListMultimap.create();
+        int handle = topicIds.lookup(checkNotNull(topic));
+        if (handle == SymbolTable.NO_HANDLE) {
+            return topicEdges;
+        }
+        for (int i = 0; i < edgeCounts[handle]; i++) {
+            long key = edges[handle][i];
+            topicEdges.put(nodeIds.symbol(EdgeData.sourceHandle(key)), nodeIds.symbol(EdgeData.targetHandle(key)));
+        }
+        return topicEdges;
+    }
+
+    public int getMemberCount(String topic) {
+        int handle = topicIds.lookup(checkNotNull(topic));
+        return handle == SymbolTable.NO_HANDLE ? 0 : memberCounts[handle];
+    }
+
+    public int getEdgeCount(String topic) {
+        int handle = topicIds.lookup(checkNotNull(topic));
+        return handle == SymbolTable.NO_HANDLE ? 0 : edgeCounts[handle];
+    }
+
+    /**
+     * Computes the diameter of a topic subgraph, i.e. the longest of the shortest directed paths between any two of
+     * its members which are connected, by a breadth-first search from every member.
+     *
+     * @return the diameter, or 0 if the subgraph has no edges
+     */
+    public int getDiameter(String topic) {
+        int handle = topicIds.lookup(checkNotNull(topic));
+        if (handle == SymbolTable.NO_HANDLE || edgeCounts[handle] == 0) {
+            return 0;
+        }
+        int[] topicMembers = members[handle];
+        int memberCount = memberCounts[handle];
+        long[] topicEdges = edges[handle];
+        int edgeCount = edgeCounts[handle];
+
+        // adjacency of the members by index, from the edges sorted by source
+        int[] offsets = new int[memberCount + 1];
+        int[] targets = new int[edgeCount];
+        for (int i = 0; i < edgeCount; i++) {
+            offsets[Arrays.binarySearch(topicMembers, 0, memberCount, EdgeData.sourceHandle(topicEdges[i])) + 1]++;
+            targets[i] = Arrays.binarySearch(topicMembers, 0, memberCount, EdgeData.targetHandle(topicEdges[i]));
+        }
+        for (int i = 0; i < memberCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        int diameter = 0;
+        int[] distances = new int[memberCount];
+        int[] queue = new int[memberCount];
+        for (int start = 0; start < memberCount; start++) {
+            Arrays.fill(distances, -1);
+            distances[start] = 0;
+            queue[0] = start;
+            int head = 0;
+            int tail = 1;
+            while (head < tail) {
+                int member = queue[head++];
+                for (int i = offsets[member]; i < offsets[member + 1]; i++) {
+                    int target = targets[i];
+                    if (distances[target] < 0) {
+                        distances[target] = distances[member] + 1;
+                        diameter = Math.max(diameter, distances[target]);
+                        queue[tail++] = target;
+                    }
+                }
+            }
+        }
+        return diameter;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private void addSharedTopicEdges(int source, int target, int[] sourceTopics, int[] targetTopics) {
+        long key = EdgeData.key(source, target);
+        int i = 0;
+        int j = 0;
+        while (i < sourceTopics.length && j < targetTopics.length) {
+            if (sourceTopics[i] < targetTopics[j]) {
+                i++;
+            } else if (sourceTopics[i] > targetTopics[j]) {
+                j++;
+            } else {
+                int topic = sourceTopics[i];
+                if (edges[topic] == null) {
+                    edges[topic] = new long[16];
+                } else if (edgeCounts[topic] == edges[topic].length) {
+                    edges[topic] = Arrays.copyOf(edges[topic], edgeCounts[topic] * 2);
+                }
+                edges[topic][edgeCounts[topic]++] = key;
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private int[] topicHandles(Set<String> topics) {
+        if (topics == null || topics.isEmpty()) {
+            return NO_TOPICS;
+        }
+        int[] handles = new int[topics.size()];
+        int count = 0;
+        for (String topic : topics) {
+            handles[count++] = topicIds.intern(topic);
+        }
+        Arrays.sort(handles);
+        return handles;
+    }
+
+    private void growNodes(int size) {
+        if (size > reportedAt.length) {
+            int length = Math.max(reportedAt.length * 2, size);
+            int oldLength = reportedAt.length;
+            reportedAt = Arrays.copyOf(reportedAt, length);
+            Arrays.fill(reportedAt, oldLength, length, -1);
+            nodeTopics = Arrays.copyOf(nodeTopics, length);
+        }
+    }
+
+    private void growTopics(int size) {
+        if (size > members.length) {
+            int length = Math.max(members.length * 2, size);
+            members = Arrays.copyOf(members, length);
+            memberCounts = Arrays.copyOf(memberCounts, length);
+            edges = Arrays.copyOf(edges, length);
+            edgeCounts = Arrays.copyOf(edgeCounts, length);
+        }
+    }
+
+    private static int[] add(int[] values, int count, int value) {
+        if (values == null) {
+            values = new int[16];
+        } else if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count] = value;
+        return values;
+    }
+}
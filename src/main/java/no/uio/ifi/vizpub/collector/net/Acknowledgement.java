@@ -0,0 +1,87 @@
+package no.uio.ifi.vizpub.collector.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Cumulative acknowledgement sent from the collector to a reporter once a report has been committed.
+ * <p/>
+ * Reports are committed in the order each reporter sent them, so acknowledging an interval also acknowledges
+ * every earlier interval of the same protocol sent on the connection. On the wire, an acknowledgement is a frame
+ * of its own:
+ * <pre>
+ *     {@code
+ *     int    length
+ *     byte   type        (TYPE_ACK)
+ *     UTF    protocol name
+ *     int    reporting interval
+ *     }
+ * </pre>
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportFrame
+ */
+public final class Acknowledgement {
+    private final String protocolName;
+    private final int interval;
+
+    public Acknowledgement(String protocolName, int interval) {
+        this.protocolName = checkNotNull(protocolName);
+        this.interval = interval;
+    }
+
+    /**
+     * Reads an acknowledgement sent by the collector.
+     *
+     * @param in stream to read from
+     * @return the acknowledgement
+     */
+    public static Acknowledgement readFrom(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int type = in.readUnsignedByte();
+        if (type != ReportFrame.TYPE_ACK) {
+            throw new IOException("Unexpected frame type " + type + " of length " + length);
+        }
+        return new Acknowledgement(in.readUTF(), in.readInt());
+    }
+
+    /**
+     * Returns this acknowledgement as a frame ready to be written to a channel.
+     *
+     * @return buffer holding the frame
+     */
+    ByteBuffer toFrame() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(ReportFrame.TYPE_ACK);
+            out.writeUTF(protocolName);
+            out.writeInt(interval);
+
+            ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+            frame.putInt(0, frame.capacity() - 4);
+            return frame;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getProtocolName() {
+        return protocolName;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    @Override
+    public String toString() {
+        return protocolName + "@" + interval;
+    }
+}
@@ -0,0 +1,535 @@
+package no.uio.ifi.vizpub.collector.net;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import no.uio.ifi.vizpub.utils.BufferPool;
+import no.uio.ifi.vizpub.utils.LogCategory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Non-blocking server receiving reports from any number of reporters on a single selector thread.
+ * <p/>
+ * Each connection reads into a direct buffer borrowed from a pool, from which <code>ReportFrame</code>s are
+ * assembled and handed to a bounded <code>IngestionStage</code>. When the ingestion queue of a connection is full,
+ * the server stops reading from that connection until the queue has room again, which pushes back on the reporter
+ * through TCP flow control rather than buffering without bound.
+ * <p/>
+ * Once the listener has accepted a report, an <code>Acknowledgement</code> is sent back on the connection it arrived
+ * on, so that the reporter may discard it. If the listener fails to accept a report, the connection is closed
+ * instead, and the reporter sends its unacknowledged reports again once it has reconnected.
+ * <p/>
+ * Once every reporter has ended its stream and disconnected, and all of their reports have been ingested, the
+ * listener is told that the reporters have finished. A reporter which disconnects without ending its stream, e.g.
+ * after a transient failure or because the server dropped it, is expected to reconnect and resend its
+ * unacknowledged reports, and is waited for until <code>reconnectGraceMillis</code> have passed. Reporters are
+ * recognized by the host name of their reports, or by their address if they never sent a report.
+ *
+ * @author Nils Peder Korsveien
+ * @see IngestionStage
+ * @see ReportFrame
+ * @see Acknowledgement
+ */
+public class CollectorServer extends AbstractExecutionThreadService {
+
+    /**
+     * Receiver of the reports collected by the server. Apart from <code>reportersFinished</code>, its methods are
+     * invoked concurrently from the ingestion threads.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked for every report received, in the order they were sent by each reporter. A reporter may send a
+         * report again if it reconnects before the report was acknowledged, so the listener should ignore reports
+         * it has already accepted. The frame may be a view of memory which is reused once the method returns.
+         *
+         * @param frame the received report
+         */
+        void reportReceived(ReportFrame frame) throws IOException;
+
+        /**
+         * Invoked when all reporters have ended their streams and disconnected, or were given up on, and their
+         * reports have been ingested.
+         */
+        void reportersFinished();
+    }
+
+    public static final long DEFAULT_RECONNECT_GRACE_MILLIS = 60000;
+
+    /**
+     * Upper bound on how long a stalled connection waits before its pending frame is offered again
+     */
+    private static final long STALL_RETRY_MILLIS = 10;
+
+    private final InetSocketAddress address;
+    private final IngestionStage ingestion;
+    private final BufferPool bufferPool;
+    private final long reconnectGraceMillis;
+    private final List<Connection> stalled = new ArrayList<>();
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile int connectionCount;
+
+    /**
+     * Reporters which disconnected without ending their stream, and the time at which they are no longer waited
+     * for, by host name or address
+     */
+    private final Map<String, Long> reconnecting = new LinkedHashMap<>();
+    private volatile int reconnectingCount;
+    private int nextConnectionId;
+
+    /**
+     * @param address         address to listen on
+     * @param ingestionCount  number of threads ingesting reports
+     * @param queueCapacity   number of reports each ingestion thread may have queued
+     * @param listener        receiver of the collected reports
+     */
+    public CollectorServer(InetSocketAddress address, int ingestionCount, int queueCapacity, Listener listener) {
+        this(address, ingestionCount, queueCapacity, DEFAULT_RECONNECT_GRACE_MILLIS, listener);
+    }
+
+    /**
+     * @param address              address to listen on
+     * @param ingestionCount       number of threads ingesting reports
+     * @param queueCapacity        number of reports each ingestion thread may have queued
+     * @param reconnectGraceMillis how long to wait for a reporter which disconnected without ending its stream
+     * @param listener             receiver of the collected reports
+     */
+    public CollectorServer(InetSocketAddress address, int ingestionCount, int queueCapacity
+            , long reconnectGraceMillis, Listener listener) {
+        checkArgument(reconnectGraceMillis >= 0, "Reconnect grace period must not be negative");
+        this.address = checkNotNull(address);
+        this.ingestion = new IngestionStage(ingestionCount, queueCapacity, listener);
+        this.bufferPool = new BufferPool(256);
+        this.reconnectGraceMillis = reconnectGraceMillis;
+    }
+
+    /**
+     * Returns the address the server is listening on, which is useful when listening on an ephemeral port.
+     *
+     * @return address of the server socket
+     */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        awaitRunning();
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * @return number of received reports waiting to be ingested
+     */
+    public int getQueuedReports() {
+        return ingestion.size();
+    }
+
+    /**
+     * @return number of reporters currently connected
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * @return number of reporters which disconnected without ending their stream, and are waited for to reconnect
+     */
+    public int getReconnectingCount() {
+        return reconnectingCount;
+    }
+
+    @Override
+    protected void startUp() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        Log.info(LogCategory.COLLECTOR, "Listening on " + serverChannel.getLocalAddress());
+    }
+
+    @Override
+    protected void run() throws IOException {
+        while (isRunning()) {
+            selector.select(selectTimeout());
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.isWritable()) {
+                    write(connection);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(connection);
+                }
+            }
+            resumeStalled();
+            writeAcknowledgements();
+            expireReconnects();
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    protected void shutDown() throws IOException, InterruptedException {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        serverChannel.close();
+        selector.close();
+        ingestion.stop();
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            Connection connection = new Connection(nextConnectionId++, channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount++;
+            ingestion.cancelDrain();
+            // a reporter which never sent a report is only known by its address
+            reconnected(connection.address);
+            Log.debug(LogCategory.COLLECTOR, "Reporter connected from " + connection.address);
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            int count = connection.channel.read(connection.buffer);
+            if (count < 0) {
+                disconnect(connection);
+                return;
+            }
+            parse(connection);
+        } catch (IOException e) {
+            Log.warn(LogCategory.COLLECTOR, "Dropping connection from " + connection.address, e);
+            disconnect(connection);
+        }
+    }
+
+    private void write(Connection connection) {
+        try {
+            ByteBuffer frame;
+            while ((frame = connection.outbound.peek()) != null) {
+                connection.channel.write(frame);
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                connection.outbound.poll();
+            }
+            updateInterest(connection);
+        } catch (IOException e) {
+            Log.warn(LogCategory.COLLECTOR, "Dropping connection from " + connection.address, e);
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Writes the acknowledgements queued by the ingestion threads, and closes the connections whose reports could
+     * not be ingested.
+     */
+    private void writeAcknowledgements() {
+        Connection connection;
+        while ((connection = writable.poll()) != null) {
+            if (connection.isClosed()) {
+                continue;
+            }
+            if (connection.failed) {
+                Log.warn(LogCategory.COLLECTOR, "Dropping connection from " + connection.address
+                        + " after failing to ingest its report");
+                disconnect(connection);
+                continue;
+            }
+            write(connection);
+        }
+    }
+
+    /**
+     * Reads from a connection unless it is stalled, and writes to it while it has acknowledgements to send.
+     */
+    private void updateInterest(Connection connection) {
+        int ops = connection.pending == null ? SelectionKey.OP_READ : 0;
+        if (!connection.outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    /**
+     * Assembles frames from the bytes read so far and hands them to the ingestion stage, stalling the connection
+     * if the stage has no room.
+     */
+    private void parse(Connection connection) throws IOException {
+        ByteBuffer buffer = connection.buffer;
+        buffer.flip();
+        try {
+            while (connection.pending == null) {
+                if (connection.frame == null) {
+                    if (buffer.remaining() < 4) {
+                        return;
+                    }
+                    int length = buffer.getInt();
+                    if (length <= 0 || length > ReportFrame.MAX_LENGTH) {
+                        throw new IOException("Invalid frame length " + length);
+                    }
+                    connection.frame = new byte[length];
+                    connection.filled = 0;
+                }
+
+                int chunk = Math.min(buffer.remaining(), connection.frame.length - connection.filled);
+                buffer.get(connection.frame, connection.filled, chunk);
+                connection.filled += chunk;
+                if (connection.filled < connection.frame.length) {
+                    return;
+                }
+
+                ByteBuffer bytes = ByteBuffer.wrap(connection.frame);
+                connection.frame = null;
+                if (ReportFrame.isEndOfStream(bytes)) {
+                    identify(connection, ReportFrame.parseEndOfStream(bytes));
+                    connection.ended = true;
+                    Log.debug(LogCategory.COLLECTOR, connection.address + " has ended its stream");
+                    continue;
+                }
+                ReportFrame frame = ReportFrame.parse(bytes);
+                identify(connection, frame.getHostName());
+                if (!ingestion.offer(connection, frame)) {
+                    connection.pending = frame;
+                    updateInterest(connection);
+                    stalled.add(connection);
+                }
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private void resumeStalled() {
+        if (stalled.isEmpty()) {
+            return;
+        }
+
+        // parsing may stall a connection again
+        List<Connection> connections = new ArrayList<>(stalled);
+        stalled.clear();
+        for (Connection connection : connections) {
+            if (!ingestion.offer(connection, connection.pending)) {
+                stalled.add(connection);
+                continue;
+            }
+            connection.pending = null;
+            try {
+                parse(connection);
+                if (connection.pending == null) {
+                    updateInterest(connection);
+                }
+            } catch (IOException e) {
+                Log.warn(LogCategory.COLLECTOR, "Dropping connection from " + connection.address, e);
+                disconnect(connection);
+            }
+        }
+    }
+
+    private void disconnect(Connection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        if (connection.frame != null) {
+            Log.warn(LogCategory.COLLECTOR, connection.address + " disconnected in the middle of a report");
+        }
+        stalled.remove(connection);
+        connection.close();
+        connectionCount--;
+        if (connection.ended) {
+            Log.debug(LogCategory.COLLECTOR, connection.address + " disconnected!");
+        } else {
+            String reporter = connection.reporterName != null ? connection.reporterName : connection.address;
+            reconnecting.put(reporter, System.currentTimeMillis() + reconnectGraceMillis);
+            reconnectingCount = reconnecting.size();
+            Log.info(LogCategory.COLLECTOR, reporter + " disconnected before ending its stream, waiting up to "
+                    + reconnectGraceMillis + " ms for it to reconnect");
+        }
+        drainIfFinished();
+    }
+
+    /**
+     * Names a connection after the host of its first report, which stops waiting for that reporter to reconnect.
+     */
+    private void identify(Connection connection, String hostName) {
+        if (connection.reporterName == null && hostName != null) {
+            connection.reporterName = hostName;
+            reconnected(hostName);
+        }
+    }
+
+    private void reconnected(String reporter) {
+        if (reconnecting.remove(reporter) != null) {
+            reconnectingCount = reconnecting.size();
+            Log.info(LogCategory.COLLECTOR, reporter + " has reconnected");
+        }
+    }
+
+    /**
+     * Gives up on the reporters which have not reconnected within the grace period.
+     */
+    private void expireReconnects() {
+        if (reconnecting.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> reporters = reconnecting.entrySet().iterator();
+        while (reporters.hasNext()) {
+            Map.Entry<String, Long> reporter = reporters.next();
+            if (reporter.getValue() <= now) {
+                Log.warn(LogCategory.COLLECTOR, reporter.getKey() + " did not reconnect within "
+                        + reconnectGraceMillis + " ms, its remaining reports are lost");
+                reporters.remove();
+            }
+        }
+        if (reconnectingCount != reconnecting.size()) {
+            reconnectingCount = reconnecting.size();
+            drainIfFinished();
+        }
+    }
+
+    /**
+     * Tells the listener that the reporters have finished once their reports have been ingested, if no reporter is
+     * connected or expected to reconnect.
+     */
+    private void drainIfFinished() {
+        if (connectionCount == 0 && reconnecting.isEmpty()) {
+            Log.info(LogCategory.COLLECTOR, "All reporters have finished...");
+            ingestion.requestDrain();
+        }
+    }
+
+    /**
+     * @return milliseconds to wait for the selector, until the next stalled retry or reconnect deadline, or 0 to
+     * wait until a channel is selected
+     */
+    private long selectTimeout() {
+        long timeout = stalled.isEmpty() ? 0 : STALL_RETRY_MILLIS;
+        for (long deadline : reconnecting.values()) {
+            long remaining = Math.max(1, deadline - System.currentTimeMillis());
+            timeout = timeout == 0 ? remaining : Math.min(timeout, remaining);
+        }
+        return timeout;
+    }
+
+    /**
+     * State of a single reporter connection. Apart from its outbound acknowledgements and failure flag, which are
+     * written by the ingestion threads, it is only accessed from the selector thread.
+     */
+    private final class Connection implements IngestionStage.Origin {
+        private final int id;
+        private final SocketChannel channel;
+        private final String address;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private volatile boolean failed;
+        private SelectionKey key;
+        private ByteBuffer buffer;
+
+        /**
+         * Host name of the reports received on the connection, and whether the reporter has ended its stream
+         */
+        private String reporterName;
+        private boolean ended;
+
+        /**
+         * Frame being assembled
+         */
+        private byte[] frame;
+        private int filled;
+
+        /**
+         * Frame waiting for room in the ingestion stage
+         */
+        private ReportFrame pending;
+
+        private Connection(int id, SocketChannel channel) throws IOException {
+            this.id = id;
+            this.channel = channel;
+            this.address = ((InetSocketAddress) channel.getRemoteAddress()).getHostString();
+            this.buffer = bufferPool.acquire();
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public void ingested(ReportFrame frame) {
+            outbound.add(new Acknowledgement(frame.getProtocolName(), frame.getInterval()).toFrame());
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        @Override
+        public void failed(ReportFrame frame, Exception cause) {
+            failed = true;
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        private boolean isClosed() {
+            return buffer == null;
+        }
+
+        private void close() {
+            if (buffer == null) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
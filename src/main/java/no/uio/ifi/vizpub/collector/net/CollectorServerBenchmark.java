@@ -0,0 +1,120 @@
+package no.uio.ifi.vizpub.collector.net;
+
+import com.google.common.base.Stopwatch;
+import no.uio.ifi.vizpub.reporter.ReportSender;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.io.ReportCodecBenchmark;
+import no.uio.ifi.vizpub.reports.io.ReportFiles;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Measures the ingestion throughput of the collector server with many simulated reporters on localhost.
+ * <p/>
+ * Every simulated reporter connects to a server listening on an ephemeral port through a <code>ReportSender</code>,
+ * sends the same synthetic report for a number of intervals and disconnects once all of them are acknowledged. The
+ * server decodes every report it receives, but does not persist them. Usage:
+ * <pre>
+ *     {@code
+ *     CollectorServerBenchmark [reporters] [reports per reporter] [nodes] [format] [compression] [window]
+ *     }
+ * </pre>
+ *
+ * @author Nils Peder Korsveien
+ * @see CollectorServer
+ * @see ReportSender
+ */
+public final class CollectorServerBenchmark {
+
+    private CollectorServerBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int reporterCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int reportCount = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int nodeCount = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        String format = args.length > 3 ? args[3] : ReportFiles.FORMAT_BINARY;
+        boolean compress = ReportFiles.parseCompression(args.length > 4 ? args[4] : ReportFiles.COMPRESSION_DEFLATE);
+        final int window = args.length > 5 ? Integer.parseInt(args[5]) : 32;
+
+        final Report report = ReportCodecBenchmark.createReport(nodeCount, 16, new Random(42));
+        final ReportFrame frame = ReportFrame.encode(report, "reporter", ReportFiles.codecFor(format), compress);
+
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicLong receivedBytes = new AtomicLong();
+        final CountDownLatch finished = new CountDownLatch(1);
+        CollectorServer server = new CollectorServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)
+                , Runtime.getRuntime().availableProcessors()
+                , 16
+                , new CollectorServer.Listener() {
+            @Override
+            public void reportReceived(ReportFrame frame) throws IOException {
+                checkState(frame.decode().getNodes().size() == report.getNodes().size(), "Received report differs");
+                receivedBytes.addAndGet(frame.getLength());
+                received.incrementAndGet();
+            }
+
+            @Override
+            public void reportersFinished() {
+                finished.countDown();
+            }
+        });
+        server.startAsync();
+        final InetSocketAddress address = server.getLocalAddress();
+
+        System.out.println(reporterCount + " reporters sending " + reportCount + " reports of "
+                + frame.getLength() + " bytes (" + format + ", " + (compress ? "compressed" : "uncompressed")
+                + ", window " + window + ")");
+
+        // connect every reporter before sending, so the server does not finish early
+        final CountDownLatch connected = new CountDownLatch(reporterCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService reporters = Executors.newFixedThreadPool(reporterCount);
+        for (int i = 0; i < reporterCount; i++) {
+            final String hostName = "reporter-" + i;
+            reporters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (ReportSender sender = new ReportSender(address, window)) {
+                        sender.connect();
+                        connected.countDown();
+                        start.await();
+                        for (int j = 0; j < reportCount; j++) {
+                            sender.send(frame.withHeader(hostName, j));
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        connected.await();
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        start.countDown();
+        finished.await();
+        stopwatch.stop();
+        reporters.shutdown();
+        server.stopAsync().awaitTerminated();
+
+        double seconds = stopwatch.elapsed(TimeUnit.MICROSECONDS) / 1e6;
+        checkState(received.get() == reporterCount * reportCount, "Expected " + reporterCount * reportCount
+                + " reports, received " + received.get());
+        System.out.println("reports;seconds;reports/s;MB/s");
+        System.out.println(received.get()
+                + ";" + seconds
+                + ";" + received.get() / seconds
+                + ";" + receivedBytes.get() / seconds / (1024 * 1024));
+    }
+}
@@ -0,0 +1,194 @@
+package no.uio.ifi.vizpub.collector.net;
+
+import com.esotericsoftware.minlog.Log;
+import no.uio.ifi.vizpub.utils.LogCategory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded stage handing frames received by the collector server to its listener.
+ * <p/>
+ * The stage consists of a fixed number of worker threads, each with its own bounded queue. All frames from a
+ * connection are queued to the same worker, so reports from a reporter are ingested in the order they were sent,
+ * while reports from different reporters are ingested in parallel. Queueing never blocks; when a queue is full,
+ * the selector thread stops reading from the connection until the frame is accepted.
+ * <p/>
+ * Once the listener has accepted a frame, the connection it arrived on is told so, which lets the server
+ * acknowledge the report to its reporter.
+ *
+ * @author Nils Peder Korsveien
+ * @see CollectorServer
+ */
+final class IngestionStage {
+
+    /**
+     * Connection a frame was received on, notified from the ingestion threads once the frame has been handled.
+     */
+    interface Origin {
+
+        /**
+         * @return id of the connection, which determines the worker ingesting its frames
+         */
+        int getId();
+
+        /**
+         * Invoked once the listener has accepted a frame from this connection.
+         *
+         * @param frame the ingested frame
+         */
+        void ingested(ReportFrame frame);
+
+        /**
+         * Invoked if the listener failed to ingest a frame from this connection.
+         *
+         * @param frame the frame which was not ingested
+         * @param cause the reason the frame was not ingested
+         */
+        void failed(ReportFrame frame, Exception cause);
+    }
+
+    /**
+     * Marker placed on the queues when the stage is stopped.
+     */
+    private static final Delivery STOP = new Delivery(null, null);
+
+    private final CollectorServer.Listener listener;
+    private final List<BlockingQueue<Delivery>> queues;
+    private final List<Thread> workers;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private boolean drainRequested;
+
+    IngestionStage(int workerCount, int queueCapacity, CollectorServer.Listener listener) {
+        checkArgument(workerCount > 0, "At least one ingestion thread is required");
+        checkArgument(queueCapacity > 0, "Ingestion queue capacity must be positive");
+        this.listener = checkNotNull(listener);
+        this.queues = new ArrayList<>(workerCount);
+        this.workers = new ArrayList<>(workerCount);
+
+        for (int i = 0; i < workerCount; i++) {
+            final BlockingQueue<Delivery> queue = new ArrayBlockingQueue<>(queueCapacity);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ingest(queue);
+                }
+            }, "collector-ingestion-" + i);
+            worker.setDaemon(true);
+            queues.add(queue);
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a frame received on the given connection, unless the queue of the connection is full.
+     *
+     * @param origin connection the frame was received on
+     * @param frame  the received frame
+     * @return true if the frame was queued
+     */
+    boolean offer(Origin origin, ReportFrame frame) {
+        outstanding.incrementAndGet();
+        if (queues.get(origin.getId() % queues.size()).offer(new Delivery(origin, frame))) {
+            return true;
+        }
+        outstanding.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Notifies the listener once every frame queued so far has been ingested.
+     */
+    void requestDrain() {
+        synchronized (this) {
+            drainRequested = true;
+        }
+        notifyIfDrained();
+    }
+
+    /**
+     * Withdraws a drain request which has not yet been honoured, e.g. because a new reporter connected.
+     */
+    synchronized void cancelDrain() {
+        drainRequested = false;
+    }
+
+    /**
+     * Returns the number of frames waiting to be ingested.
+     *
+     * @return number of queued frames
+     */
+    int size() {
+        int size = 0;
+        for (BlockingQueue<Delivery> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Ingests the frames already queued and stops the worker threads.
+     */
+    void stop() throws InterruptedException {
+        for (BlockingQueue<Delivery> queue : queues) {
+            queue.put(STOP);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private void ingest(BlockingQueue<Delivery> queue) {
+        for (; ; ) {
+            Delivery delivery;
+            try {
+                delivery = queue.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (delivery == STOP) {
+                return;
+            }
+
+            try {
+                listener.reportReceived(delivery.frame);
+                delivery.origin.ingested(delivery.frame);
+            } catch (Exception e) {
+                Log.error(LogCategory.COLLECTOR, "Failed to ingest report from " + delivery.frame.getHostName(), e);
+                delivery.origin.failed(delivery.frame, e);
+            }
+            outstanding.decrementAndGet();
+            notifyIfDrained();
+        }
+    }
+
+    private void notifyIfDrained() {
+        synchronized (this) {
+            if (!drainRequested || outstanding.get() != 0) {
+                return;
+            }
+            drainRequested = false;
+        }
+        listener.reportersFinished();
+    }
+
+    private static final class Delivery {
+        private final Origin origin;
+        private final ReportFrame frame;
+
+        private Delivery(Origin origin, ReportFrame frame) {
+            this.origin = origin;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package no.uio.ifi.vizpub.collector.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Single-producer, single-consumer ring buffer of report frames in a memory-mapped file, shared between a reporter
+ * and a collector running on the same host.
+ * <p/>
+ * The producer writes each frame once, in its wire format, straight into the mapped file, and the consumer hands
+ * out views of the frames in place, so no bytes are copied between the two processes. The file starts with a
+ * header holding the capacity of the ring and the positions of the producer and the consumer, each on a cache line
+ * of its own, followed by the ring itself:
+ * <pre>
+ *     {@code
+ *     int    magic
+ *     int    version
+ *     int    capacity    (a power of two)
+ *     long   attached    (at offset 16, set once a producer has attached)
+ *     long   tail        (at offset 64, bytes ever written by the producer)
+ *     long   head        (at offset 128, bytes ever consumed by the consumer)
+ *     byte   ring[capacity]
+ *     }
+ * </pre>
+ * Frames are aligned to eight bytes and never wrap around the end of the ring; when a frame does not fit before
+ * the end, the rest of the ring is marked as padding. A frame length of <code>END_OF_STREAM</code> tells the
+ * consumer that the producer has finished.
+ * <p/>
+ * Each side only writes its own position, and only after the frames it refers to have been written or read. The
+ * positions are published by ordered writes and read by ordered reads of the mapped memory, see
+ * <code>OrderedAccess</code>, so a side never sees a position before the frames it refers to, nor has its frames
+ * overwritten before it is done with them. A ring can not be created or attached to on a JVM lacking ordered
+ * access, in which case reporters fall back to a socket.
+ * <p/>
+ * The collector holds a lock on the file for as long as it consumes from the ring, which lets a reporter tell a
+ * live ring from one left behind by an earlier run. A producer waiting for room in the ring checks the lock every
+ * now and then, and gives up once the collector is gone rather than waiting forever.
+ *
+ * @author Nils Peder Korsveien
+ * @see RingReceiver
+ * @see ReportFrame
+ */
+public final class MappedRingBuffer implements Closeable {
+    public static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    private static final int MAGIC = 0x5650524e; // "VPRN"
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int ATTACHED_OFFSET = 16;
+    private static final int TAIL_OFFSET = 64;
+    private static final int HEAD_OFFSET = 128;
+    private static final int RING_OFFSET = 192;
+
+    private static final int PADDING = -1;
+    private static final int END_OF_STREAM = -2;
+    private static final int ALIGNMENT = 8;
+
+    /**
+     * Number of attempts at writing to a full ring between checks that the consumer is still alive, about a second
+     * once the producer has backed off to sleeping
+     */
+    private static final int CONSUMER_CHECK_ATTEMPTS = 1000;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int mask;
+    private final long address;
+    private FileLock consumerLock;
+
+    /**
+     * Position of this side, cached to avoid reading it back from the file
+     */
+    private long position;
+
+    private MappedRingBuffer(FileChannel channel, MappedByteBuffer mapped, int capacity) {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.address = OrderedAccess.address(mapped);
+
+        mapped.position(RING_OFFSET);
+        this.ring = mapped.slice().order(ByteOrder.nativeOrder());
+        mapped.position(0);
+    }
+
+    /**
+     * Creates an empty ring in the given file and opens it for consuming, replacing any ring left in the file.
+     *
+     * @param file     file to map
+     * @param capacity size of the ring in bytes, which must be a power of two
+     * @return the ring, locked by this process until it is closed
+     */
+    public static MappedRingBuffer create(File file, int capacity) throws IOException {
+        checkNotNull(file);
+        checkArgument(capacity >= 1024 && Integer.bitCount(capacity) == 1, "Ring capacity must be a power of two");
+        checkOrderedAccess();
+
+        if (file.getAbsoluteFile().getParentFile() != null) {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        }
+        FileChannel channel = FileChannel.open(file.toPath()
+                , StandardOpenOption.CREATE
+                , StandardOpenOption.READ
+                , StandardOpenOption.WRITE);
+        FileLock lock = channel.tryLock(MAGIC_OFFSET, 4, false);
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Ring " + file + " is in use by another collector");
+        }
+
+        channel.truncate(0);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, RING_OFFSET + capacity);
+        mapped.order(ByteOrder.nativeOrder());
+        mapped.putInt(VERSION_OFFSET, VERSION);
+        mapped.putInt(CAPACITY_OFFSET, capacity);
+        mapped.putLong(ATTACHED_OFFSET, 0);
+        mapped.putLong(TAIL_OFFSET, 0);
+        mapped.putLong(HEAD_OFFSET, 0);
+        mapped.putInt(MAGIC_OFFSET, MAGIC);
+        mapped.force();
+
+        MappedRingBuffer buffer = new MappedRingBuffer(channel, mapped, capacity);
+        buffer.consumerLock = lock;
+        return buffer;
+    }
+
+    /**
+     * Opens the ring in the given file for producing, if a collector is consuming from it.
+     *
+     * @param file file holding the ring
+     * @return the ring, or null if the file holds no ring or no collector is consuming from it
+     */
+    public static MappedRingBuffer attach(File file) throws IOException {
+        checkNotNull(file);
+        checkOrderedAccess();
+        if (!file.isFile() || file.length() < RING_OFFSET) {
+            return null;
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!isConsumed(channel)) {
+                channel.close();
+                return null;
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, RING_OFFSET);
+            header.order(ByteOrder.nativeOrder());
+            if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+                channel.close();
+                return null;
+            }
+            int capacity = header.getInt(CAPACITY_OFFSET);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, RING_OFFSET + capacity);
+            mapped.order(ByteOrder.nativeOrder());
+
+            MappedRingBuffer buffer = new MappedRingBuffer(channel, mapped, capacity);
+            buffer.position = mapped.getLong(TAIL_OFFSET);
+            OrderedAccess.putOrderedLong(buffer.address + ATTACHED_OFFSET, 1);
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the largest frame the ring can hold.
+     *
+     * @return maximum frame length in bytes
+     */
+    public int getMaxFrameLength() {
+        return capacity / 2;
+    }
+
+    /**
+     * Returns true if a producer has attached to the ring since it was created.
+     *
+     * @return true if a producer has attached
+     */
+    public boolean hasProducer() {
+        return readPosition(ATTACHED_OFFSET) != 0;
+    }
+
+    /**
+     * Returns the number of bytes written to the ring and not yet consumed, including padding.
+     *
+     * @return number of bytes in use
+     */
+    public long size() {
+        return readPosition(TAIL_OFFSET) - readPosition(HEAD_OFFSET);
+    }
+
+    /**
+     * Writes a frame to the ring, unless the ring lacks room for it.
+     *
+     * @param frame the frame to write
+     * @return true if the frame was written
+     */
+    public boolean offer(ReportFrame frame) {
+        int length = frame.getFrameLength();
+        checkArgument(length <= getMaxFrameLength(), "Report of " + length + " bytes is too large for a ring of "
+                + capacity + " bytes");
+
+        int index = reserve(align(length));
+        if (index < 0) {
+            return false;
+        }
+        ByteBuffer target = ring.duplicate();
+        target.limit(index + length);
+        target.position(index);
+        frame.writeTo(target.slice());
+
+        // the frame starts with its length in network order, which the ring holds in native order
+        ring.putInt(index, length - 4);
+        publish(TAIL_OFFSET, position + align(length));
+        return true;
+    }
+
+    /**
+     * Writes a frame to the ring, waiting while the ring lacks room for it.
+     *
+     * @param frame the frame to write
+     * @throws IOException if the consumer has stopped consuming from the ring
+     */
+    public void put(ReportFrame frame) throws IOException, InterruptedException {
+        for (int attempt = 0; !offer(frame); attempt++) {
+            if (isConsumerGone(attempt)) {
+                throw new IOException("Collector has stopped consuming from the ring");
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Tells the consumer that no more frames will be written, and waits until it has consumed every frame written
+     * before.
+     *
+     * @throws IOException if the consumer stopped consuming from the ring before reaching the end of the stream
+     */
+    public void writeEndOfStream() throws IOException, InterruptedException {
+        int index;
+        for (int attempt = 0; (index = reserve(ALIGNMENT)) < 0; attempt++) {
+            if (isConsumerGone(attempt)) {
+                throw new IOException("Collector has stopped consuming from the ring");
+            }
+            backOff(attempt);
+        }
+        ring.putInt(index, END_OF_STREAM);
+        publish(TAIL_OFFSET, position + ALIGNMENT);
+
+        // the consumer stops at the end of the stream without consuming it, and may go away once it is there
+        for (int attempt = 0; !isConsumedUpToEnd(); attempt++) {
+            if (isConsumerGone(attempt) && !isConsumedUpToEnd()) {
+                throw new IOException("Collector stopped consuming from the ring before the end of the stream");
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Returns the next frame in the ring without consuming it. The frame is a view of the ring, and stays valid
+     * until it is consumed.
+     *
+     * @return the next frame, or null if the ring is empty or the producer has finished
+     * @see #consume()
+     */
+    public ReportFrame peek() throws IOException {
+        for (; ; ) {
+            if (position == readPosition(TAIL_OFFSET)) {
+                return null;
+            }
+
+            int index = (int) (position & mask);
+            int length = ring.getInt(index);
+            if (length == PADDING) {
+                publish(HEAD_OFFSET, position + capacity - index);
+                continue;
+            }
+            if (length == END_OF_STREAM) {
+                return null;
+            }
+            ByteBuffer frame = ring.duplicate();
+            frame.limit(index + 4 + length);
+            frame.position(index + 4);
+            return ReportFrame.parse(frame.slice());
+        }
+    }
+
+    /**
+     * Returns true if the producer has finished and every frame has been consumed.
+     *
+     * @return true at the end of the stream
+     */
+    public boolean isEndOfStream() {
+        return position != readPosition(TAIL_OFFSET) && ring.getInt((int) (position & mask)) == END_OF_STREAM;
+    }
+
+    /**
+     * Consumes the frame last returned by <code>peek</code>, handing its space back to the producer.
+     */
+    public void consume() {
+        int index = (int) (position & mask);
+        int length = ring.getInt(index);
+        checkState(length >= 0, "No frame to consume");
+        publish(HEAD_OFFSET, position + align(4 + length));
+    }
+
+    /**
+     * Unmaps the ring and releases the lock of the consumer. The mapping itself is released once the buffer is
+     * garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (consumerLock != null) {
+            consumerLock.release();
+            consumerLock = null;
+        }
+        channel.close();
+    }
+
+    /**
+     * Waits a little longer on each attempt, starting with a busy spin and ending with a millisecond sleep.
+     *
+     * @param attempt number of attempts so far
+     */
+    public static void backOff(int attempt) throws InterruptedException {
+        if (attempt < 100) {
+            Thread.yield();
+        } else {
+            Thread.sleep(attempt < 1000 ? 0 : 1, attempt < 1000 ? 100000 : 0);
+        }
+    }
+
+    /**
+     * Private methods:
+     */
+
+    /**
+     * Reserves room for a frame of the given aligned length before the end of the ring, padding the rest of the
+     * ring if needed.
+     *
+     * @return index of the frame in the ring, or -1 if the ring lacks room
+     */
+    private int reserve(int length) {
+        long head = readPosition(HEAD_OFFSET);
+        int index = (int) (position & mask);
+        int padding = capacity - index < length ? capacity - index : 0;
+        if (capacity - (position - head) < padding + length) {
+            return -1;
+        }
+        if (padding > 0) {
+            ring.putInt(index, PADDING);
+            position += padding;
+            index = 0;
+        }
+        return index;
+    }
+
+    /**
+     * Returns true if it is time to check whether the consumer is alive, and it is not.
+     */
+    private boolean isConsumerGone(int attempt) throws IOException {
+        return attempt > 0 && attempt % CONSUMER_CHECK_ATTEMPTS == 0 && !isConsumed(channel);
+    }
+
+    /**
+     * Returns true if the consumer has reached the end of the stream, which is the last frame written.
+     */
+    private boolean isConsumedUpToEnd() {
+        return position - readPosition(HEAD_OFFSET) <= ALIGNMENT;
+    }
+
+    /**
+     * Reads the position of the other side, before reading any of the frames it refers to.
+     */
+    private long readPosition(int offset) {
+        return OrderedAccess.getLongVolatile(address + offset);
+    }
+
+    /**
+     * Publishes the position of this side, after writing or reading the frames it refers to.
+     */
+    private void publish(int offset, long newPosition) {
+        OrderedAccess.putOrderedLong(address + offset, newPosition);
+        position = newPosition;
+    }
+
+    private static void checkOrderedAccess() throws IOException {
+        if (!OrderedAccess.isAvailable()) {
+            throw new IOException("Ordered access to mapped memory is not available on this JVM");
+        }
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static boolean isConsumed(FileChannel channel) throws IOException {
+        try {
+            FileLock lock = channel.tryLock(MAGIC_OFFSET, 4, false);
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // the collector runs in this process
+            return true;
+        }
+    }
+}
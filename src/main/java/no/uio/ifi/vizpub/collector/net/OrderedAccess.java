@@ -0,0 +1,114 @@
+package no.uio.ifi.vizpub.collector.net;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Ordered reads and writes of longs in memory outside the heap, such as a memory-mapped file shared with another
+ * process.
+ * <p/>
+ * Java 7 offers no ordered access to a <code>MappedByteBuffer</code>, and a volatile field of the process does not
+ * order the plain reads and writes of the buffer. The ordered reads and writes of <code>sun.misc.Unsafe</code> are
+ * used instead: a write is a release, which keeps every earlier read and write of the writing thread before it, and
+ * a read is an acquire, which keeps every later read and write of the reading thread after it. Since the ordering is
+ * enforced by the processor on the shared memory, it holds across processes. <code>Unsafe</code> is looked up
+ * reflectively, and the ring is not available on a JVM which lacks it.
+ *
+ * @author Nils Peder Korsveien
+ * @see MappedRingBuffer
+ */
+final class OrderedAccess {
+    private static final MethodHandle GET_LONG_VOLATILE;
+    private static final MethodHandle PUT_ORDERED_LONG;
+    private static final MethodHandle GET_LONG;
+    private static final long ADDRESS_OFFSET;
+
+    static {
+        MethodHandle getLongVolatile = null;
+        MethodHandle putOrderedLong = null;
+        MethodHandle getLong = null;
+        long addressOffset = -1;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            getLongVolatile = lookup.unreflect(unsafeClass.getMethod("getLongVolatile", Object.class, long.class))
+                    .bindTo(unsafe);
+            putOrderedLong = lookup.unreflect(unsafeClass.getMethod("putOrderedLong", Object.class, long.class
+                    , long.class)).bindTo(unsafe);
+            getLong = lookup.unreflect(unsafeClass.getMethod("getLong", Object.class, long.class)).bindTo(unsafe);
+            addressOffset = (Long) unsafeClass.getMethod("objectFieldOffset", Field.class)
+                    .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            getLongVolatile = null;
+        }
+        GET_LONG_VOLATILE = getLongVolatile;
+        PUT_ORDERED_LONG = putOrderedLong;
+        GET_LONG = getLong;
+        ADDRESS_OFFSET = addressOffset;
+    }
+
+    private OrderedAccess() {
+    }
+
+    /**
+     * @return true if ordered access is supported by this JVM
+     */
+    static boolean isAvailable() {
+        return GET_LONG_VOLATILE != null;
+    }
+
+    /**
+     * Returns the address of the first byte of a direct buffer, which stays valid for as long as the buffer is
+     * reachable.
+     *
+     * @param buffer a direct buffer
+     * @return address of the buffer
+     */
+    static long address(ByteBuffer buffer) {
+        checkArgument(buffer.isDirect(), "Buffer is not direct");
+        checkState(isAvailable(), "Ordered access to memory is not available");
+        try {
+            return (long) GET_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Reads a long in native order, before any read or write which follows it.
+     *
+     * @param address address of the long, which must be aligned to eight bytes
+     * @return the long
+     */
+    static long getLongVolatile(long address) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Writes a long in native order, after every read and write which precedes it.
+     *
+     * @param address address of the long, which must be aligned to eight bytes
+     * @param value   the long
+     */
+    static void putOrderedLong(long address, long value) {
+        try {
+            PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package no.uio.ifi.vizpub.collector.net;
+
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.io.BinaryReportCodec;
+import no.uio.ifi.vizpub.reports.io.ReportCodec;
+import no.uio.ifi.vizpub.reports.io.ReportFiles;
+import no.uio.ifi.vizpub.utils.ByteBufferInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A single encoded report as sent from a reporter to the collector.
+ * <p/>
+ * Every frame on the wire starts with its length, excluding the length itself, followed by its type. A report
+ * frame has a header identifying the report, followed by the encoded report itself:
+ * <pre>
+ *     {@code
+ *     int    length
+ *     byte   type        (TYPE_REPORT)
+ *     byte   flags       (FLAG_BINARY | FLAG_COMPRESSED)
+ *     UTF    protocol name
+ *     UTF    host name
+ *     int    reporting interval
+ *     byte   payload[]   (the rest of the frame)
+ *     }
+ * </pre>
+ * Since the header identifies the report, the collector can commit it without decoding it, and can recognize a
+ * report which is sent again after a reconnect.
+ * <p/>
+ * A reporter which has finished, and has had every report acknowledged, ends its stream with a frame of its own
+ * before closing the connection, which tells a graceful end from a lost connection:
+ * <pre>
+ *     {@code
+ *     int    length
+ *     byte   type        (TYPE_END)
+ *     UTF    host name   (empty if the reporter never sent a report)
+ *     }
+ * </pre>
+ * <p/>
+ * The payload of a frame may be a view of memory it does not own, such as a <code>MappedRingBuffer</code>, in which
+ * case the frame is only valid until that memory is reused.
+ *
+ * @author Nils Peder Korsveien
+ * @see Acknowledgement
+ * @see CollectorServer
+ */
+public final class ReportFrame {
+    public static final int MAX_LENGTH = 256 * 1024 * 1024;
+
+    static final int TYPE_REPORT = 1;
+    static final int TYPE_ACK = 2;
+    static final int TYPE_END = 3;
+
+    static final int FLAG_BINARY = 1;
+    static final int FLAG_COMPRESSED = 2;
+
+    private final String protocolName;
+    private final String hostName;
+    private final int interval;
+    private final int flags;
+    private final ByteBuffer payload;
+    private byte[] header;
+
+    private ReportFrame(String protocolName, String hostName, int interval, int flags, ByteBuffer payload) {
+        this.protocolName = checkNotNull(protocolName);
+        this.hostName = checkNotNull(hostName);
+        this.interval = interval;
+        this.flags = flags;
+        this.payload = payload;
+    }
+
+    /**
+     * Encodes a report into a frame.
+     *
+     * @param report   the report to encode
+     * @param hostName name of host sending the report
+     * @param codec    codec to encode the report with
+     * @param compress whether to block compress the encoded report
+     * @return frame holding the encoded report
+     */
+    public static ReportFrame encode(Report report, String hostName, ReportCodec codec, boolean compress)
+            throws IOException {
+        PayloadBuffer out = new PayloadBuffer();
+        ReportFiles.encode(report, out, codec, compress);
+        checkArgument(out.size() <= MAX_LENGTH, "Report too large to send: " + out.size() + " bytes");
+
+        return new ReportFrame(report.getProtocolName()
+                , hostName
+                , report.getIntervalCount()
+                , flags(codec.getExtension(), compress)
+                , out.toBuffer());
+    }
+
+    /**
+     * Parses a report frame received from a reporter.
+     *
+     * @param frame the remaining bytes of the frame, excluding its length
+     * @return the parsed frame, which shares the given buffer
+     */
+    static ReportFrame parse(ByteBuffer frame) throws IOException {
+        ByteBuffer view = frame.duplicate();
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(view));
+        try {
+            int type = in.readUnsignedByte();
+            if (type != TYPE_REPORT) {
+                throw new IOException("Unexpected frame type " + type);
+            }
+            int flags = in.readUnsignedByte();
+            String protocolName = in.readUTF();
+            String hostName = in.readUTF();
+            int interval = in.readInt();
+            return new ReportFrame(protocolName, hostName, interval, flags, view.slice());
+        } catch (EOFException e) {
+            throw new IOException("Truncated frame header", e);
+        }
+    }
+
+    /**
+     * Writes the frame ending the stream of a reporter, length included, to the given stream.
+     *
+     * @param out      stream to write to
+     * @param hostName name of host which has finished sending reports, or null if it never sent a report
+     */
+    public static void writeEndOfStream(OutputStream out, String hostName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream frame = new DataOutputStream(bytes);
+        frame.writeByte(TYPE_END);
+        frame.writeUTF(hostName == null ? "" : hostName);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(bytes.size());
+        bytes.writeTo(data);
+    }
+
+    /**
+     * @param frame the remaining bytes of a frame, excluding its length
+     * @return true if the frame ends the stream of a reporter
+     */
+    static boolean isEndOfStream(ByteBuffer frame) {
+        return frame.hasRemaining() && (frame.get(frame.position()) & 0xff) == TYPE_END;
+    }
+
+    /**
+     * Parses the frame ending the stream of a reporter.
+     *
+     * @param frame the remaining bytes of the frame, excluding its length
+     * @return name of host which has finished sending reports, or null if it never sent a report
+     */
+    static String parseEndOfStream(ByteBuffer frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(frame.duplicate()));
+        try {
+            int type = in.readUnsignedByte();
+            if (type != TYPE_END) {
+                throw new IOException("Unexpected frame type " + type);
+            }
+            String hostName = in.readUTF();
+            return hostName.isEmpty() ? null : hostName;
+        } catch (EOFException e) {
+            throw new IOException("Truncated end of stream frame", e);
+        }
+    }
+
+    /**
+     * Returns a frame holding the same encoded report, sent by another host or for another interval.
+     *
+     * @param hostName name of host sending the report
+     * @param interval reporting interval of the report
+     * @return frame sharing the payload of this frame
+     */
+    public ReportFrame withHeader(String hostName, int interval) {
+        return new ReportFrame(protocolName, hostName, interval, flags, payload);
+    }
+
+    /**
+     * Decodes the report held by this frame.
+     *
+     * @return the decoded report
+     */
+    public Report decode() throws IOException {
+        return ReportFiles.decode(new ByteBufferInputStream(payload.duplicate())
+                , ReportFiles.codecForExtension(getExtension())
+                , isCompressed());
+    }
+
+    /**
+     * Writes this frame, length included, to the given stream.
+     *
+     * @param out stream to write to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] header = header();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(header.length + getLength());
+        data.write(header);
+
+        if (payload.hasArray()) {
+            data.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            return;
+        }
+        ByteBuffer source = payload.duplicate();
+        byte[] chunk = new byte[Math.min(source.remaining(), 64 * 1024)];
+        while (source.hasRemaining()) {
+            int count = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, count);
+            data.write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * Writes this frame, length included, to the given buffer, which must have room for the whole frame.
+     *
+     * @param buffer buffer to write to
+     */
+    void writeTo(ByteBuffer buffer) {
+        byte[] header = header();
+        buffer.putInt(header.length + getLength());
+        buffer.put(header);
+        buffer.put(payload.duplicate());
+    }
+
+    /**
+     * Returns the number of bytes the frame occupies on the wire, length included.
+     *
+     * @return length of the whole frame
+     */
+    int getFrameLength() {
+        return 4 + header().length + getLength();
+    }
+
+    public String getProtocolName() {
+        return protocolName;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the extension of the codec the report was encoded with.
+     *
+     * @return codec extension, including the leading dot
+     */
+    public String getExtension() {
+        return (flags & FLAG_BINARY) != 0 ? BinaryReportCodec.EXTENSION : ReportFiles.json().getExtension();
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * Returns the length of the encoded report, excluding the frame header.
+     *
+     * @return length of the payload
+     */
+    public int getLength() {
+        return payload.remaining();
+    }
+
+    /**
+     * Returns a read-only view of the encoded report.
+     *
+     * @return the payload of this frame
+     */
+    public ByteBuffer getPayload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private byte[] header() {
+        if (header == null) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(TYPE_REPORT);
+                out.writeByte(flags);
+                out.writeUTF(protocolName);
+                out.writeUTF(hostName);
+                out.writeInt(interval);
+                header = bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Buffer an encoded report is written to, handing out its bytes without copying them
+     */
+    private static final class PayloadBuffer extends ByteArrayOutputStream {
+        private PayloadBuffer() {
+            super(64 * 1024);
+        }
+
+        private ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private static int flags(String extension, boolean compressed) {
+        int flags = 0;
+        if (BinaryReportCodec.EXTENSION.equals(extension)) {
+            flags |= FLAG_BINARY;
+        }
+        if (compressed) {
+            flags |= FLAG_COMPRESSED;
+        }
+        return flags;
+    }
+}
@@ -0,0 +1,92 @@
+package no.uio.ifi.vizpub.collector.net;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import no.uio.ifi.vizpub.utils.LogCategory;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Receives reports from a reporter on the same host through a <code>MappedRingBuffer</code>.
+ * <p/>
+ * Frames are handed to the listener in place, as views of the ring, and their space is given back to the reporter
+ * once the listener returns. When the reporter has finished and every frame has been handed over, the listener is
+ * told that the reporters have finished and the receiver stops. While the ring is empty, the receiver backs off from
+ * spinning to sleeping for a millisecond at a time.
+ *
+ * @author Nils Peder Korsveien
+ * @see MappedRingBuffer
+ * @see CollectorServer
+ */
+public class RingReceiver extends AbstractExecutionThreadService {
+    private final File file;
+    private final int capacity;
+    private final CollectorServer.Listener listener;
+    private volatile MappedRingBuffer ring;
+
+    /**
+     * @param file     file to create the ring in
+     * @param capacity size of the ring in bytes, which must be a power of two
+     * @param listener receiver of the collected reports
+     */
+    public RingReceiver(File file, int capacity, CollectorServer.Listener listener) {
+        this.file = checkNotNull(file);
+        this.capacity = capacity;
+        this.listener = checkNotNull(listener);
+    }
+
+    /**
+     * @return number of bytes written into the ring and not yet handed to the listener
+     */
+    public long getQueuedBytes() {
+        MappedRingBuffer ring = this.ring;
+        return ring == null || !isRunning() ? 0 : ring.size();
+    }
+
+    /**
+     * @return true if a reporter has attached to the ring
+     */
+    public boolean hasReporter() {
+        MappedRingBuffer ring = this.ring;
+        return ring != null && isRunning() && ring.hasProducer();
+    }
+
+    @Override
+    protected void startUp() throws IOException {
+        ring = MappedRingBuffer.create(file, capacity);
+        Log.info(LogCategory.COLLECTOR, "Receiving reports through ring " + file);
+    }
+
+    @Override
+    protected void run() throws IOException, InterruptedException {
+        int idle = 0;
+        while (isRunning()) {
+            ReportFrame frame = ring.peek();
+            if (frame == null) {
+                if (ring.isEndOfStream()) {
+                    Log.info(LogCategory.COLLECTOR, "Reporter has finished writing to " + file);
+                    listener.reportersFinished();
+                    return;
+                }
+                MappedRingBuffer.backOff(idle++);
+                continue;
+            }
+
+            idle = 0;
+            try {
+                listener.reportReceived(frame);
+            } catch (IOException | RuntimeException e) {
+                Log.error(LogCategory.COLLECTOR, "Failed to ingest report from " + frame.getHostName(), e);
+            }
+            ring.consume();
+        }
+    }
+
+    @Override
+    protected void shutDown() throws IOException {
+        ring.close();
+    }
+}
@@ -8,6 +8,11 @@ import peersim.core.Control;
 
 
 /**
+ * PeerSim control running the collector and reporter service of a simulation. The services are started when the
+ * control is created, and stopped in the post-simulation phase, so that the simulator returns once the reports of
+ * the run have been written, rather than exiting the JVM. Each simulation run in the same JVM gets services of its
+ * own.
+ *
  * @author Nils Peder Korsveien
  */
 public class VizPub implements Control {
@@ -20,16 +25,19 @@ public class VizPub implements Control {
     public VizPub(String prefix) {
         this.config = Configuration.getString(prefix + "." + PAR_CONFIG);
         collector = new Collector(config);
-        reporterService = new ReporterService(config);
-        new Thread(collector).start();
-        reporterService.startAsync();
+        reporterService = new ReporterService(config, collector.getWorker());
+        collector.startAsync().awaitRunning();
+        reporterService.startAsync().awaitRunning();
     }
 
     @Override
     public boolean execute() {
         if (CommonState.getPhase() == CommonState.POST_SIMULATION) {
-            reporterService.triggerShutdown();
-//            reporterService.awaitTerminated();
+            reporterService.stopAsync().awaitTerminated();
+            if (collector.isInProcess()) {
+                // reports were committed in process, so the overlay is written once the collector terminates
+                collector.awaitTerminated();
+            }
         }
         return false;
     }
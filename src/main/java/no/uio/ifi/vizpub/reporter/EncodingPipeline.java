@@ -0,0 +1,195 @@
+package no.uio.ifi.vizpub.reporter;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.uio.ifi.vizpub.collector.net.ReportFrame;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.io.ReportCodec;
+import no.uio.ifi.vizpub.stats.ReporterStats;
+import no.uio.ifi.vizpub.utils.LogCategory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Multi-stage pipeline encoding reports concurrently while committing them in reporting interval order.
+ * <p/>
+ * Serializing a report is CPU bound, while committing it must happen in the order the reports were created. This
+ * pipeline therefore consists of two stages: a pool of encoder threads which encode each report into an in-memory
+ * <code>ReportFrame</code> using the configured codec, optionally block compressing it, and a single writer thread
+ * which hands the frames to a <code>Sink</code> in submission order. The frame is then copied once, into the
+ * report log, socket or ring it is committed to or sent through, without a round trip through the disk. At most
+ * two encoded reports per encoder are held in memory at any time.
+ * <p/>
+ * Ordering is preserved by queueing the future of each encoding task in submission order. The queue is bounded,
+ * which means <code>submit</code> blocks when the writer falls too far behind.
+ * <p/>
+ * A report which fails to be encoded or written would leave a gap in the reporting intervals, so the writer stops
+ * at the first failure rather than skipping the report. The failure is then thrown by <code>submit</code> or
+ * <code>close</code>, whichever comes first.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReporterService
+ */
+class EncodingPipeline {
+
+    /**
+     * Final stage of the pipeline, invoked from the writer thread only.
+     */
+    interface Sink {
+        void write(ReportFrame frame) throws IOException;
+    }
+
+    /**
+     * Marker placed on the pending queue when no more reports will be submitted.
+     */
+    private static final Future<ReportFrame> END_OF_STREAM = Futures.immediateFuture(null);
+
+    private final String hostName;
+    private final ReportCodec codec;
+    private final boolean compress;
+    private final Sink sink;
+    private final ExecutorService encoders;
+    private final BlockingQueue<Future<ReportFrame>> pending;
+    private final Thread writer;
+    private volatile IOException failure;
+
+    /**
+     * Creates a pipeline encoding each report into an in-memory frame delivered by the given host.
+     */
+    EncodingPipeline(String hostName, ReportCodec codec, boolean compress, int encoderCount, Sink sink) {
+        checkArgument(encoderCount > 0, "At least one encoder thread is required");
+        this.hostName = checkNotNull(hostName);
+        this.codec = checkNotNull(codec);
+        this.compress = compress;
+        this.sink = checkNotNull(sink);
+
+        // allow each encoder to run one report ahead of the writer
+        pending = new ArrayBlockingQueue<>(encoderCount * 2);
+        encoders = Executors.newFixedThreadPool(encoderCount, new ThreadFactoryBuilder()
+                .setNameFormat("report-encoder-%d")
+                .setDaemon(true)
+                .build());
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "report-writer");
+        writer.start();
+    }
+
+    /**
+     * Schedules a report for encoding. Blocks if too many reports are awaiting the writer.
+     *
+     * @param report the report to encode
+     * @throws IOException if an earlier report could not be encoded or written
+     */
+    void submit(final Report report) throws IOException, InterruptedException {
+        checkNotNull(report);
+        checkFailure();
+        enqueue(encoders.submit(new Callable<ReportFrame>() {
+            @Override
+            public ReportFrame call() throws Exception {
+                long start = System.nanoTime();
+                ReportFrame frame = ReportFrame.encode(report, hostName, codec, compress);
+                ReporterStats.get().reportEncoded(frame.getLength(), System.nanoTime() - start);
+                return frame;
+            }
+        }));
+    }
+
+    /**
+     * Returns the number of reports being encoded or waiting for the writer.
+     *
+     * @return number of reports in the pipeline
+     */
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * Writes all reports submitted so far and stops the pipeline.
+     *
+     * @throws IOException if a report could not be encoded or written
+     */
+    void close() throws IOException, InterruptedException {
+        try {
+            enqueue(END_OF_STREAM);
+            writer.join();
+        } finally {
+            encoders.shutdown();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stops the pipeline without writing the reports still in it.
+     */
+    void abort() {
+        writer.interrupt();
+        encoders.shutdownNow();
+    }
+
+    /**
+     * Private methods:
+     */
+
+    /**
+     * Hands an encoding task to the writer, waiting while the queue is full unless the writer has stopped.
+     */
+    private void enqueue(Future<ReportFrame> future) throws IOException, InterruptedException {
+        while (!pending.offer(future, 100, TimeUnit.MILLISECONDS)) {
+            if (!writer.isAlive()) {
+                future.cancel(true);
+                checkFailure();
+                throw new IOException("Report writer has stopped");
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null) {
+            throw new IOException("Reports could not be written", failure);
+        }
+    }
+
+    private void drain() {
+        try {
+            for (; ; ) {
+                Future<ReportFrame> future = pending.take();
+                if (future == END_OF_STREAM) {
+                    return;
+                }
+
+                ReportFrame frame = future.get();
+                long start = System.nanoTime();
+                sink.write(frame);
+                ReporterStats.get().reportWritten(System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            failure = new IOException("Report writer was interrupted", e);
+        } catch (ExecutionException e) {
+            failure = new IOException("Failed to encode report", e.getCause());
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        Log.error(LogCategory.REPORTER, "Failed to write report, no more reports will be written", failure);
+        for (Future<ReportFrame> future : pending) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package no.uio.ifi.vizpub.reporter;
+
+import no.uio.ifi.vizpub.collector.net.ReportFrame;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Transport delivering encoded reports from a reporter to the collector. Closing the sender waits until every
+ * report sent has been delivered.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportSender
+ * @see RingSender
+ */
+public interface FrameSender extends Closeable {
+
+    /**
+     * Sends a report, blocking while the transport has no room for it.
+     *
+     * @param frame the report to send
+     */
+    void send(ReportFrame frame) throws IOException, InterruptedException;
+}
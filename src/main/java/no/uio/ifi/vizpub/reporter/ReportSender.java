@@ -0,0 +1,286 @@
+package no.uio.ifi.vizpub.reporter;
+
+import com.esotericsoftware.minlog.Log;
+import no.uio.ifi.vizpub.collector.net.Acknowledgement;
+import no.uio.ifi.vizpub.collector.net.ReportFrame;
+import no.uio.ifi.vizpub.utils.LogCategory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Sends reports to a remote collector over a single connection.
+ * <p/>
+ * Reports are pipelined: up to <code>window</code> reports may be in flight before the collector has acknowledged
+ * them, after which <code>send</code> blocks until an acknowledgement arrives. Acknowledgements are read on a
+ * separate thread. Every report is kept until it has been acknowledged, so if the connection is lost, the sender
+ * reconnects with an increasing delay and resends every report after the last acknowledged interval. The collector
+ * ignores reports it has already committed, which makes resending safe.
+ * <p/>
+ * Once every report has been acknowledged, closing the sender ends the stream with an end of stream frame, which
+ * tells the collector that the reporter has finished rather than lost its connection.
+ * <p/>
+ * <code>send</code> and <code>close</code> must be called from a single thread.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportFrame
+ * @see Acknowledgement
+ */
+public class ReportSender implements FrameSender {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 5000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress collector;
+    private final int window;
+
+    /**
+     * Reports sent but not yet acknowledged, in the order they were sent
+     */
+    private final Deque<ReportFrame> unacknowledged = new ArrayDeque<>();
+
+    /**
+     * Guarded by this
+     */
+    private Socket socket;
+    private boolean broken;
+
+    /**
+     * Only accessed from the sending thread
+     */
+    private DataOutputStream out;
+    private String hostName;
+
+    /**
+     * @param collector address of the collector
+     * @param window    number of reports which may be sent before they are acknowledged
+     */
+    public ReportSender(InetSocketAddress collector, int window) {
+        checkArgument(window > 0, "Window must hold at least one report");
+        this.collector = checkNotNull(collector);
+        this.window = window;
+    }
+
+    /**
+     * Connects to the collector ahead of the first report, retrying until the collector accepts the connection.
+     * Otherwise, the sender connects when the first report is sent.
+     */
+    public void connect() throws InterruptedException {
+        synchronized (this) {
+            if (socket != null && !broken) {
+                return;
+            }
+        }
+        reconnect();
+    }
+
+    /**
+     * Sends a report, blocking while the window is full.
+     *
+     * @param frame the report to send
+     */
+    @Override
+    public void send(ReportFrame frame) throws InterruptedException {
+        checkNotNull(frame);
+        hostName = frame.getHostName();
+        boolean reconnect;
+        synchronized (this) {
+            while (unacknowledged.size() >= window && !broken) {
+                wait();
+            }
+            unacknowledged.addLast(frame);
+            reconnect = broken || out == null;
+        }
+
+        if (reconnect) {
+            // resends the frame along with the rest of the window
+            reconnect();
+            return;
+        }
+        try {
+            frame.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            Log.warn(LogCategory.REPORTER, "Lost connection to collector at " + collector, e);
+            reconnect();
+        }
+    }
+
+    /**
+     * Returns the number of reports sent but not yet acknowledged.
+     *
+     * @return number of reports in flight
+     */
+    public synchronized int inFlight() {
+        return unacknowledged.size();
+    }
+
+    /**
+     * Waits until every report sent has been acknowledged, reconnecting if necessary, ends the stream and closes the
+     * connection.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (; ; ) {
+                boolean acknowledged;
+                synchronized (this) {
+                    while (!unacknowledged.isEmpty() && !broken) {
+                        wait();
+                    }
+                    acknowledged = unacknowledged.isEmpty() && !broken;
+                }
+                if (acknowledged && out == null && hostName == null) {
+                    // never connected, so there is no stream to end
+                    break;
+                }
+                if (acknowledged && out != null) {
+                    try {
+                        ReportFrame.writeEndOfStream(out, hostName);
+                        out.flush();
+                        break;
+                    } catch (IOException e) {
+                        Log.warn(LogCategory.REPORTER, "Lost connection to collector at " + collector, e);
+                    }
+                }
+                reconnect();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.warn(LogCategory.REPORTER, "Interrupted with " + inFlight() + " reports unacknowledged");
+        }
+
+        Socket closing;
+        synchronized (this) {
+            closing = socket;
+            socket = null;
+            out = null;
+        }
+        if (closing != null) {
+            if (!closing.isClosed()) {
+                closing.shutdownOutput();
+            }
+            closing.close();
+        }
+    }
+
+    /**
+     * Private methods:
+     */
+
+    /**
+     * Replaces the current connection with a new one, retrying until the collector accepts it, and resends every
+     * report not yet acknowledged.
+     */
+    private void reconnect() throws InterruptedException {
+        for (long retryMillis = MIN_RETRY_MILLIS; ; retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS)) {
+            closeSocket();
+            Socket candidate = new Socket();
+            try {
+                candidate.setTcpNoDelay(true);
+                candidate.connect(collector, CONNECT_TIMEOUT_MILLIS);
+                DataOutputStream candidateOut = new DataOutputStream(
+                        new BufferedOutputStream(candidate.getOutputStream(), BUFFER_SIZE));
+
+                List<ReportFrame> resend;
+                synchronized (this) {
+                    socket = candidate;
+                    broken = false;
+                    resend = new ArrayList<>(unacknowledged);
+                }
+                out = candidateOut;
+                readAcknowledgements(candidate);
+
+                for (ReportFrame frame : resend) {
+                    frame.writeTo(out);
+                }
+                out.flush();
+                if (!resend.isEmpty()) {
+                    Log.debug(LogCategory.REPORTER, "Connected to " + collector + ", resent " + resend.size()
+                            + " unacknowledged reports");
+                }
+                return;
+            } catch (IOException e) {
+                Log.warn(LogCategory.REPORTER, "Could not connect to collector at " + collector + ", retrying in "
+                        + retryMillis + " ms", e);
+                try {
+                    candidate.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+                Thread.sleep(retryMillis);
+            }
+        }
+    }
+
+    private void closeSocket() {
+        Socket closing;
+        synchronized (this) {
+            closing = socket;
+            socket = null;
+        }
+        out = null;
+        if (closing == null) {
+            return;
+        }
+        try {
+            closing.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a thread reading acknowledgements from the given connection until it is closed.
+     */
+    private void readAcknowledgements(final Socket connection) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (; ; ) {
+                        acknowledge(Acknowledgement.readFrom(in));
+                    }
+                } catch (IOException e) {
+                    synchronized (ReportSender.this) {
+                        // a replaced connection is closed on purpose
+                        if (socket == connection) {
+                            Log.warn(LogCategory.REPORTER, "Lost connection to collector at " + collector, e);
+                            broken = true;
+                            ReportSender.this.notifyAll();
+                        }
+                    }
+                }
+            }
+        }, "report-acknowledgements");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private synchronized void acknowledge(Acknowledgement acknowledgement) {
+        Iterator<ReportFrame> frames = unacknowledged.iterator();
+        while (frames.hasNext()) {
+            ReportFrame frame = frames.next();
+            if (frame.getProtocolName().equals(acknowledgement.getProtocolName())
+                    && frame.getInterval() <= acknowledgement.getInterval()) {
+                frames.remove();
+            }
+        }
+        notifyAll();
+    }
+}
@@ -112,7 +112,7 @@ public class Reporter implements Control {
         try {
             final String[] protocolNames = Configuration.getNames("protocol");
             Report overlay = createReport(protocolNames[protocolId], protocolId);
-            ReporterService.getReportQueue().put(overlay);
+            ReporterService.submit(overlay);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -1,102 +1,177 @@
 package no.uio.ifi.vizpub.reporter;
 
 import com.esotericsoftware.minlog.Log;
-import com.google.common.collect.Multimap;
+import com.google.common.base.Supplier;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import no.uio.ifi.vizpub.collector.Collector;
 import no.uio.ifi.vizpub.collector.CollectorWorker;
+import no.uio.ifi.vizpub.collector.net.ReportFrame;
 import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.reports.io.ReportCodec;
+import no.uio.ifi.vizpub.reports.io.ReportFiles;
+import no.uio.ifi.vizpub.stats.ReporterStats;
+import no.uio.ifi.vizpub.stats.StatsServer;
 import no.uio.ifi.vizpub.utils.LogCategory;
-import no.uio.ifi.vizpub.utils.gson.MultimapDeserializer;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Service responsible for creating a report of the current state of the system.
+ * <p/>
+ * Reports put on the report queue are encoded in memory by a pool of encoder threads, and committed by a single
+ * writer thread in the order they were queued, straight to the report log of the collector in this process. The number of encoder threads is set by the
+ * <code>encoder.threads</code> property and defaults to the number of available processors. Reports are written as
+ * json unless the <code>report.format</code> property is set to <code>binary</code>, and are block compressed by
+ * the encoder threads unless the <code>report.compression</code> property is set to <code>none</code>.
+ * <p/>
+ * When the <code>collector.transport</code> property is set to <code>net</code>, reports are sent to the collector
+ * at <code>host</code> and <code>port</code> instead of being committed locally. Up to <code>reporter.window</code>
+ * reports are sent ahead of their acknowledgements, and reports are identified by the <code>reporter.name</code>
+ * property, which defaults to the name of the local host.
+ * <p/>
+ * When the property is set to <code>local</code> and the collector runs on this host, reports are written into the
+ * memory-mapped ring named by the <code>ring.file</code> property instead, falling back to a socket if the collector
+ * is remote or is not reading the ring.
+ * <p/>
+ * When the property is set to <code>memory</code>, reports are neither encoded nor written, but added straight to
+ * the overlay built by the collector in this process. They are then only persisted to the report log if the
+ * <code>report.persist</code> property of the collector is set to <code>true</code>.
+ * <p/>
+ * Statistics of the reporter are registered as MBeans, and served as json on <code>localhost</code> at the port
+ * given by the <code>stats.port</code> property, if set. When the collector runs in the same process, both are
+ * served by the same server.
+ * <p/>
+ * Each run has a service of its own, which the <code>Reporter</code> controls report to once it has been created.
+ * Stopping the service writes the reports queued so far and, unless they are sent to a collector, finishes the run.
  *
+ * @see EncodingPipeline
+ * @see ReportSender
+ * @see RingSender
  * @author Nils Peder Korsveien
  */
 public class ReporterService extends AbstractExecutionThreadService {
     private int port;
     private String host;
-    private static BlockingQueue<Report> reportQueue;
+    private String transport = Collector.TRANSPORT_FILE;
+    private String reporterName;
+    private int window = 32;
+    private File ringFile = new File(Collector.DEFAULT_RING_FILE);
+    private int encoderCount = Runtime.getRuntime().availableProcessors();
+    private ReportCodec codec = ReportFiles.json();
+    private boolean compress = true;
+    private int statsPort = -1;
+    private final CollectorWorker worker;
+    private final BlockingQueue<Report> reportQueue;
     private final Report POISON_PILL = new Report();
 
+    /**
+     * The service the <code>Reporter</code> controls of the current run report to
+     */
+    private static volatile ReporterService current;
+
+    /**
+     * Creates a reporter service committing reports through a worker of its own when reports are not sent to a
+     * collector.
+     *
+     * @param filePath path of the vizpub properties file
+     */
     public ReporterService(String filePath) {
+        this(filePath, null);
+    }
+
+    /**
+     * Creates a reporter service for the current run, which replaces the service of any previous run as the one
+     * reported to.
+     *
+     * @param filePath path of the vizpub properties file
+     * @param worker   worker of the collector in this process, committing reports when they are not sent to a
+     *                 collector, or null to use a worker of its own
+     */
+    public ReporterService(String filePath, CollectorWorker worker) {
         reportQueue = new ArrayBlockingQueue<>(100);
         loadProperties(filePath);
+        this.worker = worker != null ? worker : new Collector(filePath).getWorker();
+        current = this;
     }
 
     @Override
-    public void run() {
-
-//        if (Engine.getType() == Engine.Type.NET) {
-//            try (Socket clientSocket = new Socket(host, port);
-//                 ObjectOutputStream objectOutputStream = new ObjectOutputStream((clientSocket.getOutputStream()))) {
-//
-//                for (; ; ) {
-//                    Report overlay = reportQueue.take();
-//                    Log.debug(LogCategory.GEXF, "On consumer side of queue: " + overlay.getNodes().size());
-//                    Gson gson = new GsonBuilder().registerTypeAdapter(Multimap.class, new MultimapSerializer()).create();
-//                    String json = gson.toJson(overlay);
-//
-//                    if (overlay == POISON_PILL) {
-//                        clientSocket.shutdownOutput();
-//                        break;
-//                    }
-//                    objectOutputStream.writeObject(json);
-//
-//                    Log.info(LogCategory.REPORTER, "Sent report for protocol "
-//                            + overlay.getProtocolName()
-//                            + " to "
-//                            + host
-//                            + " on port "
-//                            + port);
-//
-//                    objectOutputStream.flush();
-//
-//                    // give Collector time to reenter accept()
-//                    Thread.sleep(500);
-//                }
-//
-//            } catch (IOException | InterruptedException e) {
-//                e.printStackTrace();
-//            }
-//        } else if (Engine.getType() == Engine.Type.SIM) {
-
-            String protocolName = null;
-            for (; ; ) {
+    public void run() throws IOException {
+        if (Collector.TRANSPORT_MEMORY.equals(transport)) {
+            runInMemory();
+            return;
+        }
 
-                Report report = null;
-                try {
-                    report = reportQueue.take();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        FrameSender sender = null;
+        if (Collector.TRANSPORT_LOCAL.equals(transport)) {
+            sender = attachRing();
+        }
+        if (sender == null && !Collector.TRANSPORT_FILE.equals(transport)) {
+            sender = new ReportSender(new InetSocketAddress(host, port), window);
+        }
+
+        final EncodingPipeline pipeline;
+        if (sender != null) {
+            pipeline = new EncodingPipeline(reporterName, codec, compress, encoderCount, new SenderSink(sender));
+        } else {
+            pipeline = new EncodingPipeline(host, codec, compress, encoderCount, new EncodingPipeline.Sink() {
+                @Override
+                public void write(ReportFrame frame) throws IOException {
+                    Log.info(LogCategory.REPORTER, "Writing report to file...");
+                    worker.reportReceived(frame);
                 }
+            });
+        }
+        monitor(pipeline, sender);
+
+        String protocolName = null;
+        try {
+            for (; ; ) {
+                Report report = reportQueue.take();
                 if (report == POISON_PILL) {
                     break;
                 }
                 checkNotNull(report, "Failed to retrieve report");
 
-                Gson gson = new GsonBuilder().registerTypeAdapter(Multimap.class, new MultimapDeserializer()).create();
-                String json = gson.toJson(report);
                 protocolName = report.getProtocolName();
-
                 if (protocolName == null) {
                     Log.error(LogCategory.COLLECTOR, "Protocol name is missing from the reports");
+                    pipeline.close();
                     return;
                 }
+                pipeline.submit(report);
+            }
+            pipeline.close();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            // the collector would be left with a gap in the reporting intervals, so the service fails
+            pipeline.abort();
+            throw e;
+        }
 
-                Log.info(LogCategory.REPORTER, "Writing report to file...");
-                CollectorWorker.saveJsonReport(json, host, protocolName);
+        if (sender != null) {
+            // the remote collector finishes once every reporter has disconnected
+            try {
+                sender.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        CollectorWorker.finish(protocolName);
+            return;
+        }
+        worker.finish(protocolName);
     }
 
     @Override
@@ -108,20 +183,179 @@ public class ReporterService extends AbstractExecutionThreadService {
         }
     }
 
+    /**
+     * Queues a report for the service of the current run, waiting while the queue is full.
+     *
+     * @param report the report to queue
+     * @throws IllegalStateException if the service has stopped, e.g. because reports could not be written
+     */
+    public static void submit(Report report) throws InterruptedException {
+        ReporterService service = current;
+        checkState(service != null, "No reporter service has been created");
+        for (; ; ) {
+            State state = service.state();
+            if (state == State.FAILED) {
+                throw new IllegalStateException("Reporter service has failed", service.failureCause());
+            }
+            checkState(state != State.TERMINATED, "Reporter service has stopped");
+            if (service.reportQueue.offer(report, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the report queue of the service of the current run.
+     *
+     * @return queue of reports to encode
+     */
     public static BlockingQueue<Report> getReportQueue() {
-        return reportQueue;
+        ReporterService service = current;
+        checkState(service != null, "No reporter service has been created");
+        return service.reportQueue;
     }
 
     /**
      * Private methods:
      */
 
+    /**
+     * Hands each queued report straight to the worker of the collector in this process, bypassing the encoding
+     * pipeline and the disk.
+     */
+    private void runInMemory() {
+        ReporterStats stats = ReporterStats.get();
+        monitor(null, null);
+
+        String protocolName = null;
+        try {
+            for (; ; ) {
+                Report report = reportQueue.take();
+                if (report == POISON_PILL) {
+                    break;
+                }
+                checkNotNull(report, "Failed to retrieve report");
+
+                protocolName = report.getProtocolName();
+                if (protocolName == null) {
+                    Log.error(LogCategory.COLLECTOR, "Protocol name is missing from the reports");
+                    return;
+                }
+                long start = System.nanoTime();
+                worker.addReport(report, reporterName);
+                stats.reportWritten(System.nanoTime() - start);
+                Log.debug(LogCategory.REPORTER, "Added report " + report.getIntervalCount() + " to the overlay");
+            }
+        } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        }
+        worker.finish(protocolName);
+    }
+
+    /**
+     * Attaches to the ring of a collector on this host, unless the collector runs elsewhere or is not consuming
+     * from the ring, in which case reports are sent over a socket instead.
+     *
+     * @return sender writing to the ring, or null to fall back to a socket
+     */
+    private FrameSender attachRing() {
+        try {
+            if (!isLocalHost(host)) {
+                Log.info(LogCategory.REPORTER, "Collector at " + host + " is remote, sending reports over a socket");
+                return null;
+            }
+            FrameSender sender = RingSender.attach(ringFile);
+            if (sender == null) {
+                Log.info(LogCategory.REPORTER, "No collector is reading " + ringFile
+                        + ", sending reports over a socket");
+            }
+            return sender;
+        } catch (IOException e) {
+            Log.warn(LogCategory.REPORTER, "Could not attach to ring " + ringFile + ", sending reports over a socket", e);
+            return null;
+        }
+    }
+
+    /**
+     * Exposes the depths of the queues of the reporter through its statistics, and serves them if configured to.
+     */
+    private void monitor(final EncodingPipeline pipeline, final FrameSender sender) {
+        ReporterStats stats = ReporterStats.get();
+        stats.reset();
+        stats.monitorQueues(new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return reportQueue.size();
+            }
+        }, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return pipeline == null ? 0 : pipeline.size();
+            }
+        });
+        if (sender instanceof ReportSender) {
+            stats.monitorSender(new Supplier<Integer>() {
+                @Override
+                public Integer get() {
+                    return ((ReportSender) sender).inFlight();
+                }
+            });
+        }
+
+        if (statsPort >= 0) {
+            try {
+                StatsServer.start(statsPort);
+            } catch (IOException e) {
+                Log.warn(LogCategory.REPORTER, "Could not serve statistics on port " + statsPort, e);
+            }
+        }
+    }
+
+    private static boolean isLocalHost(String host) throws IOException {
+        InetAddress address = InetAddress.getByName(host);
+        return address.isLoopbackAddress()
+                || address.isAnyLocalAddress()
+                || NetworkInterface.getByInetAddress(address) != null;
+    }
+
+    /**
+     * Sends each encoded report to the collector.
+     */
+    private static final class SenderSink implements EncodingPipeline.Sink {
+        private final FrameSender sender;
+
+        private SenderSink(FrameSender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public void write(ReportFrame frame) throws IOException {
+            try {
+                sender.send(frame);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending report " + frame.getInterval());
+            }
+            Log.info(LogCategory.REPORTER, "Sent report " + frame.getInterval() + " for protocol "
+                    + frame.getProtocolName());
+        }
+    }
+
     private void loadProperties(String filePath) {
         Properties properties = new Properties();
         try {
             properties.load(new FileInputStream(filePath));
             host = properties.getProperty("host");
             port = Integer.parseInt(properties.getProperty("port"));
+            transport = properties.getProperty("collector.transport", Collector.TRANSPORT_FILE).trim();
+            reporterName = properties.getProperty("reporter.name", InetAddress.getLocalHost().getHostName());
+            window = Integer.parseInt(properties.getProperty("reporter.window", Integer.toString(window)));
+            ringFile = new File(properties.getProperty("ring.file", Collector.DEFAULT_RING_FILE));
+            statsPort = Integer.parseInt(properties.getProperty("stats.port", Integer.toString(statsPort)));
+            encoderCount = Integer.parseInt(properties.getProperty("encoder.threads", Integer.toString(encoderCount)));
+            codec = ReportFiles.codecFor(properties.getProperty("report.format", ReportFiles.FORMAT_JSON));
+            compress = ReportFiles.parseCompression(properties.getProperty("report.compression"
+                    , ReportFiles.COMPRESSION_DEFLATE));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,55 @@
+package no.uio.ifi.vizpub.reporter;
+
+import no.uio.ifi.vizpub.collector.net.MappedRingBuffer;
+import no.uio.ifi.vizpub.collector.net.ReportFrame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Sends reports to a collector on the same host by writing them into the <code>MappedRingBuffer</code> it consumes
+ * from. Sending blocks while the ring is full, and closing the sender marks the end of the stream and waits for the
+ * collector to consume every report. Either fails with an <code>IOException</code> once the collector is gone.
+ *
+ * @author Nils Peder Korsveien
+ * @see MappedRingBuffer
+ * @see no.uio.ifi.vizpub.collector.net.RingReceiver
+ */
+public class RingSender implements FrameSender {
+    private final MappedRingBuffer ring;
+
+    private RingSender(MappedRingBuffer ring) {
+        this.ring = checkNotNull(ring);
+    }
+
+    /**
+     * Attaches to the ring in the given file.
+     *
+     * @param file file holding the ring
+     * @return a sender, or null if no collector is consuming from a ring in the file
+     */
+    public static RingSender attach(File file) throws IOException {
+        MappedRingBuffer ring = MappedRingBuffer.attach(file);
+        return ring == null ? null : new RingSender(ring);
+    }
+
+    @Override
+    public void send(ReportFrame frame) throws IOException, InterruptedException {
+        ring.put(frame);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ring.writeEndOfStream();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing ring");
+        } finally {
+            ring.close();
+        }
+    }
+}
@@ -38,6 +38,37 @@ public final class EdgeData {
         return new Builder();
     }
 
+    /**
+     * Creates the id of the edge between two nodes.
+     *
+     * @param sourceId id of the source node
+     * @param targetId id of the target node
+     * @return id of the edge
+     */
+    public static String createId(String sourceId, String targetId) {
+        return sourceId + "->" + targetId;
+    }
+
+    /**
+     * Packs the handles of the endpoints of an edge into a single key.
+     *
+     * @param sourceHandle handle of the source node
+     * @param targetHandle handle of the target node
+     * @return key identifying the edge
+     * @see SymbolTable
+     */
+    public static long key(int sourceHandle, int targetHandle) {
+        return ((long) sourceHandle << 32) | (targetHandle & 0xFFFFFFFFL);
+    }
+
+    public static int sourceHandle(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int targetHandle(long key) {
+        return (int) key;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
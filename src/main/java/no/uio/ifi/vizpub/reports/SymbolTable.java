@@ -0,0 +1,120 @@
+package no.uio.ifi.vizpub.reports;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Interning table mapping node ids to dense integer handles.
+ * <p/>
+ * Node ids are reported as strings, e.g. the 39 digit decimal ids of MSPastry. When processing reports
+ * over the whole run of an experiment, every id is interned once and from then on referred to by its handle,
+ * which is the order in which the id was first seen. Handles are dense, starting at zero, so they can be used
+ * directly as array indices or as keys in primitive maps. An edge is identified by the handles of its
+ * endpoints packed into a single long, see <code>EdgeData#key</code>.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @author Nils Peder Korsveien
+ * @see EdgeData
+ */
+public final class SymbolTable {
+    public static final int NO_HANDLE = -1;
+
+    private String[] symbols;
+    private int size;
+
+    /**
+     * Open addressing table of handle + 1, where 0 marks an empty slot
+     */
+    private int[] slots;
+
+    public SymbolTable() {
+        symbols = new String[64];
+        slots = new int[128];
+    }
+
+    /**
+     * Returns the handle of a symbol, assigning the next free handle if the symbol has not been seen before.
+     *
+     * @param symbol the symbol to intern
+     * @return handle of the symbol
+     */
+    public int intern(String symbol) {
+        checkNotNull(symbol);
+        int mask = slots.length - 1;
+        int slot = hash(symbol) & mask;
+        for (int entry; (entry = slots[slot]) != 0; slot = (slot + 1) & mask) {
+            if (symbols[entry - 1].equals(symbol)) {
+                return entry - 1;
+            }
+        }
+
+        int handle = size++;
+        if (handle == symbols.length) {
+            symbols = Arrays.copyOf(symbols, symbols.length * 2);
+        }
+        symbols[handle] = symbol;
+        slots[slot] = handle + 1;
+
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return handle;
+    }
+
+    /**
+     * Returns the handle of a symbol without interning it.
+     *
+     * @param symbol the symbol to look up
+     * @return handle of the symbol, or <code>NO_HANDLE</code> if it has not been interned
+     */
+    public int lookup(String symbol) {
+        checkNotNull(symbol);
+        int mask = slots.length - 1;
+        for (int slot = hash(symbol) & mask, entry; (entry = slots[slot]) != 0; slot = (slot + 1) & mask) {
+            if (symbols[entry - 1].equals(symbol)) {
+                return entry - 1;
+            }
+        }
+        return NO_HANDLE;
+    }
+
+    /**
+     * Returns the symbol of an interned handle.
+     *
+     * @param handle the handle
+     * @return the symbol which was interned as this handle
+     */
+    public String symbol(int handle) {
+        checkElementIndex(handle, size);
+        return symbols[handle];
+    }
+
+    /**
+     * Returns the number of interned symbols, which is also the next handle to be assigned.
+     *
+     * @return number of interned symbols
+     */
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int handle = 0; handle < size; handle++) {
+            int slot = hash(symbols[handle]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = handle + 1;
+        }
+    }
+
+    private static int hash(String symbol) {
+        int h = symbol.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,498 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import com.google.common.io.ByteStreams;
+import no.uio.ifi.vizpub.reports.EdgeData;
+import no.uio.ifi.vizpub.reports.NodeData;
+import no.uio.ifi.vizpub.reports.PubMessage;
+import no.uio.ifi.vizpub.reports.Report;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Compact, versioned binary encoding of reports.
+ * <p/>
+ * Node ids reported by protocols such as MSPastry are long decimal strings, and every id is repeated in the
+ * neighbor set of every node it is a neighbor of. This codec therefore writes every distinct string once, in a
+ * per-report dictionary, and refers to it by its index everywhere else. All integers are written as variable
+ * length integers, so small counts and dictionary references take a single byte.
+ * <p/>
+ * A report is laid out as follows:
+ * <pre>
+ *     magic       'V' 'Z' 'P' 'B'
+ *     version     1 byte
+ *     dictionary  section: string count, then length-prefixed UTF-8 strings
+ *     header      section: protocol id, protocol name, interval count
+ *     nodes       section: node count, then one entry per node
+ *     edges       section: edge count, then one entry per edge
+ *     publications section: publication count, then one entry per publication
+ * </pre>
+ * Every section is prefixed by its length in bytes, which allows a reader to skip sections it does not need.
+ * Strings are referenced by their dictionary index plus one, and collections are prefixed by their size plus one,
+ * reserving zero for null.
+ * <p/>
+ * Truncated or corrupt reports fail to decode with an <code>IOException</code>: every length, size and dictionary
+ * reference is checked against the bytes actually read before it is used.
+ * <p/>
+ * Instances are thread-safe.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportCodec
+ * @see ReportCodecBenchmark
+ */
+public final class BinaryReportCodec implements ReportCodec {
+    public static final String EXTENSION = ".vzb";
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = {'V', 'Z', 'P', 'B'};
+    private static final int NULL = 0;
+
+    @Override
+    public void encode(Report report, OutputStream out) throws IOException {
+        checkNotNull(report);
+
+        Encoder encoder = new Encoder();
+        Section header = new Section();
+        Section nodes = new Section();
+        Section edges = new Section();
+        Section publications = new Section();
+
+        header.writeSignedVarInt(report.getProtocolId());
+        encoder.writeString(header, report.getProtocolName());
+        header.writeVarInt(report.getIntervalCount());
+
+        encoder.writeNodes(nodes, report.getNodes());
+        encoder.writeEdges(edges, report.getEdges());
+        encoder.writePublications(publications, report.getPublications());
+
+        out.write(MAGIC);
+        out.write(VERSION);
+        encoder.dictionarySection().writeTo(out);
+        header.writeTo(out);
+        nodes.writeTo(out);
+        edges.writeTo(out);
+        publications.writeTo(out);
+        out.flush();
+    }
+
+    @Override
+    public Report decode(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        magic[0] = (byte) first;
+        readFully(in, magic, 1, magic.length - 1);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a binary report");
+            }
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary report version " + version);
+        }
+
+        Decoder decoder = new Decoder(readStrings(readSection(in)));
+
+        Cursor header = readSection(in);
+        int protocolId = header.readSignedVarInt();
+        String protocolName = decoder.readString(header);
+        int intervalCount = header.readVarInt();
+
+        try {
+            return Report.builder()
+                    .withProtocolId(protocolId)
+                    .withProtocolName(protocolName)
+                    .withIntervalCount(intervalCount)
+                    .withNodes(decoder.readNodes(readSection(in)))
+                    .withEdges(decoder.readEdges(readSection(in)))
+                    .withPublications(decoder.readPublications(readSection(in)))
+                    .build();
+        } catch (NullPointerException | IllegalArgumentException e) {
+            // an entry lacking a required field
+            throw new IOException("Corrupt binary report", e);
+        }
+    }
+
+    @Override
+    public String getExtension() {
+        return EXTENSION;
+    }
+
+    private static String[] readStrings(Cursor section) throws IOException {
+        String[] strings = new String[section.readSize()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = section.readUtf8();
+        }
+        return strings;
+    }
+
+    private static Cursor readSection(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated binary report");
+            }
+            if (shift > 28) {
+                throw new IOException("Corrupt binary report: section length is too long");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0) {
+            throw new IOException("Corrupt binary report: negative section length " + length);
+        }
+        // read without allocating the claimed length up front, in case it is corrupt
+        byte[] bytes = ByteStreams.toByteArray(ByteStreams.limit(in, length));
+        if (bytes.length != length) {
+            throw new EOFException("Truncated binary report");
+        }
+        return new Cursor(bytes);
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(bytes, offset, length);
+            if (read == -1) {
+                throw new EOFException("Truncated binary report");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    /**
+     * Writes report entries to sections, assigning dictionary references as strings are encountered.
+     */
+    private static final class Encoder {
+        private final Map<String, Integer> references = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        private Section dictionarySection() {
+            Section section = new Section();
+            section.writeVarInt(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                section.writeVarInt(bytes.length);
+                section.write(bytes, 0, bytes.length);
+            }
+            return section;
+        }
+
+        private void writeString(Section section, String string) {
+            if (string == null) {
+                section.writeVarInt(NULL);
+                return;
+            }
+            Integer reference = references.get(string);
+            if (reference == null) {
+                strings.add(string);
+                reference = strings.size();
+                references.put(string, reference);
+            }
+            section.writeVarInt(reference);
+        }
+
+        private void writeStrings(Section section, Collection<String> collection) {
+            if (collection == null) {
+                section.writeVarInt(NULL);
+                return;
+            }
+            section.writeVarInt(collection.size() + 1);
+            for (String string : collection) {
+                writeString(section, string);
+            }
+        }
+
+        private void writeNodes(Section section, Map<String, NodeData> nodes) {
+            if (nodes == null) {
+                section.writeVarInt(NULL);
+                return;
+            }
+            section.writeVarInt(nodes.size() + 1);
+            for (Map.Entry<String, NodeData> entry : nodes.entrySet()) {
+                NodeData node = entry.getValue();
+                writeString(section, entry.getKey());
+                writeString(section, node.getId());
+                writeStrings(section, node.getNeighbors());
+                writeStrings(section, node.getTopics());
+                section.writeSignedVarInt(node.getSubscriptionSize());
+                section.writeSignedVarInt(node.getControlMsgsSent());
+                section.writeSignedVarInt(node.getControlMsgsReceived());
+                section.writeSignedVarInt(node.getBitsSent());
+                section.writeSignedVarInt(node.getBitsReceived());
+                writePublications(section, node.getPublicationMsgsSent());
+                writePublications(section, node.getPublicationMsgsReceived());
+                section.writeSignedVarInt(node.getDuplicateCount());
+            }
+        }
+
+        private void writeEdges(Section section, Map<String, EdgeData> edges) {
+            if (edges == null) {
+                section.writeVarInt(NULL);
+                return;
+            }
+            section.writeVarInt(edges.size() + 1);
+            for (Map.Entry<String, EdgeData> entry : edges.entrySet()) {
+                EdgeData edge = entry.getValue();
+                writeString(section, entry.getKey());
+                writeString(section, edge.getId());
+                writeString(section, edge.getSourceId());
+                writeString(section, edge.getTargetId());
+                writeStrings(section, edge.getTopics());
+                section.writeSignedVarInt(edge.getControlMsgCount());
+                writePublications(section, edge.getPublicationsMessages());
+            }
+        }
+
+        private void writePublications(Section section, Map<String, PubMessage> publications) {
+            if (publications == null) {
+                section.writeVarInt(NULL);
+                return;
+            }
+            section.writeVarInt(publications.size() + 1);
+            for (Map.Entry<String, PubMessage> entry : publications.entrySet()) {
+                PubMessage msg = entry.getValue();
+                writeString(section, entry.getKey());
+                writeString(section, msg.getMsgId());
+                writeString(section, msg.getTopicId());
+                writeString(section, msg.getOriginalSenderId());
+                writeString(section, msg.getSourceId());
+                writeStrings(section, msg.getDestinationIds());
+                section.writeSignedVarInt(msg.getHopCount());
+            }
+        }
+    }
+
+    /**
+     * Reads report entries from sections, resolving dictionary references.
+     */
+    private static final class Decoder {
+        private final String[] strings;
+
+        private Decoder(String[] strings) {
+            this.strings = strings;
+        }
+
+        private String readString(Cursor section) throws IOException {
+            int reference = section.readVarInt();
+            if (reference < 0 || reference > strings.length) {
+                throw new IOException("Corrupt binary report: string reference " + reference + " is not in the "
+                        + "dictionary of " + strings.length + " strings");
+            }
+            return reference == NULL ? null : strings[reference - 1];
+        }
+
+        private Set<String> readStringSet(Cursor section) throws IOException {
+            int size = section.readNullableSize();
+            if (size == NULL) {
+                return null;
+            }
+            Set<String> set = new LinkedHashSet<>(capacity(size - 1));
+            for (int i = 1; i < size; i++) {
+                set.add(readString(section));
+            }
+            return set;
+        }
+
+        private List<String> readStringList(Cursor section) throws IOException {
+            int size = section.readNullableSize();
+            if (size == NULL) {
+                return null;
+            }
+            List<String> list = new ArrayList<>(size - 1);
+            for (int i = 1; i < size; i++) {
+                list.add(readString(section));
+            }
+            return list;
+        }
+
+        private Map<String, NodeData> readNodes(Cursor section) throws IOException {
+            int size = section.readNullableSize();
+            if (size == NULL) {
+                return null;
+            }
+            Map<String, NodeData> nodes = new LinkedHashMap<>(capacity(size - 1));
+            for (int i = 1; i < size; i++) {
+                String key = readString(section);
+                nodes.put(key, NodeData.builder()
+                        .withId(readString(section))
+                        .withNeighbors(readStringSet(section))
+                        .withTopics(readStringSet(section))
+                        .withSubscriptionSize(section.readSignedVarInt())
+                        .withControlMsgsSent(section.readSignedVarInt())
+                        .withControlMsgsReceived(section.readSignedVarInt())
+                        .withBitsSent(section.readSignedVarInt())
+                        .withBitsReceived(section.readSignedVarInt())
+                        .withPublicationMsgsSent(readPublications(section))
+                        .withPublicationMsgsReceived(readPublications(section))
+                        .withDuplicateMsgs(section.readSignedVarInt())
+                        .build());
+            }
+            return nodes;
+        }
+
+        private Map<String, EdgeData> readEdges(Cursor section) throws IOException {
+            int size = section.readNullableSize();
+            if (size == NULL) {
+                return null;
+            }
+            Map<String, EdgeData> edges = new LinkedHashMap<>(capacity(size - 1));
+            for (int i = 1; i < size; i++) {
+                String key = readString(section);
+                edges.put(key, EdgeData.newBuilder()
+                        .withId(readString(section))
+                        .withSourceId(readString(section))
+                        .withTargetId(readString(section))
+                        .withTopics(readStringSet(section))
+                        .withControlMsgCount(section.readSignedVarInt())
+                        .withPublicationMessages(readPublications(section))
+                        .build());
+            }
+            return edges;
+        }
+
+        private Map<String, PubMessage> readPublications(Cursor section) throws IOException {
+            int size = section.readNullableSize();
+            if (size == NULL) {
+                return null;
+            }
+            Map<String, PubMessage> publications = new LinkedHashMap<>(capacity(size - 1));
+            for (int i = 1; i < size; i++) {
+                String key = readString(section);
+                publications.put(key, PubMessage.builder()
+                        .withMsgId(readString(section))
+                        .withTopicId(readString(section))
+                        .withOriginalSenderId(readString(section))
+                        .withSourceId(readString(section))
+                        .withDestinationIds(readStringList(section))
+                        .withHopCount(section.readSignedVarInt())
+                        .build());
+            }
+            return publications;
+        }
+
+        private static int capacity(int size) {
+            return size < 3 ? size + 1 : (int) (size / 0.75f) + 1;
+        }
+    }
+
+    /**
+     * Growable section buffer with variable length integer encoding.
+     */
+    private static final class Section extends ByteArrayOutputStream {
+
+        private void writeVarInt(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        private void writeSignedVarInt(int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        /**
+         * Writes this section, prefixed by its length, to the given stream.
+         */
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            int length = count;
+            while ((length & ~0x7f) != 0) {
+                out.write((length & 0x7f) | 0x80);
+                length >>>= 7;
+            }
+            out.write(length);
+            out.write(buf, 0, count);
+        }
+    }
+
+    /**
+     * Read position within a section.
+     */
+    private static final class Cursor {
+        private final byte[] bytes;
+        private int position;
+
+        private Cursor(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (position == bytes.length) {
+                    throw new EOFException("Truncated binary report section");
+                }
+                if (shift > 28) {
+                    throw new IOException("Corrupt binary report: variable length integer is too long");
+                }
+                byte b = bytes[position++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        /**
+         * Reads the number of entries of a collection, each of which takes at least a byte of the section.
+         */
+        private int readSize() throws IOException {
+            int size = readVarInt();
+            if (size < 0 || size > bytes.length - position) {
+                throw new IOException("Corrupt binary report: " + size + " entries do not fit in the "
+                        + (bytes.length - position) + " bytes left of the section");
+            }
+            return size;
+        }
+
+        /**
+         * Reads the size plus one of a collection, or zero for null.
+         */
+        private int readNullableSize() throws IOException {
+            int size = readVarInt();
+            if (size < 0 || size - 1 > bytes.length - position) {
+                throw new IOException("Corrupt binary report: " + (size - 1) + " entries do not fit in the "
+                        + (bytes.length - position) + " bytes left of the section");
+            }
+            return size;
+        }
+
+        private int readSignedVarInt() throws IOException {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String readUtf8() throws IOException {
+            int length = readVarInt();
+            if (length < 0 || length > bytes.length - position) {
+                throw new EOFException("Truncated binary report section");
+            }
+            String string = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return string;
+        }
+    }
+}
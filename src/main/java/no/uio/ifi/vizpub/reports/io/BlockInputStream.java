@@ -0,0 +1,166 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import com.google.common.util.concurrent.Futures;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Input stream reading blocks written by a <code>BlockOutputStream</code>.
+ * <p/>
+ * When given an executor, the stream reads ahead up to a fixed number of compressed blocks and inflates them in
+ * parallel on the executor, while handing out the inflated data in block order. Otherwise, each block is inflated
+ * by the reading thread when it is needed.
+ *
+ * @author Nils Peder Korsveien
+ * @see BlockOutputStream
+ */
+final class BlockInputStream extends InputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final DataInputStream in;
+    private final ExecutorService executor;
+    private final int readAhead;
+    private final Queue<Future<byte[]>> pending;
+    private byte[] current;
+    private int position;
+    private boolean endOfBlocks;
+
+    BlockInputStream(InputStream in) {
+        this(in, null, 1);
+    }
+
+    /**
+     * @param in        stream of compressed blocks
+     * @param executor  executor inflating blocks, or null to inflate them in the reading thread
+     * @param readAhead maximum number of blocks being inflated at once
+     */
+    BlockInputStream(InputStream in, ExecutorService executor, int readAhead) {
+        checkArgument(readAhead > 0, "Read ahead must be positive");
+        this.in = new DataInputStream(checkNotNull(in));
+        this.executor = executor;
+        this.readAhead = readAhead;
+        this.pending = new ArrayDeque<>(readAhead);
+        this.current = EMPTY;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == current.length && !nextBlock()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == current.length && !nextBlock()) {
+            return -1;
+        }
+        int chunk = Math.min(length, current.length - position);
+        System.arraycopy(current, position, bytes, offset, chunk);
+        position += chunk;
+        return chunk;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> future : pending) {
+            future.cancel(false);
+        }
+        pending.clear();
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (pending.size() < readAhead && !endOfBlocks) {
+            int uncompressedLength;
+            try {
+                uncompressedLength = in.readInt();
+            } catch (EOFException e) {
+                endOfBlocks = true;
+                break;
+            }
+            byte[] compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+            pending.add(inflate(compressed, uncompressedLength));
+        }
+
+        Future<byte[]> next = pending.poll();
+        if (next == null) {
+            return false;
+        }
+        try {
+            current = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while inflating block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        position = 0;
+        return true;
+    }
+
+    private Future<byte[]> inflate(final byte[] compressed, final int uncompressedLength) throws IOException {
+        if (executor == null) {
+            return Futures.immediateFuture(inflateBlock(compressed, uncompressedLength));
+        }
+        return executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return inflateBlock(compressed, uncompressedLength);
+            }
+        });
+    }
+
+    private static byte[] inflateBlock(byte[] compressed, int uncompressedLength) throws IOException {
+        byte[] block = new byte[uncompressedLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < uncompressedLength && !inflater.finished()) {
+                int count = inflater.inflate(block, length, uncompressedLength - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != uncompressedLength) {
+                throw new ZipException("Corrupt block, expected " + uncompressedLength + " bytes but got " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return block;
+    }
+}
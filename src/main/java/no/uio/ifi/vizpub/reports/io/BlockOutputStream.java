@@ -0,0 +1,116 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Output stream compressing its data into independently decompressible blocks.
+ * <p/>
+ * Data is collected into blocks of a fixed uncompressed size, and each block is deflated on its own and written as
+ * a frame holding its uncompressed length, its compressed length and the compressed bytes. Since no block depends on
+ * the ones before it, a reader may inflate several blocks in parallel. Flushing the stream does not end the current
+ * block; only filling it or closing the stream does.
+ *
+ * @author Nils Peder Korsveien
+ * @see BlockInputStream
+ */
+final class BlockOutputStream extends OutputStream {
+    static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    private final byte[] block;
+    private byte[] compressed;
+    private int count;
+    private boolean closed;
+
+    BlockOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE, Deflater.BEST_SPEED);
+    }
+
+    BlockOutputStream(OutputStream out, int blockSize, int level) {
+        checkArgument(blockSize > 0, "Block size must be positive");
+        this.out = checkNotNull(out);
+        this.deflater = new Deflater(level);
+        this.block = new byte[blockSize];
+        this.compressed = new byte[blockSize + blockSize / 1000 + 64];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == block.length) {
+            writeBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == block.length) {
+                writeBlock();
+            }
+            int chunk = Math.min(length, block.length - count);
+            System.arraycopy(bytes, offset, block, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the last block and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                writeBlock();
+            }
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        deflater.reset();
+        deflater.setInput(block, 0, count);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, length);
+                compressed = larger;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        writeInt(count);
+        writeInt(length);
+        out.write(compressed, 0, length);
+        count = 0;
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,80 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import com.google.common.collect.Multimap;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.utils.gson.MultimapDeserializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Streaming json encoding of reports.
+ * <p/>
+ * Reports are written token by token to the underlying stream, and read back the same way, so a report is
+ * never materialized as a json string. Peak memory use when persisting a report is therefore the size of the
+ * report object graph plus the stream buffers, regardless of the size of the overlay.
+ * <p/>
+ * Instances are thread-safe.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportCodec
+ * @see ReportFiles
+ */
+public final class JsonReportCodec implements ReportCodec {
+    public static final String EXTENSION = ".json";
+
+    private final Gson gson;
+
+    public JsonReportCodec() {
+        gson = new GsonBuilder().registerTypeAdapter(Multimap.class, new MultimapDeserializer()).create();
+    }
+
+    @Override
+    public void encode(Report report, OutputStream out) throws IOException {
+        checkNotNull(report);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        try {
+            gson.toJson(report, Report.class, writer);
+        } catch (JsonIOException e) {
+            throw new IOException(e);
+        }
+        writer.flush();
+    }
+
+    @Override
+    public Report decode(InputStream in) throws IOException {
+        return decode(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a report from the given reader.
+     *
+     * @param in reader to read from
+     * @return the decoded report, or null if the reader is empty
+     */
+    public Report decode(Reader in) throws IOException {
+        try {
+            return gson.fromJson(new JsonReader(in), Report.class);
+        } catch (JsonIOException | JsonSyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public String getExtension() {
+        return EXTENSION;
+    }
+}
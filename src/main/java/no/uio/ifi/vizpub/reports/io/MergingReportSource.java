@@ -0,0 +1,217 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import com.google.common.util.concurrent.Futures;
+import no.uio.ifi.vizpub.reports.EdgeData;
+import no.uio.ifi.vizpub.reports.NodeData;
+import no.uio.ifi.vizpub.reports.PubMessage;
+import no.uio.ifi.vizpub.reports.Report;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Source merging the partial reports of several hosts into a single report per reporting interval.
+ * <p/>
+ * Each underlying source must return the reports of its hosts in order of reporting interval. The source performs a
+ * k-way merge of the underlying sources on the interval count of their reports, and merges every report of the same
+ * interval into one, in the order the sources were given. Reports of the same interval which follow each other in
+ * one source are merged as well, so a single source ordered by interval may be merged on its own.
+ * <p/>
+ * Only the report at the head of each source is held, along with the next report of the source, which is read
+ * ahead on the given executor while the current interval is being merged and consumed. Memory use is thus bounded
+ * by about two intervals, regardless of the length of the experiment.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportFiles#openMergedSource(java.io.File, int, int)
+ */
+public final class MergingReportSource implements ReportSource {
+
+    private static final Comparator<Stream> BY_INTERVAL = new Comparator<Stream>() {
+        @Override
+        public int compare(Stream first, Stream second) {
+            int byInterval = Integer.compare(first.head.getIntervalCount(), second.head.getIntervalCount());
+            return byInterval != 0 ? byInterval : Integer.compare(first.index, second.index);
+        }
+    };
+
+    private final List<Stream> streams;
+    private final PriorityQueue<Stream> heads;
+    private final ExecutorService readers;
+    private boolean started;
+
+    /**
+     * @param sources sources to merge, each ordered by reporting interval
+     * @param readers executor reading ahead in the sources, or null to read them on the calling thread. It is shut
+     *                down when the source is closed.
+     */
+    public MergingReportSource(List<? extends ReportSource> sources, ExecutorService readers) {
+        checkNotNull(sources);
+        checkArgument(!sources.isEmpty(), "At least one source is required");
+        this.streams = new ArrayList<>(sources.size());
+        for (ReportSource source : sources) {
+            streams.add(new Stream(streams.size(), checkNotNull(source)));
+        }
+        this.heads = new PriorityQueue<>(sources.size(), BY_INTERVAL);
+        this.readers = readers;
+    }
+
+    @Override
+    public Report next() throws IOException {
+        if (!started) {
+            for (Stream stream : streams) {
+                stream.readAhead();
+            }
+            for (Stream stream : streams) {
+                advance(stream);
+            }
+            started = true;
+        }
+
+        Stream first = heads.poll();
+        if (first == null) {
+            return null;
+        }
+        int intervalCount = first.head.getIntervalCount();
+        List<Report> partials = new ArrayList<>();
+        partials.add(first.head);
+        advance(first);
+        while (!heads.isEmpty() && heads.peek().head.getIntervalCount() == intervalCount) {
+            Stream stream = heads.poll();
+            partials.add(stream.head);
+            advance(stream);
+        }
+        return merge(partials);
+    }
+
+    /**
+     * Merges partial reports of the same reporting interval into one report. Nodes, edges and publications of
+     * later reports replace those of earlier reports with the same id.
+     *
+     * @param partials reports to merge, of which there must be at least one
+     * @return the merged report, or the only report given
+     */
+    public static Report merge(List<Report> partials) {
+        checkArgument(!partials.isEmpty(), "At least one report is required");
+        Report first = partials.get(0);
+        if (partials.size() == 1) {
+            return first;
+        }
+
+        Report.Builder merged = Report.builder()
+                .withProtocolId(first.getProtocolId())
+                .withProtocolName(first.getProtocolName())
+                .withIntervalCount(first.getIntervalCount())
+                .withNodes(new LinkedHashMap<String, NodeData>())
+                .withEdges(new LinkedHashMap<String, EdgeData>())
+                .withPublications(new LinkedHashMap<String, PubMessage>());
+        for (Report partial : partials) {
+            add(merged, partial);
+        }
+        return merged.build();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Stream stream : streams) {
+            if (stream.next != null) {
+                stream.next.cancel(false);
+            }
+            try {
+                stream.source.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        heads.clear();
+        if (readers != null) {
+            readers.shutdownNow();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Private methods:
+     */
+
+    /**
+     * Takes the report read ahead in the stream as its head, queues the stream if it has one, and reads on.
+     */
+    private void advance(Stream stream) throws IOException {
+        stream.head = stream.take();
+        if (stream.head != null) {
+            heads.add(stream);
+            stream.readAhead();
+        }
+    }
+
+    private static void add(Report.Builder merged, Report partial) {
+        if (partial.getNodes() != null) {
+            merged.addNodes(partial.getNodes());
+        }
+        if (partial.getEdges() != null) {
+            merged.addEdges(partial.getEdges());
+        }
+        if (partial.getPublications() != null) {
+            merged.addPublications(partial.getPublications());
+        }
+    }
+
+    /**
+     * Underlying source along with its current report and the report read ahead of it.
+     */
+    private final class Stream {
+        private final int index;
+        private final ReportSource source;
+        private Report head;
+        private Future<Report> next;
+
+        private Stream(int index, ReportSource source) {
+            this.index = index;
+            this.source = source;
+        }
+
+        private void readAhead() throws IOException {
+            if (readers == null) {
+                next = Futures.immediateFuture(source.next());
+                return;
+            }
+            next = readers.submit(new Callable<Report>() {
+                @Override
+                public Report call() throws IOException {
+                    return source.next();
+                }
+            });
+        }
+
+        private Report take() throws IOException {
+            try {
+                return next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading reports");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                next = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import no.uio.ifi.vizpub.reports.Report;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Source running independent reads of reports ahead of the reader, in parallel, while returning their reports in
+ * order.
+ * <p/>
+ * Each read decodes a report on its own, e.g. one report file, or every report of a reporting interval of a log
+ * merged into one. Up to <code>lookahead</code> reads are queued on the executor at any time, and a new read is
+ * queued whenever the reader takes the report at the head of the queue. Decoding thus overlaps with whatever the
+ * reader does with the reports, such as building an overlay, and memory use is bounded by the lookahead rather than
+ * by the length of the experiment.
+ * <p/>
+ * This class is not thread-safe, and is meant to be read from a single thread. The reads are taken from their
+ * iterator on that thread.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportFiles#openMergedSource(java.io.File, int, int)
+ * @see ReportLog#openIntervalSource(java.io.File, int, int, int, int)
+ */
+public final class PrefetchingReportSource implements ReportSource {
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final Iterator<? extends Callable<Report>> reads;
+    private final ExecutorService readers;
+    private final int lookahead;
+    private final Closeable resources;
+    private final ArrayDeque<Future<Report>> pending;
+
+    /**
+     * @param reads     reads of the reports, in the order the reports are returned
+     * @param readers   executor running the reads. It is shut down when the source is closed.
+     * @param lookahead largest number of reads queued ahead of the reader
+     * @param resources resources shared by the reads, closed along with the source, or null if there are none
+     */
+    public PrefetchingReportSource(Iterator<? extends Callable<Report>> reads, ExecutorService readers, int lookahead
+            , Closeable resources) {
+        checkArgument(lookahead > 0, "Lookahead must be positive");
+        this.reads = checkNotNull(reads);
+        this.readers = checkNotNull(readers);
+        this.lookahead = lookahead;
+        this.resources = resources;
+        this.pending = new ArrayDeque<>(lookahead);
+    }
+
+    @Override
+    public Report next() throws IOException {
+        while (pending.size() < lookahead && reads.hasNext()) {
+            pending.add(readers.submit(reads.next()));
+        }
+        Future<Report> next = pending.poll();
+        if (next == null) {
+            return null;
+        }
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading reports");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<Report> read : pending) {
+            read.cancel(false);
+        }
+        pending.clear();
+        readers.shutdown();
+        try {
+            // let running reads finish with the shared resources before closing them
+            if (!readers.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                readers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            readers.shutdownNow();
+        }
+        if (resources != null) {
+            resources.close();
+        }
+    }
+}
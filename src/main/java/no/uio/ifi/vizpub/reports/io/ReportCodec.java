@@ -0,0 +1,44 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import no.uio.ifi.vizpub.reports.Report;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding used when persisting or transmitting reports.
+ * <p/>
+ * Implementations must be thread-safe, as a single instance is shared between the encoder threads of the
+ * reporter service.
+ *
+ * @author Nils Peder Korsveien
+ * @see JsonReportCodec
+ * @see BinaryReportCodec
+ * @see ReportFiles
+ */
+public interface ReportCodec {
+
+    /**
+     * Writes a report to the given stream. The stream is flushed, but not closed.
+     *
+     * @param report the report to encode
+     * @param out    stream to write to
+     */
+    public void encode(Report report, OutputStream out) throws IOException;
+
+    /**
+     * Reads a report from the given stream.
+     *
+     * @param in stream to read from
+     * @return the decoded report, or null if the stream is empty
+     */
+    public Report decode(InputStream in) throws IOException;
+
+    /**
+     * Returns the file extension of files written with this codec, including the leading dot.
+     *
+     * @return file extension of this codec
+     */
+    public String getExtension();
+}
@@ -0,0 +1,141 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import com.google.common.base.Stopwatch;
+import no.uio.ifi.vizpub.reports.NodeData;
+import no.uio.ifi.vizpub.reports.PubMessage;
+import no.uio.ifi.vizpub.reports.Report;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Compares the encoded size and the encoding/decoding speed of the report codecs.
+ * <p/>
+ * The benchmark builds a synthetic overlay resembling an MSPastry report, with 128 bit decimal node ids, and
+ * encodes and decodes it repeatedly with every codec. Usage:
+ * <pre>
+ *     {@code
+ *     ReportCodecBenchmark [nodes] [neighbors per node] [rounds]
+ *     }
+ * </pre>
+ *
+ * @author Nils Peder Korsveien
+ * @see JsonReportCodec
+ * @see BinaryReportCodec
+ */
+public final class ReportCodecBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+
+    private ReportCodecBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int neighborCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        Report report = createReport(nodeCount, neighborCount, new Random(42));
+        System.out.println("Overlay: " + nodeCount + " nodes, " + neighborCount + " neighbors per node");
+        System.out.println("codec;bytes;encode ms;decode ms");
+        for (ReportCodec codec : new ReportCodec[]{ReportFiles.json(), ReportFiles.codecFor(ReportFiles.FORMAT_BINARY)}) {
+            benchmark(codec, report, rounds);
+        }
+    }
+
+    private static void benchmark(ReportCodec codec, Report report, int rounds) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            out.reset();
+            codec.encode(report, out);
+            codec.decode(new ByteArrayInputStream(out.toByteArray()));
+        }
+
+        Stopwatch encoding = Stopwatch.createUnstarted();
+        Stopwatch decoding = Stopwatch.createUnstarted();
+        for (int i = 0; i < rounds; i++) {
+            out.reset();
+            encoding.start();
+            codec.encode(report, out);
+            encoding.stop();
+
+            byte[] bytes = out.toByteArray();
+            decoding.start();
+            Report decoded = codec.decode(new ByteArrayInputStream(bytes));
+            decoding.stop();
+            checkState(decoded.getNodes().size() == report.getNodes().size(), "Decoded report differs");
+        }
+
+        System.out.println(codec.getExtension()
+                + ";" + out.size()
+                + ";" + (double) encoding.elapsed(TimeUnit.MICROSECONDS) / rounds / 1000
+                + ";" + (double) decoding.elapsed(TimeUnit.MICROSECONDS) / rounds / 1000);
+    }
+
+    /**
+     * Creates a synthetic report resembling an MSPastry report, for use in benchmarks.
+     *
+     * @param nodeCount     number of nodes in the overlay
+     * @param neighborCount number of neighbors per node
+     * @param random        source of node ids and neighbors
+     * @return the synthetic report
+     */
+    public static Report createReport(int nodeCount, int neighborCount, Random random) {
+        String[] ids = new String[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            ids[i] = new BigInteger(128, random).toString();
+        }
+
+        Map<String, NodeData> nodes = new HashMap<>();
+        Map<String, PubMessage> publications = new HashMap<>();
+        for (int i = 0; i < nodeCount; i++) {
+            Set<String> neighbors = new HashSet<>();
+            while (neighbors.size() < Math.min(neighborCount, nodeCount - 1)) {
+                int neighbor = random.nextInt(nodeCount);
+                if (neighbor != i) {
+                    neighbors.add(ids[neighbor]);
+                }
+            }
+            Set<String> topics = new HashSet<>();
+            topics.add(Integer.toString(random.nextInt(10)));
+
+            Map<String, PubMessage> received = new HashMap<>();
+            if (i % 100 == 0) {
+                PubMessage msg = PubMessage.builder()
+                        .withMsgId(Integer.toString(i))
+                        .withTopicId(topics.iterator().next())
+                        .withOriginalSenderId(ids[i])
+                        .withSourceId(ids[i])
+                        .build();
+                publications.put(msg.getMsgId(), msg);
+                received.put(msg.getMsgId(), msg);
+            }
+
+            nodes.put(ids[i], NodeData.builder()
+                    .withId(ids[i])
+                    .withNeighbors(neighbors)
+                    .withTopics(topics)
+                    .withControlMsgsSent(random.nextInt(1000))
+                    .withControlMsgsReceived(random.nextInt(1000))
+                    .withPublicationMsgsReceived(received)
+                    .build());
+        }
+
+        return Report.builder()
+                .withProtocolId(3)
+                .withProtocolName("protocol.3mspastry")
+                .withIntervalCount(1)
+                .withNodes(nodes)
+                .withPublications(publications)
+                .build();
+    }
+}
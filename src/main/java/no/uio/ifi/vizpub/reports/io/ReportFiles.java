@@ -0,0 +1,354 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.utils.BufferPool;
+import no.uio.ifi.vizpub.utils.ChannelOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Utility methods for reading and writing a single report file.
+ * <p/>
+ * Reports are encoded straight onto a buffered file channel, and decoded straight from one, so that the
+ * encoded form of a report is never held in memory in its entirety. The codec used for a file is determined by
+ * its extension, which means json and binary reports can be mixed in the same directory. Files whose name ends
+ * with <code>.z</code>, e.g. <code>report.json.z</code>, are block compressed.
+ *
+ * @author Nils Peder Korsveien
+ * @see JsonReportCodec
+ * @see BinaryReportCodec
+ */
+public final class ReportFiles {
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_BINARY = "binary";
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+    public static final String COMPRESSED_SUFFIX = ".z";
+
+    private static final JsonReportCodec JSON = new JsonReportCodec();
+    private static final BinaryReportCodec BINARY = new BinaryReportCodec();
+    static final BufferPool BUFFER_POOL = new BufferPool(32);
+
+    private ReportFiles() {
+    }
+
+    /**
+     * Writes a report to the given file, creating parent directories as needed. The report is encoded with the
+     * codec matching the extension of the file.
+     *
+     * @param report the report to write
+     * @param file   file to write to, overwritten if it exists
+     */
+    public static void write(Report report, File file) throws IOException {
+        checkNotNull(report);
+        Path path = file.toPath();
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        encode(report, new ChannelOutputStream(FileChannel.open(path
+                , StandardOpenOption.CREATE
+                , StandardOpenOption.TRUNCATE_EXISTING
+                , StandardOpenOption.WRITE), BUFFER_POOL), codecFor(file), isCompressed(file));
+    }
+
+    /**
+     * Reads a report from the given file.
+     *
+     * @param file file to read from
+     * @return the decoded report, or null if the file is empty
+     */
+    public static Report read(File file) throws IOException {
+        return decode(new BufferedInputStream(
+                Channels.newInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ))
+                , BUFFER_POOL.getBufferSize()), codecFor(file), isCompressed(file));
+    }
+
+    /**
+     * Encodes a report onto the given stream, optionally block compressing it. The stream is closed afterwards.
+     *
+     * @param report   the report to encode
+     * @param out      stream to write to
+     * @param codec    codec to encode the report with
+     * @param compress whether to block compress the encoded report
+     */
+    public static void encode(Report report, OutputStream out, ReportCodec codec, boolean compress) throws IOException {
+        checkNotNull(report);
+        if (compress) {
+            out = new BlockOutputStream(out);
+        }
+        try {
+            codec.encode(report, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Decodes a report from the given stream, which is closed afterwards.
+     *
+     * @param in         stream to read from
+     * @param codec      codec the report was encoded with
+     * @param compressed whether the encoded report is block compressed
+     * @return the decoded report, or null if the stream is empty
+     */
+    public static Report decode(InputStream in, ReportCodec codec, boolean compressed) throws IOException {
+        if (compressed) {
+            in = new BlockInputStream(in);
+        }
+        try {
+            return codec.decode(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the codec matching the extension of the given file. Files with unknown extensions are assumed to
+     * be json.
+     *
+     * @param file a report file
+     * @return codec for reading and writing the file
+     */
+    public static ReportCodec codecFor(File file) {
+        String name = file.getName();
+        if (isCompressed(file)) {
+            name = name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+        }
+        return name.endsWith(BinaryReportCodec.EXTENSION) ? BINARY : JSON;
+    }
+
+    /**
+     * Returns true if the given report file is block compressed.
+     *
+     * @param file a report file
+     * @return true if the name of the file ends with the compressed suffix
+     */
+    public static boolean isCompressed(File file) {
+        return file.getName().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Parses the compression setting used in the vizpub properties file.
+     *
+     * @param compression either <code>none</code> or <code>deflate</code>
+     * @return true if reports should be block compressed
+     */
+    public static boolean parseCompression(String compression) {
+        checkNotNull(compression);
+        switch (compression.trim()) {
+            case COMPRESSION_NONE:
+                return false;
+            case COMPRESSION_DEFLATE:
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown report compression " + compression);
+        }
+    }
+
+    /**
+     * Returns the codec with the given file extension. Unknown extensions are assumed to be json.
+     *
+     * @param extension file extension, including the leading dot
+     * @return codec with the extension
+     */
+    public static ReportCodec codecForExtension(String extension) {
+        return BinaryReportCodec.EXTENSION.equals(extension) ? BINARY : JSON;
+    }
+
+    /**
+     * Returns the codec for the given format name, as used in the vizpub properties file.
+     *
+     * @param format either <code>json</code> or <code>binary</code>
+     * @return codec for the format
+     */
+    public static ReportCodec codecFor(String format) {
+        checkNotNull(format);
+        switch (format) {
+            case FORMAT_JSON:
+                return JSON;
+            case FORMAT_BINARY:
+                return BINARY;
+            default:
+                throw new IllegalArgumentException("Unknown report format " + format);
+        }
+    }
+
+    /**
+     * Opens a source reading the reports in the given directory merged into one report per reporting interval. The
+     * reports are read ahead on one thread per available processor.
+     *
+     * @param directory directory of reports
+     * @return source of the merged reports in the directory
+     * @see #openMergedSource(java.io.File, int, int)
+     */
+    public static ReportSource openMergedSource(File directory) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return openMergedSource(directory, threads, threads * 2);
+    }
+
+    /**
+     * Opens a source reading the reports in the given directory merged into one report per reporting interval.
+     * <p/>
+     * Reports are read and decoded ahead of the reader on a pool of the given number of threads, so decoding
+     * overlaps with the reader consuming the reports. If the directory holds a report log, the reports of the next
+     * <code>lookahead</code> reporting intervals are read ahead, and the reports of each interval are merged as
+     * they are read. Otherwise, the next <code>lookahead</code> report files are read ahead, and merged in the order
+     * of their file names as they are taken by the reader.
+     *
+     * @param directory directory of reports
+     * @param threads   number of threads reading reports
+     * @param lookahead largest number of intervals, or files, read ahead of the reader
+     * @return source of the merged reports in the directory
+     * @see #openMergedSource(java.io.File, int, int, int, int)
+     * @see PrefetchingReportSource
+     * @see MergingReportSource
+     */
+    public static ReportSource openMergedSource(File directory, int threads, int lookahead) throws IOException {
+        return openMergedSource(directory, threads, lookahead, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Opens a source reading the reports in the given directory for a range of reporting intervals, merged into one
+     * report per interval. The reports are read ahead as described for
+     * <code>openMergedSource(directory, threads, lookahead)</code>.
+     * <p/>
+     * Reading starts straight at the first interval of the range. If the directory holds a report log, the reports
+     * of the range are located through its index. Otherwise, since the report files are ordered by interval, the
+     * files of the range are found by binary search, decoding a few files to learn their intervals.
+     *
+     * @param directory    directory of reports
+     * @param threads      number of threads reading reports
+     * @param lookahead    largest number of intervals, or files, read ahead of the reader
+     * @param fromInterval first reporting interval to read
+     * @param toInterval   reporting interval following the last interval to read
+     * @return source of the merged reports of the range
+     */
+    public static ReportSource openMergedSource(File directory, int threads, int lookahead, int fromInterval
+            , int toInterval) throws IOException {
+        checkNotNull(directory);
+        checkArgument(threads > 0, "At least one reader thread is required");
+        checkArgument(fromInterval <= toInterval, "Range must not end before it starts");
+        if (ReportLog.exists(directory)) {
+            return ReportLog.openIntervalSource(directory, threads, lookahead, fromInterval, toInterval);
+        }
+
+        List<File> files = new ArrayList<>();
+        for (File file : listFiles(directory)) {
+            // an empty file holds no report, e.g. one left behind by a reporter which was killed
+            if (file.isFile() && file.length() > 0) {
+                files.add(file);
+            }
+        }
+        if (fromInterval != Integer.MIN_VALUE || toInterval != Integer.MAX_VALUE) {
+            files = files.subList(firstFileFrom(files, fromInterval), firstFileFrom(files, toInterval));
+        }
+
+        List<Callable<Report>> reads = new ArrayList<>(files.size());
+        for (final File file : files) {
+            reads.add(new Callable<Report>() {
+                @Override
+                public Report call() throws IOException {
+                    return read(file);
+                }
+            });
+        }
+        ExecutorService readers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("report-reader-%d")
+                .setDaemon(true)
+                .build());
+        return new MergingReportSource(Collections.singletonList(
+                new PrefetchingReportSource(reads.iterator(), readers, lookahead, null)), null);
+    }
+
+    public static JsonReportCodec json() {
+        return JSON;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    /**
+     * Finds the first of the given report files, ordered by interval, whose report was created in the given
+     * interval or later.
+     *
+     * @return index of the file, or the number of files if there is none
+     */
+    private static int firstFileFrom(List<File> files, int interval) throws IOException {
+        int low = 0;
+        int high = files.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Report report = read(files.get(middle));
+            if (report == null) {
+                throw new IOException("Report file " + files.get(middle) + " holds no report");
+            }
+            if (report.getIntervalCount() < interval) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Lists the contents of a directory of report files, in order of file name.
+     */
+    private static File[] listFiles(File directory) throws FileNotFoundException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new FileNotFoundException("Could not find contents of directory " + directory);
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Reads one report per file, skipping subdirectories.
+     */
+    private static final class DirectorySource implements ReportSource {
+        private final File[] files;
+        private int next;
+
+        private DirectorySource(File[] files) {
+            this.files = files;
+        }
+
+        @Override
+        public Report next() throws IOException {
+            while (next < files.length) {
+                File file = files[next++];
+                if (file.isFile()) {
+                    return read(file);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
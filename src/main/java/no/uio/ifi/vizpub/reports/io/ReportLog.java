@@ -0,0 +1,771 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.collect.Table;
+import com.google.common.collect.TreeBasedTable;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.uio.ifi.vizpub.reports.Report;
+import no.uio.ifi.vizpub.utils.ChannelOutputStream;
+import no.uio.ifi.vizpub.utils.LogCategory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Segmented append-only log of the reports collected for a single protocol.
+ * <p/>
+ * Reports are appended to the active segment file, which is sealed once it grows beyond the configured segment
+ * size. Every segment has an index file holding one entry per report, recording the reporting interval and host of
+ * the report along with its offset and length in the segment. A report is committed when its index entry has been
+ * written, so a report torn by a crash is discarded when the log is reopened. The manifest lists the segments of the
+ * log, and is replaced atomically whenever a segment is added.
+ * <p/>
+ * Reports are indexed by the reporting interval they were created in, as given by the report itself or the header
+ * it was received with, and by the host which reported them, so reports arriving out of order are placed in their
+ * own interval. At most one report is committed per interval and host. How often the log is forced to disk is
+ * determined by its <code>SyncPolicy</code>.
+ * <p/>
+ * The log may be appended to from any number of threads. Its index is a concurrent map, so looking up reports,
+ * including the check for duplicates made before appending, never waits for a report being written. Only writing
+ * to the active segment is serialized, as segments are written sequentially.
+ * <p/>
+ * Reports may be stored as independently decompressible deflate blocks. Since the index locates every report, a
+ * reader can seek straight to any interval, and the blocks of a report can be inflated in parallel while it is
+ * decoded.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportSource
+ */
+public final class ReportLog implements Closeable {
+    public static final String MANIFEST = "MANIFEST";
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final int VERSION = 2;
+    private static final String SEGMENT_EXTENSION = ".log";
+    private static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * Determines when the log is forced to disk. Regardless of policy, index entries are handed to the operating
+     * system as soon as a report is appended.
+     */
+    public enum SyncPolicy {
+        /**
+         * Never force the log, leaving it to the operating system
+         */
+        NONE,
+        /**
+         * Force a segment when it is sealed, and when the log is closed
+         */
+        SEGMENT,
+        /**
+         * Force every report before committing it
+         */
+        RECORD;
+
+        /**
+         * Returns the policy with the given name, as used in the vizpub properties file.
+         *
+         * @param name one of <code>none</code>, <code>segment</code> or <code>record</code>
+         * @return the policy with the given name
+         */
+        public static SyncPolicy parse(String name) {
+            checkNotNull(name);
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Location of a single report in the log.
+     */
+    public static final class Entry {
+        private final int interval;
+        private final String hostName;
+        private final int segment;
+        private final long offset;
+        private final long length;
+        private final String extension;
+        private final boolean compressed;
+
+        private Entry(int interval, String hostName, int segment, long offset, long length, String extension,
+                      boolean compressed) {
+            this.interval = interval;
+            this.hostName = hostName;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.extension = extension;
+            this.compressed = compressed;
+        }
+
+        public int getInterval() {
+            return interval;
+        }
+
+        public String getHostName() {
+            return hostName;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the extension of the codec the report was encoded with.
+         *
+         * @return codec extension, including the leading dot
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * Returns true if the report is stored as compressed blocks.
+         *
+         * @return true if the report is compressed
+         */
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        @Override
+        public String toString() {
+            return interval + "/" + hostName + "@" + segment + ":" + offset + "+" + length;
+        }
+    }
+
+    /**
+     * Key of a report in the index, ordered by reporting interval and then by host name.
+     */
+    private static final class Key implements Comparable<Key> {
+        private final int interval;
+        private final String hostName;
+
+        private Key(int interval, String hostName) {
+            this.interval = interval;
+            this.hostName = hostName;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int byInterval = Integer.compare(interval, other.interval);
+            return byInterval != 0 ? byInterval : hostName.compareTo(other.hostName);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return interval == other.interval && hostName.equals(other.hostName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * interval + hostName.hashCode();
+        }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final SyncPolicy syncPolicy;
+    private final boolean compress;
+
+    /**
+     * Key:   reporting interval and host name
+     * Value: location of report
+     */
+    private final ConcurrentNavigableMap<Key, Entry> index;
+    private final AtomicInteger size = new AtomicInteger();
+
+    private int segmentNumber;
+    private FileChannel segment;
+    private FileChannel indexChannel;
+    private DataOutputStream indexOut;
+
+    private ReportLog(File directory, long segmentSize, SyncPolicy syncPolicy, boolean compress) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncPolicy = syncPolicy;
+        this.compress = compress;
+        this.index = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Opens the log in the given directory for appending, creating it if it does not exist. Reports which were not
+     * committed when the log was last closed are discarded.
+     *
+     * @param directory   directory of the log
+     * @param segmentSize size in bytes after which a segment is sealed
+     * @param syncPolicy  when to force the log to disk
+     * @param compress    whether reports encoded by the log are block compressed
+     * @return the opened log
+     */
+    public static ReportLog open(File directory, long segmentSize, SyncPolicy syncPolicy, boolean compress)
+            throws IOException {
+        checkNotNull(directory);
+        checkNotNull(syncPolicy);
+        checkArgument(segmentSize > 0, "Segment size must be positive");
+
+        Files.createDirectories(directory.toPath());
+        ReportLog log = new ReportLog(directory, segmentSize, syncPolicy, compress);
+        log.recover();
+        return log;
+    }
+
+    /**
+     * Returns true if the given directory holds a report log.
+     *
+     * @param directory a directory
+     * @return true if a manifest was found in the directory
+     */
+    public static boolean exists(File directory) {
+        return new File(directory, MANIFEST).isFile();
+    }
+
+    /**
+     * Opens a source reading the reports committed to the log in the given directory for a range of reporting
+     * intervals, merged into one report per interval, in order of interval. Since the index locates the reports of
+     * every interval, reading starts straight at the first interval of the range, and the reports of other
+     * intervals are never read. Reports appended after the source is opened are not included.
+     * <p/>
+     * The reports of the next <code>lookahead</code> intervals are read, inflated, decoded and merged ahead of the
+     * reader on a pool of the given number of threads, which is shut down when the source is closed. Reports of the
+     * same interval are merged in order of host name.
+     *
+     * @param directory    directory of the log
+     * @param threads      number of threads reading intervals
+     * @param lookahead    largest number of intervals read ahead of the reader
+     * @param fromInterval first reporting interval to read
+     * @param toInterval   reporting interval following the last interval to read
+     * @return source of the merged reports in the range
+     * @see PrefetchingReportSource
+     */
+    public static ReportSource openIntervalSource(File directory, int threads, int lookahead, int fromInterval
+            , int toInterval) throws IOException {
+        checkArgument(threads > 0, "At least one reader thread is required");
+        checkArgument(fromInterval <= toInterval, "Range must not end before it starts");
+
+        TreeBasedTable<Integer, String, Entry> entries = TreeBasedTable.create();
+        int segmentCount = readManifest(directory);
+        for (int i = 0; i < segmentCount; i++) {
+            readIndex(directory, i, entries);
+        }
+
+        Segments segments = new Segments(directory);
+        Collection<Map<String, Entry>> range = entries.rowMap().subMap(fromInterval, toInterval).values();
+        List<IntervalRead> reads = new ArrayList<>(range.size());
+        for (Map<String, Entry> interval : range) {
+            reads.add(new IntervalRead(segments, new ArrayList<>(interval.values())));
+        }
+        ExecutorService readers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("report-reader-%d")
+                .setDaemon(true)
+                .build());
+        return new PrefetchingReportSource(reads.iterator(), readers, lookahead, segments);
+    }
+
+    /**
+     * Appends a report which has already been encoded for the given reporting interval. If a report from the host
+     * has already been committed for the interval, e.g. because a reporter sent it again after reconnecting, the
+     * report is not appended again.
+     *
+     * @param interval   reporting interval of the report
+     * @param hostName   name of host that delivered the report
+     * @param encoded    the encoded report
+     * @param extension  extension of the codec the report was encoded with
+     * @param compressed whether the encoded report is block compressed
+     * @return location of the report in the log, or null if it was not appended again
+     */
+    public Entry append(int interval, String hostName, ByteBuffer encoded, String extension, boolean compressed)
+            throws IOException {
+        checkArgument(interval >= 0, "Reporting interval must not be negative");
+        checkNotNull(hostName);
+        checkNotNull(encoded);
+        checkNotNull(extension);
+
+        Key key = new Key(interval, hostName);
+        return index.containsKey(key) ? null : write(key, encoded, extension, compressed);
+    }
+
+    /**
+     * Encodes a report straight onto the log, at the reporting interval given by the report. If a report from the
+     * host has already been committed for the interval, the report is not appended again.
+     *
+     * @param hostName name of host that delivered the report
+     * @param report   the report to append
+     * @param codec    codec to encode the report with
+     * @return location of the report in the log, or null if it was not appended again
+     */
+    public Entry append(String hostName, Report report, ReportCodec codec) throws IOException {
+        checkNotNull(hostName);
+        checkNotNull(report);
+        checkNotNull(codec);
+        checkArgument(report.getIntervalCount() >= 0, "Reporting interval must not be negative");
+
+        Key key = new Key(report.getIntervalCount(), hostName);
+        return index.containsKey(key) ? null : write(key, report, codec);
+    }
+
+    /**
+     * Returns the location of every report committed to the log for the given reporting interval.
+     *
+     * @param interval a reporting interval
+     * @return locations of the reports of the interval, ordered by host name
+     */
+    public List<Entry> getEntries(int interval) {
+        return new ArrayList<>(index.subMap(new Key(interval, ""), new Key(interval + 1, "")).values());
+    }
+
+    /**
+     * Returns the location of the report committed by the given host for the given reporting interval.
+     *
+     * @param interval a reporting interval
+     * @param hostName name of a host
+     * @return location of the report, or null if the host has not reported the interval
+     */
+    public Entry getEntry(int interval, String hostName) {
+        return index.get(new Key(interval, checkNotNull(hostName)));
+    }
+
+    /**
+     * Opens a source reading the given reports of this log, in the given order. Reports committed to the active
+     * segment may be read while the log is still being appended to.
+     *
+     * @param entries locations of reports in this log
+     * @return source of the reports
+     */
+    public ReportSource openSource(List<Entry> entries) {
+        return new LogSource(directory, new ArrayList<>(entries));
+    }
+
+    /**
+     * Returns the number of reports committed to the log.
+     *
+     * @return number of reports in the log
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Seals the active segment, forcing it to disk unless the sync policy is <code>NONE</code>.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        seal();
+        segment = null;
+        Log.debug(LogCategory.COLLECTOR, "Closed report log " + directory + " holding " + size() + " reports");
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private synchronized Entry write(Key key, ByteBuffer encoded, String extension, boolean compressed)
+            throws IOException {
+        checkState(segment != null, "Report log is closed");
+        if (index.containsKey(key)) {
+            return null;
+        }
+
+        rollIfFull();
+        long offset = segment.position();
+        try {
+            while (encoded.hasRemaining()) {
+                segment.write(encoded);
+            }
+        } catch (IOException e) {
+            segment.truncate(offset);
+            segment.position(offset);
+            throw e;
+        }
+        return commit(key, offset, segment.position() - offset, extension, compressed);
+    }
+
+    private synchronized Entry write(Key key, Report report, ReportCodec codec) throws IOException {
+        checkState(segment != null, "Report log is closed");
+        if (index.containsKey(key)) {
+            return null;
+        }
+
+        rollIfFull();
+        long offset = segment.position();
+        OutputStream out = new ChannelOutputStream(unclosable(segment), ReportFiles.BUFFER_POOL);
+        if (compress) {
+            out = new BlockOutputStream(out);
+        }
+        try {
+            codec.encode(report, out);
+            out.close();
+        } catch (IOException e) {
+            segment.truncate(offset);
+            segment.position(offset);
+            throw e;
+        }
+        return commit(key, offset, segment.position() - offset, codec.getExtension(), compress);
+    }
+
+    /**
+     * Writes the index entry of a report written to the active segment, and publishes it in the index. Invoked
+     * while holding the lock of the log.
+     */
+    private Entry commit(Key key, long offset, long length, String extension, boolean compressed)
+            throws IOException {
+        if (syncPolicy == SyncPolicy.RECORD) {
+            segment.force(false);
+        }
+
+        Entry entry = new Entry(key.interval, key.hostName, segmentNumber, offset, length, extension, compressed);
+        writeEntry(indexOut, entry);
+        indexOut.flush();
+        if (syncPolicy == SyncPolicy.RECORD) {
+            indexChannel.force(false);
+        }
+
+        if (index.put(key, entry) == null) {
+            size.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private void recover() throws IOException {
+        int segmentCount = readManifest(directory);
+        if (segmentCount == 0) {
+            writeManifest(1);
+            openSegment(0, 0, 0);
+            return;
+        }
+
+        Table<Integer, String, Entry> entries = TreeBasedTable.create();
+        long indexLength = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            indexLength = readIndex(directory, i, entries);
+        }
+        long segmentLength = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.segment == segmentCount - 1) {
+                segmentLength = Math.max(segmentLength, entry.offset + entry.length);
+            }
+            index.put(new Key(entry.interval, entry.hostName), entry);
+        }
+        size.set(index.size());
+        openSegment(segmentCount - 1, indexLength, segmentLength);
+        Log.debug(LogCategory.COLLECTOR, "Recovered report log " + directory + " holding " + size() + " reports");
+    }
+
+    private void rollIfFull() throws IOException {
+        if (segment.position() < segmentSize) {
+            return;
+        }
+        seal();
+        writeManifest(segmentNumber + 2);
+        openSegment(segmentNumber + 1, 0, 0);
+    }
+
+    private void openSegment(int number, long indexLength, long segmentLength) throws IOException {
+        segmentNumber = number;
+
+        segment = FileChannel.open(segmentFile(directory, number).toPath()
+                , StandardOpenOption.CREATE
+                , StandardOpenOption.WRITE);
+        segment.truncate(segmentLength);
+        segment.position(segmentLength);
+
+        indexChannel = FileChannel.open(indexFile(directory, number).toPath()
+                , StandardOpenOption.CREATE
+                , StandardOpenOption.WRITE);
+        indexChannel.truncate(indexLength);
+        indexChannel.position(indexLength);
+        indexOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(indexChannel)));
+    }
+
+    private void seal() throws IOException {
+        indexOut.flush();
+        if (syncPolicy != SyncPolicy.NONE) {
+            segment.force(true);
+            indexChannel.force(true);
+        }
+        segment.close();
+        indexOut.close();
+    }
+
+    private void writeManifest(int segmentCount) throws IOException {
+        Properties manifest = new Properties();
+        manifest.setProperty("version", Integer.toString(VERSION));
+        manifest.setProperty("segments", Integer.toString(segmentCount));
+
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            manifest.store(out, "vizpub report log");
+            if (syncPolicy != SyncPolicy.NONE) {
+                out.getFD().sync();
+            }
+        }
+        Files.move(tmp.toPath(), new File(directory, MANIFEST).toPath()
+                , StandardCopyOption.REPLACE_EXISTING
+                , StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the number of segments listed in the manifest of the log, or 0 if there is no manifest.
+     */
+    private static int readManifest(File directory) throws IOException {
+        File file = new File(directory, MANIFEST);
+        if (!file.isFile()) {
+            return 0;
+        }
+        Properties manifest = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            manifest.load(in);
+        }
+        int version = Integer.parseInt(manifest.getProperty("version", "0"));
+        if (version != VERSION) {
+            throw new IOException("Unsupported report log version " + version + " in " + directory);
+        }
+        return Integer.parseInt(manifest.getProperty("segments"));
+    }
+
+    /**
+     * Reads the committed entries of a segment index, ignoring a trailing entry torn by a crash.
+     *
+     * @return length in bytes of the committed part of the index
+     */
+    private static long readIndex(File directory, int number, Table<Integer, String, Entry> entries) throws IOException {
+        File file = indexFile(directory, number);
+        if (!file.isFile()) {
+            return 0;
+        }
+        long committed = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            DataInputStream in = new DataInputStream(counter);
+            for (; ; ) {
+                Entry entry;
+                try {
+                    int interval = in.readInt();
+                    String hostName = in.readUTF();
+                    String extension = in.readUTF();
+                    long offset = in.readLong();
+                    long length = in.readLong();
+                    boolean compressed = in.readBoolean();
+                    entry = new Entry(interval, hostName, number, offset, length, extension, compressed);
+                } catch (EOFException e) {
+                    break;
+                }
+                entries.put(entry.interval, entry.hostName, entry);
+                committed = counter.getCount();
+            }
+        }
+        return committed;
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeInt(entry.interval);
+        out.writeUTF(entry.hostName);
+        out.writeUTF(entry.extension);
+        out.writeLong(entry.offset);
+        out.writeLong(entry.length);
+        out.writeBoolean(entry.compressed);
+    }
+
+    private static File segmentFile(File directory, int number) {
+        return new File(directory, String.format("%08d", number) + SEGMENT_EXTENSION);
+    }
+
+    private static File indexFile(File directory, int number) {
+        return new File(directory, String.format("%08d", number) + INDEX_EXTENSION);
+    }
+
+    /**
+     * Keeps the segment open when the stream encoding a report onto it is closed.
+     */
+    private static WritableByteChannel unclosable(final FileChannel channel) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Reads the entries of a log in order, keeping the segments open until the source is closed.
+     */
+    private static final class LogSource implements ReportSource {
+        private final File directory;
+        private final Iterator<Entry> entries;
+        private final Map<Integer, FileChannel> segments;
+
+        private LogSource(File directory, List<Entry> entries) {
+            this.directory = directory;
+            this.entries = entries.iterator();
+            this.segments = new HashMap<>();
+        }
+
+        @Override
+        public Report next() throws IOException {
+            if (!entries.hasNext()) {
+                return null;
+            }
+            Entry entry = entries.next();
+
+            FileChannel channel = segments.get(entry.segment);
+            if (channel == null) {
+                channel = FileChannel.open(segmentFile(directory, entry.segment).toPath(), StandardOpenOption.READ);
+                segments.put(entry.segment, channel);
+            }
+            channel.position(entry.offset);
+
+            // the stream is not closed, as that would close the segment
+            InputStream in = new BufferedInputStream(
+                    ByteStreams.limit(Channels.newInputStream(channel), entry.length)
+                    , (int) Math.min(ReportFiles.BUFFER_POOL.getBufferSize(), Math.max(entry.length, 1)));
+            if (entry.compressed) {
+                in = new BlockInputStream(in, null, 1);
+            }
+            return ReportFiles.codecForExtension(entry.extension).decode(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FileChannel channel : segments.values()) {
+                channel.close();
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * Segments of a log opened for reading, shared by reads running in parallel. Reports are read with positional
+     * reads, which leave the position of the segment untouched.
+     */
+    private static final class Segments implements Closeable {
+        private final File directory;
+        private final Map<Integer, FileChannel> channels = new HashMap<>();
+
+        private Segments(File directory) {
+            this.directory = directory;
+        }
+
+        private synchronized FileChannel channel(int segment) throws IOException {
+            FileChannel channel = channels.get(segment);
+            if (channel == null) {
+                channel = FileChannel.open(segmentFile(directory, segment).toPath(), StandardOpenOption.READ);
+                channels.put(segment, channel);
+            }
+            return channel;
+        }
+
+        /**
+         * Reads the report at the given entry into memory, so it can be decoded without holding the segment.
+         */
+        private byte[] read(Entry entry) throws IOException {
+            FileChannel channel = channel(entry.segment);
+            ByteBuffer buffer = ByteBuffer.allocate(Ints.checkedCast(entry.length));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                    throw new EOFException("Report " + entry + " is truncated");
+                }
+            }
+            return buffer.array();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+            channels.clear();
+        }
+    }
+
+    /**
+     * Reads every report of a reporting interval and merges them into one.
+     */
+    private static final class IntervalRead implements Callable<Report> {
+        private final Segments segments;
+        private final List<Entry> entries;
+
+        private IntervalRead(Segments segments, List<Entry> entries) {
+            this.segments = segments;
+            this.entries = entries;
+        }
+
+        @Override
+        public Report call() throws IOException {
+            List<Report> partials = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                partials.add(ReportFiles.decode(new ByteArrayInputStream(segments.read(entry))
+                        , ReportFiles.codecForExtension(entry.extension)
+                        , entry.compressed));
+            }
+            return MergingReportSource.merge(partials);
+        }
+    }
+}
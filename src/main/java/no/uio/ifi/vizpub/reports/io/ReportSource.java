@@ -0,0 +1,23 @@
+package no.uio.ifi.vizpub.reports.io;
+
+import no.uio.ifi.vizpub.reports.Report;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequence of reports read by the overlay builders, in reporting interval order.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReportLog
+ * @see ReportFiles#openMergedSource(java.io.File)
+ */
+public interface ReportSource extends Closeable {
+
+    /**
+     * Reads the next report.
+     *
+     * @return the next report, or null if there are no more reports
+     */
+    public Report next() throws IOException;
+}
@@ -0,0 +1,211 @@
+package no.uio.ifi.vizpub.stats;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Statistics of the reports ingested by the collector, exposed through JMX and the <code>StatsServer</code>.
+ * <p/>
+ * Counters are updated by the threads committing reports, while queue depths are read from the collector components
+ * when the statistics are read. There is a single instance per process, registered on first use, which is reset
+ * whenever a collector starts so that no counter or component of an earlier run is carried over.
+ *
+ * @author Nils Peder Korsveien
+ * @see StatsServer
+ * @see no.uio.ifi.vizpub.collector.CollectorWorker
+ */
+public final class CollectorStats implements CollectorStatsMXBean {
+    public static final String TYPE = "Collector";
+
+    private static final Supplier<CollectorStats> INSTANCE = Suppliers.memoize(new Supplier<CollectorStats>() {
+        @Override
+        public CollectorStats get() {
+            CollectorStats stats = new CollectorStats();
+            StatsServer.register(TYPE, stats);
+            return stats;
+        }
+    });
+
+    private static final Supplier<Integer> NO_QUEUE = Suppliers.ofInstance(0);
+
+    private volatile Meter reports = new Meter();
+    private volatile Meter bytes = new Meter();
+    private volatile LatencyHistogram writeLatency = new LatencyHistogram();
+
+    /**
+     * Key:   host name
+     * Value: highest interval committed for the host
+     */
+    private final ConcurrentMap<String, Integer> hostIntervals = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<File> directories = new CopyOnWriteArrayList<>();
+
+    private volatile Supplier<Integer> ingestionQueue = NO_QUEUE;
+    private volatile Supplier<Integer> connections = NO_QUEUE;
+    private volatile Supplier<Long> ringQueue = Suppliers.ofInstance(0L);
+
+    private CollectorStats() {
+    }
+
+    /**
+     * @return the statistics of the collector in this process
+     */
+    public static CollectorStats get() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * Starts the statistics of a new run, clearing the counters and forgetting the components and directories
+     * monitored by the previous run.
+     */
+    public void reset() {
+        reports = new Meter();
+        bytes = new Meter();
+        writeLatency = new LatencyHistogram();
+        hostIntervals.clear();
+        directories.clear();
+        ingestionQueue = NO_QUEUE;
+        connections = NO_QUEUE;
+        ringQueue = Suppliers.ofInstance(0L);
+    }
+
+    /**
+     * Records a report committed to a report log.
+     *
+     * @param hostName   host which reported the report
+     * @param interval   reporting interval of the report
+     * @param length     length of the encoded report in bytes
+     * @param writeNanos time spent committing the report
+     */
+    public void reportCommitted(String hostName, int interval, long length, long writeNanos) {
+        reports.mark(1);
+        bytes.mark(length);
+        writeLatency.record(writeNanos);
+
+        Integer highest = hostIntervals.putIfAbsent(hostName, interval);
+        while (highest != null && highest < interval && !hostIntervals.replace(hostName, highest, interval)) {
+            highest = hostIntervals.get(hostName);
+        }
+    }
+
+    /**
+     * Sets where the depth of the ingestion queue and the number of connected reporters are read from.
+     */
+    public void monitorServer(Supplier<Integer> ingestionQueue, Supplier<Integer> connections) {
+        this.ingestionQueue = checkNotNull(ingestionQueue);
+        this.connections = checkNotNull(connections);
+    }
+
+    /**
+     * Sets where the number of bytes queued in the ring of a local reporter is read from.
+     */
+    public void monitorRing(Supplier<Long> ringQueue) {
+        this.ringQueue = checkNotNull(ringQueue);
+    }
+
+    /**
+     * Adds a directory to the disk usage reported by the collector, unless it is already included.
+     *
+     * @param directory directory holding reports
+     */
+    public void monitorDirectory(File directory) {
+        directories.addIfAbsent(checkNotNull(directory));
+    }
+
+    @Override
+    public long getReportsCommitted() {
+        return reports.getCount();
+    }
+
+    @Override
+    public double getReportsPerSecond() {
+        return reports.getRate();
+    }
+
+    @Override
+    public long getBytesCommitted() {
+        return bytes.getCount();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytes.getRate();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getWriteLatency() {
+        return writeLatency.snapshot();
+    }
+
+    @Override
+    public int getIngestionQueueDepth() {
+        return ingestionQueue.get();
+    }
+
+    @Override
+    public long getRingQueueBytes() {
+        return ringQueue.get();
+    }
+
+    @Override
+    public int getConnectedReporters() {
+        return connections.get();
+    }
+
+    @Override
+    public Map<String, Integer> getHostIntervalLag() {
+        int latest = Integer.MIN_VALUE;
+        for (int interval : hostIntervals.values()) {
+            latest = Math.max(latest, interval);
+        }
+        Map<String, Integer> lag = new TreeMap<>();
+        for (Map.Entry<String, Integer> host : hostIntervals.entrySet()) {
+            lag.put(host.getKey(), latest - host.getValue());
+        }
+        return lag;
+    }
+
+    @Override
+    public long getDiskUsageBytes() {
+        long usage = 0;
+        for (File directory : directories) {
+            usage += sizeOf(directory);
+        }
+        return usage;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    /**
+     * Sums the length of the files below a directory, ignoring files which are deleted while walking it.
+     */
+    private static long sizeOf(File directory) {
+        long size = 0;
+        List<File> remaining = new ArrayList<>();
+        remaining.add(directory);
+        while (!remaining.isEmpty()) {
+            File file = remaining.remove(remaining.size() - 1);
+            File[] children = file.listFiles();
+            if (children == null) {
+                size += file.length();
+                continue;
+            }
+            for (File child : children) {
+                remaining.add(child);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,65 @@
+package no.uio.ifi.vizpub.stats;
+
+import java.util.Map;
+
+/**
+ * Management interface of the statistics of the collector, registered as
+ * <code>no.uio.ifi.vizpub:type=Collector</code>.
+ *
+ * @author Nils Peder Korsveien
+ * @see CollectorStats
+ */
+public interface CollectorStatsMXBean {
+
+    /**
+     * @return number of reports committed since the collector started
+     */
+    long getReportsCommitted();
+
+    /**
+     * @return recent number of reports committed per second
+     */
+    double getReportsPerSecond();
+
+    /**
+     * @return number of encoded report bytes committed since the collector started
+     */
+    long getBytesCommitted();
+
+    /**
+     * @return recent number of encoded report bytes committed per second
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return latencies of committing a report to its log, in microseconds
+     */
+    LatencyHistogram.Snapshot getWriteLatency();
+
+    /**
+     * @return number of reports received over the network and waiting to be committed
+     */
+    int getIngestionQueueDepth();
+
+    /**
+     * @return number of bytes written into the ring by a local reporter and not yet committed
+     */
+    long getRingQueueBytes();
+
+    /**
+     * @return number of reporters connected to the collector server
+     */
+    int getConnectedReporters();
+
+    /**
+     * Returns how many intervals each host lags behind the host which has reported the most recent interval.
+     *
+     * @return interval lag by host name
+     */
+    Map<String, Integer> getHostIntervalLag();
+
+    /**
+     * @return number of bytes used by the report logs
+     */
+    long getDiskUsageBytes();
+}
@@ -0,0 +1,202 @@
+package no.uio.ifi.vizpub.stats;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of latencies, in microseconds.
+ * <p/>
+ * Latencies are counted in logarithmic buckets, eight per power of two, so recording is a single atomic increment
+ * and percentiles are accurate to within about six percent. To show how latencies develop during long runs rather
+ * than since startup, the histogram only covers the last one to two windows of a minute: every minute, a new
+ * window is started and the one before the previous is dropped.
+ *
+ * @author Nils Peder Korsveien
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final AtomicLong total = new AtomicLong();
+    private volatile Window current;
+    private volatile Window previous;
+
+    public LatencyHistogram() {
+        long now = System.nanoTime();
+        this.current = new Window(now);
+        this.previous = new Window(now - WINDOW_NANOS);
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        total.incrementAndGet();
+        window(System.nanoTime()).record(TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0)));
+    }
+
+    /**
+     * Returns the percentiles of the latencies recorded during the last one to two minutes.
+     *
+     * @return snapshot of the histogram
+     */
+    public Snapshot snapshot() {
+        Window latest = window(System.nanoTime());
+        Window earlier = previous;
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latest.counts.get(i) + earlier.counts.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return new Snapshot(total.get(), 0, 0, 0, 0, 0, 0);
+        }
+        double mean = (latest.sum.get() + earlier.sum.get()) / (double) count;
+        long max = Math.max(latest.max.get(), earlier.max.get());
+        // the midpoint of the highest bucket may lie above the highest latency in it
+        return new Snapshot(total.get(), count, mean,
+                Math.min(percentile(counts, count, 0.5), max),
+                Math.min(percentile(counts, count, 0.9), max),
+                Math.min(percentile(counts, count, 0.99), max),
+                max);
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private Window window(long now) {
+        Window window = current;
+        if (now - window.start < WINDOW_NANOS) {
+            return window;
+        }
+        synchronized (this) {
+            window = current;
+            if (now - window.start >= WINDOW_NANOS) {
+                previous = now - window.start < 2 * WINDOW_NANOS ? window : new Window(now - WINDOW_NANOS);
+                window = new Window(now);
+                current = window;
+            }
+            return window;
+        }
+    }
+
+    private static long percentile(long[] counts, long count, double quantile) {
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return midpoint(i);
+            }
+        }
+        return midpoint(BUCKETS - 1);
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long midpoint(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) / 2;
+    }
+
+    /**
+     * Latencies recorded during one window of time.
+     */
+    private static final class Window {
+        private final long start;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Window(long start) {
+            this.start = start;
+        }
+
+        private void record(long micros) {
+            counts.incrementAndGet(bucketOf(micros));
+            sum.addAndGet(micros);
+            long highest;
+            while (micros > (highest = max.get()) && !max.compareAndSet(highest, micros)) {
+                // retry until the maximum is at least this latency
+            }
+        }
+    }
+
+    /**
+     * Percentiles of a histogram, in microseconds.
+     */
+    public static final class Snapshot {
+        private final long total;
+        private final long count;
+        private final double mean;
+        private final long median;
+        private final long percentile90;
+        private final long percentile99;
+        private final long max;
+
+        @ConstructorProperties({"total", "count", "mean", "median", "percentile90", "percentile99", "max"})
+        public Snapshot(long total, long count, double mean, long median, long percentile90, long percentile99,
+                        long max) {
+            this.total = total;
+            this.count = count;
+            this.mean = mean;
+            this.median = median;
+            this.percentile90 = percentile90;
+            this.percentile99 = percentile99;
+            this.max = max;
+        }
+
+        /**
+         * @return number of latencies recorded since the histogram was created
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return number of latencies the percentiles are computed from
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getMedian() {
+            return median;
+        }
+
+        public long getPercentile90() {
+            return percentile90;
+        }
+
+        public long getPercentile99() {
+            return percentile99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package no.uio.ifi.vizpub.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Thread-safe counter of events, along with their recent rate.
+ * <p/>
+ * The rate is an exponentially weighted moving average over about a minute, updated in ticks of five seconds.
+ * Ticks are taken lazily when the meter is marked or read, so an idle meter costs nothing.
+ *
+ * @author Nils Peder Korsveien
+ */
+public final class Meter {
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong uncounted = new AtomicLong();
+    private final AtomicLong lastTick;
+    private volatile double rate;
+    private volatile boolean initialized;
+
+    public Meter() {
+        this.lastTick = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Records the given number of events.
+     *
+     * @param events number of events, e.g. bytes
+     */
+    public void mark(long events) {
+        checkArgument(events >= 0, "Number of events must not be negative");
+        tickIfNecessary();
+        count.addAndGet(events);
+        uncounted.addAndGet(events);
+    }
+
+    /**
+     * @return number of events recorded since the meter was created
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return recent number of events per second
+     */
+    public double getRate() {
+        tickIfNecessary();
+        return rate;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private void tickIfNecessary() {
+        long last = lastTick.get();
+        long now = System.nanoTime();
+        long ticks = (now - last) / TICK_NANOS;
+        if (ticks <= 0 || !lastTick.compareAndSet(last, last + ticks * TICK_NANOS)) {
+            return;
+        }
+        for (long i = 0; i < ticks; i++) {
+            tick();
+        }
+    }
+
+    private void tick() {
+        double instantRate = uncounted.getAndSet(0) / (double) TimeUnit.NANOSECONDS.toSeconds(TICK_NANOS);
+        if (initialized) {
+            rate += ALPHA * (instantRate - rate);
+        } else {
+            rate = instantRate;
+            initialized = true;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package no.uio.ifi.vizpub.stats;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Statistics of the reports created by the reporter, exposed through JMX and the <code>StatsServer</code>.
+ * <p/>
+ * Counters are updated by the threads of the encoding pipeline, while queue depths are read from the reporter
+ * components when the statistics are read. There is a single instance per process, registered on first use, which
+ * is reset whenever a reporter starts so that no counter or component of an earlier run is carried over.
+ *
+ * @author Nils Peder Korsveien
+ * @see StatsServer
+ * @see no.uio.ifi.vizpub.reporter.ReporterService
+ */
+public final class ReporterStats implements ReporterStatsMXBean {
+    public static final String TYPE = "Reporter";
+
+    private static final Supplier<ReporterStats> INSTANCE = Suppliers.memoize(new Supplier<ReporterStats>() {
+        @Override
+        public ReporterStats get() {
+            ReporterStats stats = new ReporterStats();
+            StatsServer.register(TYPE, stats);
+            return stats;
+        }
+    });
+
+    private static final Supplier<Integer> NO_QUEUE = Suppliers.ofInstance(0);
+
+    private volatile Meter reports = new Meter();
+    private volatile Meter bytes = new Meter();
+    private volatile LatencyHistogram serializationLatency = new LatencyHistogram();
+    private volatile LatencyHistogram writeLatency = new LatencyHistogram();
+
+    private volatile Supplier<Integer> reportQueue = NO_QUEUE;
+    private volatile Supplier<Integer> pipeline = NO_QUEUE;
+    private volatile Supplier<Integer> inFlight = NO_QUEUE;
+
+    private ReporterStats() {
+    }
+
+    /**
+     * @return the statistics of the reporter in this process
+     */
+    public static ReporterStats get() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * Starts the statistics of a new run, clearing the counters and forgetting the components monitored by the
+     * previous run.
+     */
+    public void reset() {
+        reports = new Meter();
+        bytes = new Meter();
+        serializationLatency = new LatencyHistogram();
+        writeLatency = new LatencyHistogram();
+        reportQueue = NO_QUEUE;
+        pipeline = NO_QUEUE;
+        inFlight = NO_QUEUE;
+    }
+
+    /**
+     * Records a report encoded by the pipeline.
+     *
+     * @param length            length of the encoded report in bytes
+     * @param serializationNanos time spent serializing the report
+     */
+    public void reportEncoded(long length, long serializationNanos) {
+        reports.mark(1);
+        bytes.mark(length);
+        serializationLatency.record(serializationNanos);
+    }
+
+    /**
+     * Records an encoded report handed to the collector or committed.
+     *
+     * @param writeNanos time spent writing the report
+     */
+    public void reportWritten(long writeNanos) {
+        writeLatency.record(writeNanos);
+    }
+
+    /**
+     * Sets where the depths of the report queue and the encoding pipeline are read from.
+     */
+    public void monitorQueues(Supplier<Integer> reportQueue, Supplier<Integer> pipeline) {
+        this.reportQueue = checkNotNull(reportQueue);
+        this.pipeline = checkNotNull(pipeline);
+    }
+
+    /**
+     * Sets where the number of unacknowledged reports is read from.
+     */
+    public void monitorSender(Supplier<Integer> inFlight) {
+        this.inFlight = checkNotNull(inFlight);
+    }
+
+    @Override
+    public long getReportsEncoded() {
+        return reports.getCount();
+    }
+
+    @Override
+    public double getReportsPerSecond() {
+        return reports.getRate();
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return bytes.getCount();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytes.getRate();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSerializationLatency() {
+        return serializationLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getWriteLatency() {
+        return writeLatency.snapshot();
+    }
+
+    @Override
+    public int getReportQueueDepth() {
+        return reportQueue.get();
+    }
+
+    @Override
+    public int getPipelineDepth() {
+        return pipeline.get();
+    }
+
+    @Override
+    public int getReportsInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,56 @@
+package no.uio.ifi.vizpub.stats;
+
+/**
+ * Management interface of the statistics of the reporter, registered as
+ * <code>no.uio.ifi.vizpub:type=Reporter</code>.
+ *
+ * @author Nils Peder Korsveien
+ * @see ReporterStats
+ */
+public interface ReporterStatsMXBean {
+
+    /**
+     * @return number of reports encoded since the reporter started
+     */
+    long getReportsEncoded();
+
+    /**
+     * @return recent number of reports encoded per second
+     */
+    double getReportsPerSecond();
+
+    /**
+     * @return number of encoded report bytes written since the reporter started
+     */
+    long getBytesEncoded();
+
+    /**
+     * @return recent number of encoded report bytes written per second
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return latencies of encoding a report, in microseconds
+     */
+    LatencyHistogram.Snapshot getSerializationLatency();
+
+    /**
+     * @return latencies of handing an encoded report to the collector or committing it, in microseconds
+     */
+    LatencyHistogram.Snapshot getWriteLatency();
+
+    /**
+     * @return number of reports created and waiting to be encoded
+     */
+    int getReportQueueDepth();
+
+    /**
+     * @return number of reports being encoded or waiting to be written
+     */
+    int getPipelineDepth();
+
+    /**
+     * @return number of reports sent to the collector and not yet acknowledged
+     */
+    int getReportsInFlight();
+}
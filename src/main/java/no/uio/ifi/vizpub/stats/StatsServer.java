@@ -0,0 +1,234 @@
+package no.uio.ifi.vizpub.stats;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import no.uio.ifi.vizpub.utils.LogCategory;
+
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Registers the statistics of vizpub as MBeans, and serves them as json over http on the loopback interface.
+ * <p/>
+ * Every MBean in the <code>no.uio.ifi.vizpub</code> domain is served at <code>/stats</code>, keyed by its type, and
+ * a single one at <code>/stats/&lt;type&gt;</code>, e.g. <code>/stats/Collector</code>. The same attributes can be
+ * watched with any JMX console. Types are plain identifiers, so any other path, e.g. one which would be taken as
+ * an <code>ObjectName</code> pattern, is answered with a 404. The server is only bound to the loopback interface,
+ * since the statistics are meant for whoever runs the experiment rather than for the network.
+ *
+ * @author Nils Peder Korsveien
+ * @see CollectorStats
+ * @see ReporterStats
+ */
+public final class StatsServer {
+    public static final String DOMAIN = "no.uio.ifi.vizpub";
+    public static final String CONTEXT = "/stats";
+
+    private static final Pattern TYPE = Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+
+    private static HttpServer server;
+    private static ExecutorService executor;
+
+    private static final Gson gson = new GsonBuilder()
+            .setPrettyPrinting()
+            .serializeSpecialFloatingPointValues()
+            .create();
+
+    private StatsServer() {
+    }
+
+    /**
+     * Registers an MBean under the vizpub domain, replacing any MBean of the same type.
+     *
+     * @param type  type of the MBean, e.g. <code>Collector</code>
+     * @param mbean the MBean
+     */
+    public static void register(String type, Object mbean) {
+        checkNotNull(type);
+        checkNotNull(mbean);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN, "type", type);
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(mbean, name);
+        } catch (JMException e) {
+            Log.warn(LogCategory.STATS, "Could not register statistics of type " + type, e);
+        }
+    }
+
+    /**
+     * Starts serving statistics on the given port of the loopback interface, unless already serving them.
+     *
+     * @param port port to listen on, or 0 for an ephemeral port
+     * @return address the statistics are served on
+     */
+    public static synchronized InetSocketAddress start(int port) throws IOException {
+        checkArgument(port >= 0, "Port must not be negative");
+        if (server != null) {
+            return server.getAddress();
+        }
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("stats-server-%d")
+                .setDaemon(true)
+                .build());
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(CONTEXT, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        Log.info(LogCategory.STATS, "Serving statistics on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + CONTEXT);
+        return server.getAddress();
+    }
+
+    /**
+     * Stops serving statistics, if serving them.
+     */
+    public static synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * Returns the attributes of every vizpub MBean of the given type, or of every type.
+     *
+     * @param type type of the MBeans, a plain identifier, or null for every type
+     * @return attributes by name, by type
+     */
+    public static Map<String, Map<String, Object>> read(String type) throws JMException {
+        checkArgument(type == null || isType(type), "Not a statistics type: %s", type);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = type == null ? new ObjectName(DOMAIN + ":*") : new ObjectName(DOMAIN, "type", type);
+        checkArgument(type == null || !pattern.isPattern(), "Not a statistics type: %s", type);
+
+        Map<String, Map<String, Object>> stats = new TreeMap<>();
+        for (ObjectName name : mbeanServer.queryNames(pattern, null)) {
+            MBeanAttributeInfo[] infos = mbeanServer.getMBeanInfo(name).getAttributes();
+            String[] names = new String[infos.length];
+            for (int i = 0; i < infos.length; i++) {
+                names[i] = infos[i].getName();
+            }
+
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            for (Attribute attribute : mbeanServer.getAttributes(name, names).asList()) {
+                attributes.put(attribute.getName(), toPlain(attribute.getValue()));
+            }
+            stats.put(name.getKeyProperty("type"), attributes);
+        }
+        return stats;
+    }
+
+    /**
+     * Private methods:
+     */
+
+    private static void serve(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            // the context also matches paths such as /statsfoo
+            String rest = path.substring(CONTEXT.length());
+            String type = rest.length() > 1 ? rest.substring(1) : null;
+            boolean found = rest.isEmpty() || rest.startsWith("/") && (type == null || isType(type));
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\": \"Only GET is supported\"}");
+                return;
+            }
+            if (!found) {
+                respond(exchange, 404, "{\"error\": \"No such statistics type\"}");
+                return;
+            }
+
+            Map<String, Map<String, Object>> stats = read(type);
+            if (type != null && stats.isEmpty()) {
+                respond(exchange, 404, "{\"error\": \"No statistics of type " + type + "\"}");
+            } else {
+                respond(exchange, 200, gson.toJson(type == null ? stats : stats.get(type)));
+            }
+        } catch (JMException | RuntimeException e) {
+            Log.warn(LogCategory.STATS, "Could not read statistics", e);
+            respond(exchange, 500, "{\"error\": \"Could not read statistics\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static boolean isType(String type) {
+        return TYPE.matcher(type).matches();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Converts the open data of an MXBean attribute into maps and lists.
+     */
+    private static Object toPlain(Object value) {
+        if (value instanceof CompositeData) {
+            CompositeData composite = (CompositeData) value;
+            Map<String, Object> plain = new LinkedHashMap<>();
+            for (String key : composite.getCompositeType().keySet()) {
+                plain.put(key, toPlain(composite.get(key)));
+            }
+            return plain;
+        }
+        if (value instanceof TabularData) {
+            // maps are mapped to tables with a key and a value column
+            Map<String, Object> plain = new TreeMap<>();
+            List<Object> rows = new ArrayList<>();
+            for (Object row : ((TabularData) value).values()) {
+                CompositeData composite = (CompositeData) row;
+                if (composite.containsKey("key") && composite.containsKey("value")) {
+                    plain.put(String.valueOf(composite.get("key")), toPlain(composite.get("value")));
+                } else {
+                    rows.add(toPlain(composite));
+                }
+            }
+            return rows.isEmpty() ? plain : rows;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,63 @@
+package no.uio.ifi.vizpub.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Thread-safe pool of reusable direct byte buffers.
+ * <p/>
+ * Writing to a file channel from a heap buffer makes the JDK copy the data into a temporary direct buffer.
+ * Pooling fixed size direct buffers avoids both that copy and allocating a new buffer for every report written.
+ *
+ * @author Nils Peder Korsveien
+ * @see ChannelOutputStream
+ */
+public final class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final int bufferSize;
+
+    public BufferPool(int size) {
+        this(size, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BufferPool(int size, int bufferSize) {
+        checkArgument(size > 0, "Pool size must be positive");
+        checkArgument(bufferSize > 0, "Buffer size must be positive");
+        this.buffers = new ArrayBlockingQueue<>(size);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns a pooled buffer, or allocates a new one if the pool is empty.
+     *
+     * @return a cleared buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer the buffer to return
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize) {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
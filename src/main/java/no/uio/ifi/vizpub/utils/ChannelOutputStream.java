@@ -0,0 +1,76 @@
+package no.uio.ifi.vizpub.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Buffered output stream writing to a channel through a pooled direct buffer.
+ * <p/>
+ * Closing the stream flushes the buffer, returns it to its pool and closes the underlying channel.
+ *
+ * @author Nils Peder Korsveien
+ * @see BufferPool
+ */
+public final class ChannelOutputStream extends OutputStream {
+    private final WritableByteChannel channel;
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    public ChannelOutputStream(WritableByteChannel channel, BufferPool pool) {
+        this.channel = checkNotNull(channel);
+        this.pool = checkNotNull(pool);
+        this.buffer = pool.acquire();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+            channel.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -20,4 +20,5 @@ public final class LogCategory {
     public static final String PUBLISHING = "Publishing";
     public static final String GEXF = "Gexf";
     public static final String CHURN = "Churn";
+    public static final String STATS = "Stats";
 }
@@ -0,0 +1,174 @@
+package no.uio.ifi.vizpub.utils.collect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Hash map from primitive long keys to non-null values.
+ * <p/>
+ * Uses open addressing with linear probing, which avoids boxing the keys and allocating an entry object per
+ * mapping. Null values are not permitted, as an empty slot is represented by a null value.
+ *
+ * @param <V> type of values
+ * @author Nils Peder Korsveien
+ */
+public final class LongObjectMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    public LongObjectMap() {
+        this(0);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public V get(long key) {
+        int slot = find(key);
+        return slot < 0 ? null : value(slot);
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    public V put(long key, V value) {
+        checkNotNull(value, "Null values are not permitted");
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V previous = value(slot);
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > (mask + 1) * 3 / 4) {
+            rehash((mask + 1) * 2);
+        }
+        return null;
+    }
+
+    public V remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return null;
+        }
+        V previous = value(slot);
+        size--;
+
+        // shift back entries which were displaced past the removed slot
+        int empty = slot;
+        values[empty] = null;
+        for (int next = (empty + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int ideal = hash(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - empty) & mask)) {
+                keys[empty] = keys[next];
+                values[empty] = values[next];
+                values[next] = null;
+                empty = next;
+            }
+        }
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Returns a snapshot of the keys of this map, in no particular order. The map may be modified while
+     * iterating over the snapshot.
+     *
+     * @return the keys of this map
+     */
+    public long[] keys() {
+        long[] snapshot = new long[size];
+        int i = 0;
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null) {
+                snapshot[i++] = keys[slot];
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns a snapshot of the values of this map, in no particular order.
+     *
+     * @return the values of this map
+     */
+    public List<V> values() {
+        List<V> snapshot = new ArrayList<>(size);
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null) {
+                snapshot.add(value(slot));
+            }
+        }
+        return snapshot;
+    }
+
+    private int find(long key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int slot) {
+        return (V) values[slot];
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != null) {
+                int target = hash(oldKeys[slot]) & mask;
+                while (values[target] != null) {
+                    target = (target + 1) & mask;
+                }
+                keys[target] = oldKeys[slot];
+                values[target] = oldValues[slot];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        return IntObjectMap.capacityFor(expectedSize);
+    }
+}